@@ -0,0 +1,49 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+/**
+ * Measures what the current thread allocates, for {@link RavenFilter}'s
+ * report of the memory each session keeps and for tests that hold code to
+ * an allocation budget.
+ */
+final class Allocations {
+
+  private Allocations() {
+  }
+
+  /** Bytes allocated so far by this thread, or -1 if the JVM can't say */
+  static long allocatedBytes() {
+    Object bean = ManagementFactory.getThreadMXBean();
+    try {
+      Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod(
+          "getThreadAllocatedBytes", long.class);
+      return (Long) m.invoke(bean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+}
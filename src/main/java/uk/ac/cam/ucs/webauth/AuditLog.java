@@ -0,0 +1,424 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records every login accepted or refused by {@link RavenFilter}, one line
+ * per event, in a set of rolling local files.
+ *
+ * <p>
+ *
+ * Request threads never touch the file. An event is placed in a bounded
+ * ring buffer: each producer claims a slot with compare-and-set and then
+ * publishes the event into it, so producers don't block one another. A
+ * single background thread takes events from the ring, formats them and
+ * writes them in batches, with one write and flush per batch. When the ring
+ * is full the {@link OverflowPolicy} decides whether the event is dropped
+ * (and counted in {@link #getDropped}) or the request thread waits for
+ * space.
+ *
+ * <p>
+ *
+ * Each line holds tab-separated fields: time (UTC), outcome (SUCCESS or
+ * FAILURE), client address, principal, response id, issue, auth, sso and
+ * the reason for a failure. Tabs and line breaks in values are replaced
+ * with spaces. When the file reaches <tt>maxFileSize</tt> bytes it is
+ * renamed with the suffix ".1", older files move up one number, and the
+ * file numbered <tt>maxFiles</tt> is deleted.
+ */
+
+public class AuditLog {
+  private static Log log = LogFactory.getLog(AuditLog.class);
+
+  /** What to do with an event when the ring buffer is full */
+  public enum OverflowPolicy {
+    /** Discard the event and count it */
+    DROP,
+    /** Make the request thread wait until there is space */
+    BLOCK
+  }
+
+  /** Default size of a log file before it is rolled */
+  public static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024;
+
+  /** Default number of rolled files kept */
+  public static final int DEFAULT_MAX_FILES = 10;
+
+  /** Most events written in one batch */
+  private static final int BATCH_SIZE = 256;
+
+  /** How long a blocked producer waits before looking for space again */
+  private static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+  private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+
+  private final File file;
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final long maxFileSize;
+  private final int maxFiles;
+
+  private final AtomicReferenceArray<Event> ring;
+
+  /** Next slot to be claimed by a producer */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** Next slot to be read; written only by the writer thread */
+  private volatile long head = 0;
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  /** Producers between checking for close and publishing their event */
+  private final AtomicInteger producers = new AtomicInteger();
+
+  private final Thread writer;
+
+  /** Whether the writer is, or is about to be, parked waiting for work */
+  private volatile boolean idle = false;
+
+  private volatile boolean closed = false;
+
+  private volatile Clock clock = Clock.SYSTEM;
+
+  // used only by the writer thread
+  private OutputStream out;
+  private long fileSize;
+  private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+  private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+
+  /** One login, as queued by a request thread */
+  private static final class Event {
+    final long time;
+    final boolean success;
+    final String clientAddress;
+    final String principal;
+    final String id;
+    final String issue;
+    final String auth;
+    final String sso;
+    final String reason;
+
+    Event(long time, boolean success, String clientAddress,
+        WebauthResponse response, String reason) {
+      this.time = time;
+      this.success = success;
+      this.clientAddress = clientAddress;
+      this.principal = response == null ? null : response.get("principal");
+      this.id = response == null ? null : response.get("id");
+      this.issue = response == null ? null : response.get("issue");
+      this.auth = response == null ? null : response.get("auth");
+      this.sso = response == null ? null : response.get("sso");
+      this.reason = reason;
+    }
+  }
+
+  /**
+   * Opens an audit log with the default file size and number of files, and
+   * starts its writer thread.
+   *
+   * @param file the file to append to
+   * @param capacity the number of events the ring buffer holds
+   * @param policy what to do when the ring buffer is full
+   * @throws IOException if the file can't be opened
+   */
+  public AuditLog(File file, int capacity, OverflowPolicy policy) throws IOException {
+    this(file, capacity, policy, DEFAULT_MAX_FILE_SIZE, DEFAULT_MAX_FILES, true);
+  }
+
+  /**
+   * Opens an audit log.
+   *
+   * @param file the file to append to
+   * @param capacity the number of events the ring buffer holds
+   * @param policy what to do when the ring buffer is full
+   * @param maxFileSize the size in bytes at which the file is rolled
+   * @param maxFiles the number of rolled files to keep
+   * @throws IOException if the file can't be opened
+   */
+  public AuditLog(File file, int capacity, OverflowPolicy policy, long maxFileSize, int maxFiles)
+      throws IOException {
+    this(file, capacity, policy, maxFileSize, maxFiles, true);
+  }
+
+  AuditLog(File file, int capacity, OverflowPolicy policy, long maxFileSize, int maxFiles,
+      boolean start) throws IOException {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    if (policy == null)
+      throw new IllegalArgumentException("policy is null");
+    if (maxFileSize <= 0 || maxFiles < 0)
+      throw new IllegalArgumentException("Invalid file limits");
+    this.file = file;
+    this.capacity = capacity;
+    this.policy = policy;
+    this.maxFileSize = maxFileSize;
+    this.maxFiles = maxFiles;
+    this.ring = new AtomicReferenceArray<Event>(capacity);
+    dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    out = new FileOutputStream(file, true);
+    fileSize = file.length();
+
+    writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "raven-audit-log");
+    writer.setDaemon(true);
+    if (start)
+      writer.start();
+  }
+
+  /** Starts a writer thread created with <tt>start</tt> false */
+  void start() {
+    writer.start();
+  }
+
+  /**
+   * Records a successful login.
+   *
+   * @param clientAddress the address of the client, or null
+   * @param response the validated response
+   * @return false if the event was dropped
+   */
+  public boolean success(String clientAddress, WebauthResponse response) {
+    return offer(new Event(clock.currentTimeMillis(), true, clientAddress, response, null));
+  }
+
+  /**
+   * Records a failed login.
+   *
+   * @param clientAddress the address of the client, or null
+   * @param response the response, or null if it couldn't be parsed
+   * @param reason why the login failed
+   * @return false if the event was dropped
+   */
+  public boolean failure(String clientAddress, WebauthResponse response, String reason) {
+    return offer(new Event(clock.currentTimeMillis(), false, clientAddress, response, reason));
+  }
+
+  private boolean offer(Event event) {
+    // the writer doesn't stop while a producer that saw the log open is here
+    producers.incrementAndGet();
+    try {
+      while (true) {
+        if (closed) {
+          dropped.incrementAndGet();
+          return false;
+        }
+        long t = tail.get();
+        if (t - head >= capacity) {
+          if (policy == OverflowPolicy.DROP) {
+            dropped.incrementAndGet();
+            return false;
+          }
+          LockSupport.parkNanos(FULL_NANOS);
+          continue;
+        }
+        if (tail.compareAndSet(t, t + 1)) {
+          ring.set((int) (t % capacity), event);
+          break;
+        }
+      }
+    } finally {
+      producers.decrementAndGet();
+    }
+    if (idle)
+      LockSupport.unpark(writer);
+    return true;
+  }
+
+  /**
+   * Sets the clock giving the time recorded for each event. By default
+   * this is {@link Clock#SYSTEM}.
+   *
+   * @param clock the clock
+   */
+  public void setClock(Clock clock) {
+    if (clock == null)
+      throw new IllegalArgumentException("Clock is null");
+    this.clock = clock;
+  }
+
+  /**
+   * @return the clock giving the time recorded for each event
+   */
+  public Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * @return the number of events dropped because the ring buffer was full
+   *         or the log was closed
+   */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * @return the file written to
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Writes out every queued event, stops the writer thread and closes the
+   * file.
+   *
+   * @throws IOException if the file couldn't be closed
+   */
+  public void close() throws IOException {
+    closed = true;
+    if (writer.isAlive()) {
+      LockSupport.unpark(writer);
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    } else {
+      // never started
+      drain();
+    }
+    out.close();
+  }
+
+  private void writeLoop() {
+    while (true) {
+      // read before draining, so that nothing queued before close is missed,
+      // and producers before tail, so that none still publishing is missed
+      boolean finished = closed;
+      int written = drain();
+      if (finished && written == 0 && producers.get() == 0 && head == tail.get())
+        return;
+      if (written == 0 && !finished) {
+        // a producer publishing after this sees idle set and unparks
+        idle = true;
+        if (ring.get((int) (head % capacity)) == null && !closed)
+          LockSupport.park(this);
+        idle = false;
+      }
+    }
+  }
+
+  /**
+   * Writes out the events queued so far, in batches.
+   *
+   * @return the number of events written
+   */
+  private int drain() {
+    int total = 0;
+    while (true) {
+      int n = 0;
+      batch.setLength(0);
+      long h = head;
+      while (n < BATCH_SIZE) {
+        int slot = (int) (h % capacity);
+        Event e = ring.get(slot);
+        if (e == null)
+          break; // empty, or claimed but not yet published
+        ring.set(slot, null);
+        format(e);
+        ++h;
+        ++n;
+        head = h;
+      }
+      if (n == 0)
+        return total;
+      write();
+      total += n;
+    }
+  }
+
+  private void format(Event e) {
+    batch.append(dateFormat.format(new Date(e.time))).append('\t');
+    batch.append(e.success ? "SUCCESS" : "FAILURE");
+    field(e.clientAddress);
+    field(e.principal);
+    field(e.id);
+    field(e.issue);
+    field(e.auth);
+    field(e.sso);
+    field(e.reason);
+    batch.append('\n');
+  }
+
+  private void field(String value) {
+    batch.append('\t');
+    if (value == null)
+      return;
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      batch.append(c == '\t' || c == '\n' || c == '\r' ? ' ' : c);
+    }
+  }
+
+  private void write() {
+    try {
+      byte[] bytes = batch.toString().getBytes("UTF-8");
+      if (fileSize > 0 && fileSize + bytes.length > maxFileSize)
+        roll();
+      out.write(bytes);
+      out.flush();
+      fileSize += bytes.length;
+    } catch (IOException e) {
+      log.error("Unable to write audit log " + file, e);
+    }
+  }
+
+  private void roll() throws IOException {
+    out.close();
+    File oldest = new File(file.getPath() + "." + maxFiles);
+    if (oldest.exists() && !oldest.delete())
+      log.warn("Unable to delete " + oldest);
+    for (int i = maxFiles - 1; i >= 1; --i) {
+      File from = new File(file.getPath() + "." + i);
+      if (from.exists())
+        from.renameTo(new File(file.getPath() + "." + (i + 1)));
+    }
+    if (maxFiles > 0)
+      file.renameTo(new File(file.getPath() + ".1"));
+    else
+      file.delete();
+    out = new FileOutputStream(file, true);
+    fileSize = 0;
+  }
+}
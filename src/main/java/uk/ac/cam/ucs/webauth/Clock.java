@@ -0,0 +1,49 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+/**
+ * A source of the current time. The toolkit reads the time through a Clock
+ * wherever one can be supplied, so that a cheaper source such as
+ * {@link CoarseClock} can be used, or time controlled in tests.
+ */
+public interface Clock {
+
+  /** Reads <tt>System.currentTimeMillis()</tt> on every call */
+  Clock SYSTEM = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+      return "system clock";
+    }
+  };
+
+  /**
+   * @return the current time, in milliseconds since January 1, 1970 GMT
+   */
+  long currentTimeMillis();
+}
@@ -0,0 +1,107 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+/**
+ * A clock whose time is updated by a background thread every few
+ * milliseconds, so that reading it is a single volatile read rather than a
+ * call into the operating system. The time may be behind by up to the
+ * resolution, which is far within the skew allowed when validating
+ * responses. RavenFilter uses one for its requests and validators.
+ * <p>
+ * The thread is a daemon, but should be stopped with {@link #close()} when
+ * the clock is no longer needed; a closed clock reads the system time
+ * directly.
+ */
+public final class CoarseClock implements Clock {
+
+  /** Milliseconds between updates used by {@link #CoarseClock()} */
+  public static final long DEFAULT_RESOLUTION = 5;
+
+  private final long resolution;
+
+  /** The time at the last update, or -1 once closed */
+  private volatile long now;
+
+  private volatile boolean closed = false;
+
+  private final Thread ticker;
+
+  /** Creates a clock updated every {@link #DEFAULT_RESOLUTION} ms */
+  public CoarseClock() {
+    this(DEFAULT_RESOLUTION);
+  }
+
+  /**
+   * @param resolution milliseconds between updates, at least 1
+   */
+  public CoarseClock(long resolution) {
+    if (resolution < 1)
+      throw new IllegalArgumentException("Invalid resolution " + resolution);
+    this.resolution = resolution;
+    this.now = System.currentTimeMillis();
+    ticker = new Thread("raven-clock") {
+      @Override
+      public void run() {
+        tick();
+      }
+    };
+    ticker.setDaemon(true);
+    ticker.start();
+  }
+
+  private void tick() {
+    try {
+      while (!closed) {
+        now = System.currentTimeMillis();
+        Thread.sleep(resolution);
+      }
+    } catch (InterruptedException e) {
+      // closed
+    } finally {
+      now = -1;
+    }
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    long t = now;
+    return t >= 0 ? t : System.currentTimeMillis();
+  }
+
+  /** @return the milliseconds between updates */
+  public long getResolution() {
+    return resolution;
+  }
+
+  /** Stops the thread updating the time */
+  public void close() {
+    closed = true;
+    ticker.interrupt();
+  }
+
+  @Override
+  public String toString() {
+    return "coarse clock (" + resolution + "ms)";
+  }
+}
@@ -0,0 +1,94 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * The configuration {@link RavenFilter} uses to handle a request. Settings
+ * are never changed once built; the filter publishes a new copy to
+ * reconfigure, so a request sees either all of the old settings or all of
+ * the new ones.
+ */
+
+final class FilterSettings {
+
+  /** The WLS page users are sent to */
+  final String authenticatePage;
+  /** Replaces the server and context path of return URLs, or null */
+  final String serverURLPrefix;
+  /** The principals allowed in, or null for anyone */
+  final Set<String> allowedPrincipals;
+  /** Whether users are let in without going to the WLS */
+  final boolean testingMode;
+  final WebauthValidator validator;
+  final ImmutableWebauthRequest requestTemplate;
+  /** Per-host overrides, or null if there are none */
+  final TenantTable tenants;
+
+  FilterSettings(String authenticatePage, String serverURLPrefix,
+      Set<String> allowedPrincipals, boolean testingMode, WebauthValidator validator,
+      ImmutableWebauthRequest requestTemplate, TenantTable tenants) {
+    if (authenticatePage == null)
+      throw new IllegalArgumentException("No authenticate page");
+    if (validator == null)
+      throw new IllegalArgumentException("No validator");
+    this.authenticatePage = authenticatePage;
+    this.serverURLPrefix = serverURLPrefix;
+    this.allowedPrincipals = allowedPrincipals == null ? null : Collections
+        .unmodifiableSet(allowedPrincipals);
+    this.testingMode = testingMode;
+    this.validator = validator;
+    this.requestTemplate = requestTemplate;
+    this.tenants = tenants;
+  }
+
+  FilterSettings withAuthenticatePage(String authenticatePage) {
+    return new FilterSettings(authenticatePage, serverURLPrefix, allowedPrincipals,
+        testingMode, validator, requestTemplate, tenants);
+  }
+
+  FilterSettings withServerURLPrefix(String serverURLPrefix) {
+    return new FilterSettings(authenticatePage, serverURLPrefix, allowedPrincipals,
+        testingMode, validator, requestTemplate, tenants);
+  }
+
+  FilterSettings withAllowedPrincipals(Set<String> allowedPrincipals) {
+    return new FilterSettings(authenticatePage, serverURLPrefix, allowedPrincipals,
+        testingMode, validator, requestTemplate, tenants);
+  }
+
+  FilterSettings withTenants(TenantTable tenants) {
+    return new FilterSettings(authenticatePage, serverURLPrefix, allowedPrincipals,
+        testingMode, validator, requestTemplate, tenants);
+  }
+
+  @Override
+  public String toString() {
+    return "authenticateUrl " + authenticatePage + ", prefix " + serverURLPrefix
+        + ", principals " + (allowedPrincipals == null ? "any" : allowedPrincipals.toString())
+        + (testingMode ? ", testing mode" : "") + ", "
+        + (tenants == null ? 0 : tenants.size()) + " tenants";
+  }
+}
@@ -0,0 +1,411 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An authentication request message that can't be changed once built.
+ *
+ * Instances are created with a {@link Builder}, either from scratch with
+ * {@link #builder()} or starting from an existing request with
+ * {@link #toBuilder()}. The latter is intended for a per-application template
+ * holding the fields that are the same for every request (ver, desc, aauth,
+ * iact, ...): requests built from it share its already-encoded query string
+ * fragments, so only the fields that change (typically url and date) are
+ * encoded again.
+ *
+ * An ImmutableWebauthRequest can be used anywhere a {@link WebauthRequest}
+ * is expected, but all of the <tt>set</tt> methods throw
+ * UnsupportedOperationException. The query string is computed once and
+ * remembered.
+ *
+ * @see <a href="http://raven.cam.ac.uk/project/waa2wls-protocol.txt">The
+ *      Cambridge Web Authentication System: WAA->WLS communication protocol</a>
+ */
+
+public final class ImmutableWebauthRequest extends WebauthRequest {
+
+  private static final long serialVersionUID = 2914788630722094712L;
+
+  /** Field values indexed by RequestField slot; null if not present */
+  private final String[] values;
+
+  /** Fields with names not in RequestField */
+  private final Map<String, String> extra;
+
+  /** "name=encoded-value" for each non-empty slot, shared with the builder's template */
+  private transient String[] fragments;
+
+  private transient volatile String qString;
+
+  private transient volatile Map<String, Collection<String>> collections;
+
+  private ImmutableWebauthRequest(String[] values, String[] fragments, Map<String, String> extra) {
+    super(null, false);
+    this.values = values;
+    this.fragments = fragments;
+    this.extra = extra;
+  }
+
+  /**
+   * Returns a builder for a new request. As for {@link WebauthRequest#WebauthRequest()}, "ver"
+   * defaults to 3 and "date" to the current date and time.
+   *
+   * @return a new Builder
+   */
+  public static Builder builder() {
+    return builder(Clock.SYSTEM);
+  }
+
+  /**
+   * Returns a builder for a new request, dated from a clock.
+   *
+   * @param clock gives the date
+   * @return a new Builder
+   */
+  public static Builder builder(Clock clock) {
+    Builder b = new Builder();
+    b.set("ver", DEFAULT_VER);
+    b.set("date", clock.currentTimeMillis());
+    return b;
+  }
+
+  /**
+   * Returns an immutable copy of a request.
+   *
+   * @param request the request to copy
+   * @return the request itself if it is already immutable, otherwise a copy
+   */
+  public static ImmutableWebauthRequest copyOf(WebauthRequest request) {
+    if (request instanceof ImmutableWebauthRequest)
+      return (ImmutableWebauthRequest) request;
+    Builder b = new Builder();
+    for (Iterator<String> it = request.getFieldNames(); it.hasNext();) {
+      String field = it.next();
+      b.set(field, request.get(field));
+    }
+    return b.build();
+  }
+
+  /**
+   * Rebuilds a request from the output of {@link #toQString()}.
+   *
+   * @param qString the query string
+   * @return the request
+   * @throws IllegalArgumentException if the string can't be decoded
+   */
+  static ImmutableWebauthRequest fromQString(String qString) {
+    Builder b = new Builder();
+    for (String item : Util.split('&', qString)) {
+      if (item.length() == 0)
+        continue;
+      int eq = item.indexOf('=');
+      if (eq <= 0)
+        throw new IllegalArgumentException("Malformed request field: " + item);
+      try {
+        b.set(item.substring(0, eq), URLDecoder.decode(item.substring(eq + 1), "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        // Shouldn't happen
+        throw new Error(e);
+      }
+    }
+    return b.build();
+  }
+
+  /**
+   * Returns a builder initialised with the fields of this request.
+   *
+   * @return a new Builder
+   */
+  public Builder toBuilder() {
+    return new Builder(this);
+  }
+
+  @Override
+  public int length() {
+    int n = extra.size();
+    for (String v : values) {
+      if (v != null)
+        n++;
+    }
+    return n;
+  }
+
+  @Override
+  public Iterator<String> getFieldNames() {
+    List<String> names = new ArrayList<String>(RequestField.COUNT + extra.size());
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] != null)
+        names.add(RequestField.forSlot(i).fieldName);
+    }
+    names.addAll(extra.keySet());
+    return Collections.unmodifiableList(names).iterator();
+  }
+
+  @Override
+  public String get(String field) {
+    RequestField f = RequestField.forName(field);
+    String value = f != null ? values[f.ordinal()] : extra.get(field);
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Returns the comma-seperated strings from the specified field. The
+   * collection is parsed once, on first request, and is unmodifiable.
+   *
+   * @see WebauthRequest#getColl(String)
+   */
+  @Override
+  public Collection<String> getColl(String field) {
+    if (field == null)
+      return Collections.emptySet();
+    Map<String, Collection<String>> cache = collections;
+    if (cache == null) {
+      cache = new ConcurrentHashMap<String, Collection<String>>(4);
+      collections = cache;
+    }
+    Collection<String> coll = cache.get(field);
+    if (coll == null) {
+      HashSet<String> set = new HashSet<String>();
+      Tokenizer items = new Tokenizer(',', get(field));
+      while (items.next())
+        set.add(items.trim().token());
+      coll = Collections.unmodifiableSet(set);
+      cache.put(field, coll);
+    }
+    return coll;
+  }
+
+  /**
+   * Not supported
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void set(String field, String value) {
+    throw new UnsupportedOperationException("ImmutableWebauthRequest can't be modified");
+  }
+
+  /**
+   * Not supported
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void setParam(String paramName, String value) {
+    throw new UnsupportedOperationException("ImmutableWebauthRequest can't be modified");
+  }
+
+  @Override
+  public String toString() {
+    StringBuffer str = new StringBuffer("Webauth request: ");
+    for (int i = 0; i < values.length; ++i) {
+      if (i != 0)
+        str.append(", ");
+      str.append(RequestField.forSlot(i).fieldName).append(": ")
+          .append(values[i] == null ? "" : values[i]);
+    }
+    return str.toString();
+  }
+
+  /**
+   * Returns this request in the format of a URL query string. The string is
+   * built on the first call and the same instance returned thereafter.
+   *
+   * @return a string representing the request in URL query format
+   */
+  @Override
+  public String toQString() {
+    String q = qString;
+    if (q == null) {
+      String[] frags = fragments;
+      if (frags == null) {
+        // deserialized
+        frags = encode(values, new String[RequestField.COUNT]);
+        fragments = frags;
+      }
+      StringBuilder str = new StringBuilder(128);
+      for (int i = 0; i < frags.length; ++i) {
+        if (frags[i] == null)
+          continue;
+        // as WebauthRequest, this leads with '&' if 'ver' is empty
+        if (i != 0)
+          str.append('&');
+        str.append(frags[i]);
+      }
+      q = str.toString();
+      qString = q;
+    }
+    return q;
+  }
+
+  /** Fills in the missing fragments for all non-empty values */
+  private static String[] encode(String[] values, String[] fragments) {
+    for (int i = 0; i < values.length; ++i) {
+      if (fragments[i] == null && values[i] != null && values[i].length() > 0) {
+        try {
+          fragments[i] = RequestField.forSlot(i).fieldName + "="
+              + URLEncoder.encode(values[i], "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          // Shouldn't happen
+          throw new Error(e);
+        }
+      }
+    }
+    return fragments;
+  }
+
+  /**
+   * Builds {@link ImmutableWebauthRequest} objects. A builder can be reused
+   * but is not safe for use by more than one thread at a time.
+   */
+  public static final class Builder {
+
+    private final String[] values = new String[RequestField.COUNT];
+    private final String[] fragments = new String[RequestField.COUNT];
+    private Map<String, String> extra;
+    // Items from the params field while setParam() calls are being made
+    private LinkedHashSet<String> params;
+
+    private Builder() {
+    }
+
+    private Builder(ImmutableWebauthRequest template) {
+      System.arraycopy(template.values, 0, values, 0, values.length);
+      if (template.fragments != null)
+        System.arraycopy(template.fragments, 0, fragments, 0, fragments.length);
+      if (!template.extra.isEmpty())
+        extra = new LinkedHashMap<String, String>(template.extra);
+    }
+
+    /**
+     * Sets a field to a string value
+     *
+     * @param field the name of the field to set
+     * @param value the value, or null to remove the field
+     * @return this builder
+     */
+    public Builder set(String field, String value) {
+      RequestField f = RequestField.forName(field);
+      if (f == null) {
+        if (extra == null)
+          extra = new LinkedHashMap<String, String>();
+        if (value == null)
+          extra.remove(field);
+        else
+          extra.put(field, value);
+        return this;
+      }
+      if (f == RequestField.PARAMS)
+        params = null;
+      values[f.ordinal()] = value;
+      fragments[f.ordinal()] = null;
+      return this;
+    }
+
+    /**
+     * Sets a field to an int value
+     *
+     * @see WebauthRequest#set(String, int)
+     */
+    public Builder set(String field, int value) {
+      return set(field, String.valueOf(value));
+    }
+
+    /**
+     * Sets a field to a date, expressed as the number of milliseconds since
+     * January 1, 1970 GMT.
+     *
+     * @see WebauthRequest#set(String, long)
+     */
+    public Builder set(String field, long value) {
+      return set(field, formatDate(value));
+    }
+
+    /**
+     * Sets a field to the values from a java.util.Collection
+     *
+     * @see WebauthRequest#set(String, Collection)
+     */
+    public Builder set(String field, Collection<String> value) {
+      return set(field, join(value));
+    }
+
+    /**
+     * Sets a parameter embedded inside the params field, replacing any
+     * existing parameter of the same name.
+     *
+     * @see WebauthRequest#setParam(String, String)
+     */
+    public Builder setParam(String paramName, String value) {
+      if (params == null) {
+        params = new LinkedHashSet<String>();
+        String current = values[RequestField.PARAMS.ordinal()];
+        if (current != null) {
+          Tokenizer items = new Tokenizer(',', current);
+          while (items.next())
+            params.add(items.trim().token());
+        }
+      }
+      String prefix = paramName + "=";
+      for (Iterator<String> it = params.iterator(); it.hasNext();) {
+        if (it.next().startsWith(prefix))
+          it.remove();
+      }
+      params.add(prefix + value);
+      values[RequestField.PARAMS.ordinal()] = join(params);
+      fragments[RequestField.PARAMS.ordinal()] = null;
+      return this;
+    }
+
+    /**
+     * Builds the request. Query string fragments already encoded for the
+     * template are reused; only changed fields are encoded.
+     *
+     * @return a new ImmutableWebauthRequest
+     */
+    public ImmutableWebauthRequest build() {
+      // encoded in place so later builds from this builder reuse them too
+      encode(values, fragments);
+      Map<String, String> x;
+      if (extra == null || extra.isEmpty())
+        x = Collections.emptyMap();
+      else
+        x = Collections.unmodifiableMap(new LinkedHashMap<String, String>(extra));
+      return new ImmutableWebauthRequest(values.clone(), fragments.clone(), x);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link StateStore} held in memory in this JVM. It serves a single node,
+ * a set of filters in one container, or tests standing in for a remote
+ * store, and is the near cache of {@link NearCacheStateStore}.
+ *
+ * <p>
+ *
+ * Expired values are never returned. They are swept out every
+ * {@link #PURGE_INTERVAL} writes, so memory use is bounded by the number of
+ * values stored within one time to live.
+ */
+
+public class LocalStateStore implements StateStore {
+
+  /** Number of writes between sweeps for expired values */
+  static final int PURGE_INTERVAL = 1024;
+
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  private final AtomicInteger writes = new AtomicInteger();
+
+  private final Clock clock;
+
+  /** Creates a store timing values out by the system clock */
+  public LocalStateStore() {
+    this(Clock.SYSTEM);
+  }
+
+  /**
+   * Creates a store timing values out by a clock.
+   *
+   * @param clock gives the time
+   */
+  public LocalStateStore(Clock clock) {
+    this.clock = clock;
+  }
+
+  private static final class Entry {
+    final byte[] value;
+    final long expires;
+
+    Entry(byte[] value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  @Override
+  public void put(String key, byte[] value, long ttl) {
+    long now = clock.currentTimeMillis();
+    entries.put(key, new Entry(value, now + ttl));
+    written(now);
+  }
+
+  @Override
+  public void putAll(Map<String, byte[]> values, long ttl) {
+    long now = clock.currentTimeMillis();
+    for (Map.Entry<String, byte[]> e : values.entrySet())
+      entries.put(e.getKey(), new Entry(e.getValue(), now + ttl));
+    written(now);
+  }
+
+  @Override
+  public byte[] take(String key) {
+    Entry e = entries.remove(key);
+    if (e == null || e.expires <= clock.currentTimeMillis())
+      return null;
+    return e.value;
+  }
+
+  @Override
+  public void removeAll(Collection<String> keys) {
+    for (String key : keys)
+      entries.remove(key);
+  }
+
+  @Override
+  public void close() {
+    entries.clear();
+  }
+
+  /**
+   * Returns the number of values held, including any that have expired but
+   * not yet been swept out.
+   *
+   * @return the number of values
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private void written(long now) {
+    if (writes.incrementAndGet() % PURGE_INTERVAL != 0)
+      return;
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+      if (it.next().expires <= now)
+        it.remove();
+    }
+  }
+}
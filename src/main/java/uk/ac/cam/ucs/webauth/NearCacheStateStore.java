@@ -0,0 +1,220 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A {@link StateStore} that writes through to a remote store and keeps a
+ * copy of everything it writes in memory, so that values are usually taken
+ * back on the node that stored them without a round trip.
+ *
+ * <p>
+ *
+ * Writes to the remote store are batched. A thread calling {@link #put}
+ * while another thread's batch is in flight adds its value to the next
+ * batch, which is sent with one call to {@link StateStore#putAll} as soon as
+ * the first batch completes. Each call to <tt>put</tt> returns once its own
+ * value has reached the remote store, so a value is always visible to other
+ * nodes by the time <tt>put</tt> returns. A batch is kept for the longest
+ * time to live of the values in it.
+ *
+ * <p>
+ *
+ * When a value is taken from the near cache, removing it from the remote
+ * store isn't urgent: it is queued and sent ahead of the next batch of
+ * writes, or by {@link #flush}. Until then the remote copy could still be
+ * taken by another node, so responses shouldn't be accepted twice on the
+ * strength of this store alone; see {@link ReplayLog}.
+ */
+
+public class NearCacheStateStore implements StateStore {
+  private static Log log = LogFactory.getLog(NearCacheStateStore.class);
+
+  private final StateStore remote;
+
+  private final LocalStateStore near = new LocalStateStore();
+
+  private final ConcurrentLinkedQueue<String> removals = new ConcurrentLinkedQueue<String>();
+
+  private final Object lock = new Object();
+
+  /** Values waiting for the batch in flight; guarded by lock */
+  private Batch pending = new Batch();
+
+  /** Whether a batch is in flight; guarded by lock */
+  private boolean sending = false;
+
+  private static final class Batch {
+    final Map<String, byte[]> values = new LinkedHashMap<String, byte[]>();
+    long ttl;
+    boolean done;
+    IOException error;
+  }
+
+  /**
+   * Creates a store in front of a remote store.
+   *
+   * @param remote the store shared by all nodes
+   */
+  public NearCacheStateStore(StateStore remote) {
+    if (remote == null)
+      throw new IllegalArgumentException("remote store is null");
+    this.remote = remote;
+  }
+
+  /**
+   * @return the store shared by all nodes
+   */
+  public StateStore getRemote() {
+    return remote;
+  }
+
+  @Override
+  public void put(String key, byte[] value, long ttl) throws IOException {
+    near.put(key, value, ttl);
+    Batch batch;
+    synchronized (lock) {
+      batch = pending;
+      batch.values.put(key, value);
+      batch.ttl = Math.max(batch.ttl, ttl);
+    }
+    await(batch);
+  }
+
+  @Override
+  public void putAll(Map<String, byte[]> values, long ttl) throws IOException {
+    near.putAll(values, ttl);
+    Batch batch;
+    synchronized (lock) {
+      batch = pending;
+      batch.values.putAll(values);
+      batch.ttl = Math.max(batch.ttl, ttl);
+    }
+    await(batch);
+  }
+
+  /**
+   * Returns once a batch has been written, sending it from this thread if no
+   * other batch is in flight.
+   */
+  private void await(Batch batch) throws IOException {
+    synchronized (lock) {
+      try {
+        while (sending && !batch.done)
+          lock.wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for state store");
+      }
+      if (batch.done) {
+        if (batch.error != null)
+          throw batch.error;
+        return;
+      }
+      // later writers start the next batch while this one is sent
+      sending = true;
+      pending = new Batch();
+    }
+
+    IOException error = null;
+    try {
+      remote.putAll(batch.values, batch.ttl);
+    } catch (IOException e) {
+      error = e;
+    } catch (RuntimeException e) {
+      error = new IOException("Unable to write to state store", e);
+    } finally {
+      synchronized (lock) {
+        sending = false;
+        batch.done = true;
+        batch.error = error;
+        lock.notifyAll();
+      }
+    }
+    if (error != null)
+      throw error;
+
+    try {
+      flush();
+    } catch (IOException e) {
+      // the values expire from the remote store in any case
+      log.warn("Unable to remove values from state store", e);
+    }
+  }
+
+  @Override
+  public byte[] take(String key) throws IOException {
+    byte[] value = near.take(key);
+    if (value != null) {
+      removals.add(key);
+      return value;
+    }
+    return remote.take(key);
+  }
+
+  @Override
+  public void removeAll(Collection<String> keys) throws IOException {
+    near.removeAll(keys);
+    remote.removeAll(keys);
+  }
+
+  /**
+   * Sends any queued removals to the remote store.
+   *
+   * @throws IOException if the remote store can't be reached
+   */
+  public void flush() throws IOException {
+    List<String> keys = drainRemovals();
+    if (!keys.isEmpty())
+      remote.removeAll(keys);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      near.close();
+      remote.close();
+    }
+  }
+
+  private List<String> drainRemovals() {
+    List<String> keys = new ArrayList<String>();
+    String key;
+    while ((key = removals.poll()) != null)
+      keys.add(key);
+    return keys;
+  }
+}
@@ -31,23 +31,60 @@
 
 package uk.ac.cam.ucs.webauth;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
@@ -55,8 +92,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import org.apache.commons.codec.binary.Hex;
 
 /**
  * A Servlet Filter which ensures a user is Raven authenticated.
@@ -120,9 +156,112 @@ import org.apache.commons.logging.LogFactory;
  * <td>/WEB-INF/raven/pubkey2.crt</td>
  * <td>Optional</td>
  * </tr>
+ * <tr>
+ * <td>certificateCheckInterval</td>
+ * <td>none</td>
+ * <td>Optional. Seconds between checks for a changed certificate, which is
+ * then loaded in the background</td>
+ * </tr>
+ * <tr>
+ * <td>signatureCacheSize</td>
+ * <td>none</td>
+ * <td>Optional. Number of recently verified response signatures to remember</td>
+ * </tr>
+ * <tr>
+ * <td>signatureAlgorithm</td>
+ * <td>SHA1withRSA</td>
+ * <td>Optional</td>
+ * </tr>
+ * <tr>
+ * <td>signatureProvider</td>
+ * <td>none</td>
+ * <td>Optional. Security provider name, or "fastest" to benchmark the
+ * installed providers at start-up</td>
+ * </tr>
+ * <tr>
+ * <td>warmupIterations</td>
+ * <td>none</td>
+ * <td>Optional. Number of synthetic logins to run at start-up so that the
+ * first users don't wait for class loading and JIT compilation</td>
+ * </tr>
+ * <tr>
+ * <td>replayLog</td>
+ * <td>none</td>
+ * <td>Optional. File in which to record accepted responses, so that none can
+ * be used twice, even after a restart</td>
+ * </tr>
+ * <tr>
+ * <td>replayLogCapacity</td>
+ * <td>65536</td>
+ * <td>Optional. Number of responses the replay log holds. This should be more
+ * than the number of logins expected within the response timeout</td>
+ * </tr>
+ * <tr>
+ * <td>auditLog</td>
+ * <td>none</td>
+ * <td>Optional. File in which to record every login accepted or refused</td>
+ * </tr>
+ * <tr>
+ * <td>auditLogCapacity</td>
+ * <td>8192</td>
+ * <td>Optional. Number of events queued for the audit log's writer</td>
+ * </tr>
+ * <tr>
+ * <td>auditLogPolicy</td>
+ * <td>drop</td>
+ * <td>Optional. "drop" to discard events when the queue is full, or "block"
+ * to make requests wait</td>
+ * </tr>
+ * <tr>
+ * <td>requestBindingKey</td>
+ * <td>none</td>
+ * <td>Optional. Secret of at least 16 characters, the same on every node.
+ * If given, requests are bound to responses with a MAC carried in params
+ * instead of being kept on the server (see {@link RequestBinding}); a
+ * replayLog should be configured as well</td>
+ * </tr>
+ * <tr>
+ * <td>stateStore</td>
+ * <td>none</td>
+ * <td>Optional. Class name of a {@link StateStore} shared by the nodes of a
+ * cluster, in which to keep requests sent to the WLS so that any node can
+ * validate the response</td>
+ * </tr>
+ * <tr>
+ * <td>jmxName</td>
+ * <td>none</td>
+ * <td>Optional. JMX ObjectName under which to register the filter, so that
+ * it can be reconfigured while running (see {@link RavenFilterMBean})</td>
+ * </tr>
+ * <tr>
+ * <td>tenantsConfig</td>
+ * <td>none</td>
+ * <td>Optional. Properties file, relative to the web application, with
+ * configuration for individual virtual hosts</td>
+ * </tr>
  * </table>
  * <br/>
  * 
+ * <h3>Virtual hosts</h3>
+ * 
+ * One filter can serve several virtual hosts with different settings. The
+ * tenantsConfig file gives, for each host name that needs its own
+ * configuration, any of authenticateUrl, certificatePath, serverURLPrefix and
+ * allowedPrincipals:
+ * 
+ * <pre>
+ * www.example.cam.ac.uk.authenticateUrl=https://demo.raven.cam.ac.uk/auth/authenticate.html
+ * www.example.cam.ac.uk.certificatePath=/WEB-INF/raven/demo-pubkey2.crt
+ * www.example.cam.ac.uk.serverURLPrefix=https://www.example.cam.ac.uk/app
+ * other.example.cam.ac.uk.allowedPrincipals=abc123,def456
+ * </pre>
+ * 
+ * Settings a host doesn't give, and hosts not in the file, use the filter's
+ * own configuration, including any later changes to it made through
+ * {@link RavenFilterMBean}. Hosts with the same certificate share one
+ * validator. {@link #reloadTenants()} re-reads the file and replaces the
+ * whole table at once.
+ * 
  * <h3>Error Codes</h3>
  * 
  * Use the following example entries for your web.xml if you wish to provide
@@ -164,8 +303,8 @@ import org.apache.commons.logging.LogFactory;
  *      Cambridge Web Authentication System: WAA->WLS communication protocol</a>
  * 
  */
-public class RavenFilter implements Filter {
-	static Log log = LogFactory.getLog(RavenFilter.class);
+public class RavenFilter implements Filter, RavenFilterMBean {
+	static RavenLog log = RavenLog.getLog(RavenFilter.class);
 
 	/**
 	 * The request parameter name, if present, indicates a WLS Reponse that
@@ -198,6 +337,9 @@ public class RavenFilter implements Filter {
 	/** This is the default name for the raven public key */
 	public static final String DEFAULT_KEYNAME = "webauth-pubkey2";
 
+	/** The key-id of the raven public key stored under DEFAULT_KEYNAME */
+	static final String DEFAULT_KID = "2";
+
 	/** The real path of the public key calculated from the cert init param */
 	private String sCertRealPath = null;
 
@@ -219,6 +361,130 @@ public class RavenFilter implements Filter {
 	 */
 	public static String INIT_PARAM_ALLOWED_PRINCIPALS = "allowedPrincipals";
 
+	/**
+	 * The filter init-param param-name of the number of verified response
+	 * signatures to cache. Optional. By default every signature is verified.
+	 * 
+	 * @see SignatureCache
+	 */
+	public static String INIT_PARAM_SIGNATURE_CACHE_SIZE = "signatureCacheSize";
+
+	/**
+	 * The filter init-param param-name of the signature algorithm used with
+	 * the raven public key. Optional. Defaults to SHA1withRSA
+	 */
+	public static String INIT_PARAM_SIGNATURE_ALGORITHM = "signatureAlgorithm";
+
+	/**
+	 * The filter init-param param-name of the security provider used to
+	 * verify signatures. Optional. Either the name of an installed provider,
+	 * or "fastest" to choose by benchmarking the installed providers when the
+	 * filter starts. By default the JCA's normal provider lookup is used.
+	 */
+	public static String INIT_PARAM_SIGNATURE_PROVIDER = "signatureProvider";
+
+	/**
+	 * The filter init-param param-name of the number of synthetic logins to
+	 * run when the filter starts. Optional. If set, the raven public key and
+	 * signature provider are also loaded in init rather than on the first
+	 * response. By default there is no warm-up.
+	 */
+	public static String INIT_PARAM_WARMUP_ITERATIONS = "warmupIterations";
+
+	/**
+	 * The filter init-param param-name of the path, relative to the web
+	 * application, of a properties file giving configuration for individual
+	 * virtual hosts. Optional. By default every host is treated alike.
+	 */
+	public static String INIT_PARAM_TENANTS_CONFIG = "tenantsConfig";
+
+	/**
+	 * The filter init-param param-name of the file in which to record
+	 * accepted responses. Optional. By default responses aren't recorded.
+	 * 
+	 * @see ReplayLog
+	 */
+	public static String INIT_PARAM_REPLAY_LOG = "replayLog";
+
+	/**
+	 * The filter init-param param-name of the number of responses the replay
+	 * log holds. Optional. Defaults to 65536
+	 */
+	public static String INIT_PARAM_REPLAY_LOG_CAPACITY = "replayLogCapacity";
+
+	static final int DEFAULT_REPLAY_LOG_CAPACITY = 65536;
+
+	/** A well-formed response to measure session state with */
+	private static final String SAMPLE_RESPONSE = "3!200!!20141110T151218Z!"
+			+ "1415632338-25497-14!http://localhost/!abc123!current!pwd!!36000!!2!sig";
+
+	/** How many states to average the measured session size over */
+	private static final int MEASURED_STATES = 1000;
+
+	/**
+	 * The filter init-param param-name of the number of seconds between
+	 * checks for a changed raven certificate, the filter's or a tenant's.
+	 * Optional. By default certificates are only read at start-up and by
+	 * {@link #reloadKeys()}.
+	 */
+	public static String INIT_PARAM_CERTIFICATE_CHECK_INTERVAL = "certificateCheckInterval";
+
+	/** Largest certificate file that will be read */
+	static final int MAX_CERTIFICATE_SIZE = 1024 * 1024;
+
+	/**
+	 * The filter init-param param-name of the file in which to record logins.
+	 * Optional. By default logins aren't recorded.
+	 * 
+	 * @see AuditLog
+	 */
+	public static String INIT_PARAM_AUDIT_LOG = "auditLog";
+
+	/**
+	 * The filter init-param param-name of the number of events queued for
+	 * the audit log. Optional. Defaults to 8192
+	 */
+	public static String INIT_PARAM_AUDIT_LOG_CAPACITY = "auditLogCapacity";
+
+	/**
+	 * The filter init-param param-name of what to do when the audit log's
+	 * queue is full: "drop" or "block". Optional. Defaults to "drop"
+	 */
+	public static String INIT_PARAM_AUDIT_LOG_POLICY = "auditLogPolicy";
+
+	static final int DEFAULT_AUDIT_LOG_CAPACITY = 8192;
+
+	/**
+	 * The filter init-param param-name of the secret used to bind responses
+	 * to requests without keeping the requests on the server. Optional.
+	 * 
+	 * @see RequestBinding
+	 */
+	public static String INIT_PARAM_REQUEST_BINDING_KEY = "requestBindingKey";
+
+	/**
+	 * The filter init-param param-name of the class of {@link StateStore} in
+	 * which to keep requests sent to the WLS. Optional. By default requests
+	 * are only kept in the user's session. Stores other than
+	 * {@link LocalStateStore} are wrapped in a {@link NearCacheStateStore}.
+	 */
+	public static String INIT_PARAM_STATE_STORE = "stateStore";
+
+	/**
+	 * The request parameter, sent to the WLS in params and returned in the
+	 * response, holding the key of the request in the state store
+	 */
+	static final String STATE_PARAM = "ravenState";
+
+	/** Milliseconds for which the state store keeps a request */
+	static final long STATE_TTL = 30 * 60 * 1000L;
+
+	/** Value of signatureProvider that selects the provider by benchmark */
+	static final String PROVIDER_FASTEST = "fastest";
+
+	/** Timed verifications per provider when benchmarking */
+	static final int PROVIDER_BENCHMARK_ITERATIONS = 200;
+
 	/**
 	 * The context parameter to indicate if the filter should be run in testing
 	 * mode. In this mode all requests are automatically authenticated as the
@@ -234,6 +500,13 @@ public class RavenFilter implements Filter {
 
 	public static String CONTEXT_PARAM_URL_PREFIX = "serverURLPrefix";
 
+	/**
+	 * The filter init-param param-name of the JMX ObjectName under which to
+	 * register the filter as an MBean. Optional. By default the filter isn't
+	 * registered.
+	 */
+	public static String INIT_PARAM_JMX_NAME = "jmxName";
+
 	/**
 	 * The url of the raven authenticate page. Optional.
 	 * 
@@ -242,27 +515,74 @@ public class RavenFilter implements Filter {
 	 * Use https://raven.cam.ac.uk/auth/authenticate.html or
 	 * https://demo.raven.cam.ac.uk/auth/authenticate.html
 	 */
-	private String sRavenAuthenticatePage = "https://raven.cam.ac.uk/auth/authenticate.html";
+	static final String DEFAULT_AUTHENTICATE_URL = "https://raven.cam.ac.uk/auth/authenticate.html";
 
-	/** KeyStore used by WebauthValidator class */
-	protected KeyStore keyStore = null;
+	/**
+	 * Everything needed to handle a request, read once per request. Replaced
+	 * as a whole, never changed, so reads need no locking.
+	 */
+	private final AtomicReference<FilterSettings> settings = new AtomicReference<FilterSettings>();
 
-	protected WebauthValidator webauthValidator = null;
+	/** Used to find the real path of tenants' certificates */
+	private ServletContext servletContext = null;
 
-	protected boolean testingMode = false;
+	/** The real path of the tenants config, or null if there is none */
+	private String sTenantsRealPath = null;
 
-	protected String serverURLPrefix = null;
+	/** The validator created before init, which init goes on to use */
+	private WebauthValidator initialValidator = null;
 
-	protected Set<String> allowedPrincipals = null;
+	/** Runs key reloads; created on first use */
+	private ScheduledExecutorService keyLoader = null;
+
+	/** Modification times of the certificates last loaded, by real path */
+	private final Map<String, Long> certificateModified = new ConcurrentHashMap<String, Long>();
+
+	/** The name the filter is registered under with JMX, or null */
+	private ObjectName jmxName = null;
+
+	/** Requests sent to the WLS, shared with other nodes; null if not used */
+	private volatile StateStore stateStore = null;
+
+	/** Record of logins; null if not kept */
+	private volatile AuditLog auditLog = null;
+
+	/** Source of state store keys */
+	private final SecureRandom random = new SecureRandom();
+
+	/** Gives the time for requests, sessions and validation */
+	private volatile Clock clock = Clock.SYSTEM;
+
+	/** Measured size of a session's state, or -1 if not measured */
+	private volatile long sessionStateBytes = -1;
+
+	/** The clock created by init(), which destroy() stops */
+	private CoarseClock ownClock = null;
+
+	/** Whether the clock was set by setClock(), so init() keeps it */
+	private volatile boolean clockSet = false;
 
 	@Override
 	public void init(FilterConfig config) throws ServletException {
+		boolean initialised = false;
+		try {
+			configure(config);
+			initialised = true;
+		} finally {
+			// the container won't call destroy() after a failed init, so
+			// stop any threads and close any files opened so far
+			if (!initialised)
+				destroy();
+		}
+	}
+
+	private void configure(FilterConfig config) throws ServletException {
 		// check if a different authenticate page is configured.
 		// eg https://demo.raven.cam.ac.uk/auth/authenticate.html
 		String authenticatePage = config
 				.getInitParameter(INIT_PARAM_AUTHENTICATE_URL);
-		if (authenticatePage != null)
-			sRavenAuthenticatePage = authenticatePage;
+		if (authenticatePage == null)
+			authenticatePage = DEFAULT_AUTHENTICATE_URL;
 
 		// get the path to the raven certificate or use a default
 		String sCertContextPath = config
@@ -272,33 +592,257 @@ public class RavenFilter implements Filter {
 		// calculate real path from web app relative version
 		sCertRealPath = config.getServletContext()
 				.getRealPath(sCertContextPath);
-		log.debug("Certificate will be loaded from: " + sCertRealPath);
-
-		// ensure KeyStore is initialised.
-		keyStore = getKeyStore();
+		log.debug("Certificate will be loaded from: {}", sCertRealPath);
 
 		// ensure WebauthValidator is initialised.
-		webauthValidator = getWebauthValidator();
+		certificateModified.put(sCertRealPath, new File(sCertRealPath).lastModified());
+		WebauthValidator webauthValidator = getWebauthValidator();
+
+		// every request reads the time, so use a clock that's cheap to read
+		// unless one was set
+		if (!clockSet) {
+			if (ownClock == null)
+				ownClock = new CoarseClock();
+			clock = ownClock;
+		}
+		webauthValidator.setClock(clock);
+
+		String sCacheSize = config
+				.getInitParameter(INIT_PARAM_SIGNATURE_CACHE_SIZE);
+		if (sCacheSize != null) {
+			try {
+				webauthValidator.setSignatureCache(new SignatureCache(Integer
+						.parseInt(sCacheSize.trim())));
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("Invalid "
+						+ INIT_PARAM_SIGNATURE_CACHE_SIZE + ": " + sCacheSize, e);
+			}
+			log.debug("Caching up to {} verified signatures", sCacheSize);
+		}
+
+		String sAlgorithm = config
+				.getInitParameter(INIT_PARAM_SIGNATURE_ALGORITHM);
+		if (sAlgorithm != null) {
+			webauthValidator.setSignatureAlgorithm(DEFAULT_KID, sAlgorithm);
+		}
+
+		String sProvider = config.getInitParameter(INIT_PARAM_SIGNATURE_PROVIDER);
+		if (sProvider != null) {
+			webauthValidator.setSignatureProvider(selectProvider(sProvider,
+					webauthValidator.getSignatureAlgorithm(DEFAULT_KID),
+					webauthValidator.getKeyStore()));
+		}
+
+		String sReplayLog = config.getInitParameter(INIT_PARAM_REPLAY_LOG);
+		if (sReplayLog != null) {
+			int capacity = DEFAULT_REPLAY_LOG_CAPACITY;
+			String sCapacity = config
+					.getInitParameter(INIT_PARAM_REPLAY_LOG_CAPACITY);
+			try {
+				if (sCapacity != null)
+					capacity = Integer.parseInt(sCapacity.trim());
+				webauthValidator.setReplayLog(new ReplayLog(new File(sReplayLog),
+						capacity, webauthValidator.getTimeout() + 2L
+								* webauthValidator.getMaxSkew(), clock));
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("Invalid "
+						+ INIT_PARAM_REPLAY_LOG_CAPACITY + ": " + sCapacity, e);
+			} catch (IOException e) {
+				throw new ServletException("Unable to open replay log "
+						+ sReplayLog, e);
+			}
+			log.debug("Recording up to {} responses in {}", capacity,
+					sReplayLog);
+		}
+
+		String sAuditLog = config.getInitParameter(INIT_PARAM_AUDIT_LOG);
+		if (sAuditLog != null) {
+			int capacity = DEFAULT_AUDIT_LOG_CAPACITY;
+			String sCapacity = config
+					.getInitParameter(INIT_PARAM_AUDIT_LOG_CAPACITY);
+			String sPolicy = config.getInitParameter(INIT_PARAM_AUDIT_LOG_POLICY);
+			AuditLog.OverflowPolicy policy = AuditLog.OverflowPolicy.DROP;
+			try {
+				if (sCapacity != null)
+					capacity = Integer.parseInt(sCapacity.trim());
+				if (sPolicy != null)
+					policy = AuditLog.OverflowPolicy.valueOf(sPolicy.trim()
+							.toUpperCase(Locale.ENGLISH));
+				auditLog = new AuditLog(new File(sAuditLog), capacity, policy);
+				auditLog.setClock(clock);
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("Invalid audit log configuration: "
+						+ INIT_PARAM_AUDIT_LOG_CAPACITY + "=" + sCapacity + ", "
+						+ INIT_PARAM_AUDIT_LOG_POLICY + "=" + sPolicy, e);
+			} catch (IOException e) {
+				throw new ServletException("Unable to open audit log "
+						+ sAuditLog, e);
+			}
+			log.debug("Recording logins in {}", sAuditLog);
+		}
+
+		String sBindingKey = config
+				.getInitParameter(INIT_PARAM_REQUEST_BINDING_KEY);
+		if (sBindingKey != null) {
+			try {
+				webauthValidator.setRequestBinding(new RequestBinding(sBindingKey
+						.getBytes("UTF-8")));
+			} catch (IllegalArgumentException e) {
+				throw new ServletException("Invalid "
+						+ INIT_PARAM_REQUEST_BINDING_KEY + ": " + e.getMessage(), e);
+			} catch (UnsupportedEncodingException e) {
+				// Shouldn't happen
+				throw new Error(e);
+			}
+			if (webauthValidator.getReplayLog() == null)
+				log.warn("Binding requests without a replay log: responses "
+						+ "can be replayed within the timeout");
+			log.debug("Binding requests with a MAC instead of storing them");
+		}
+
+		String sStateStore = config.getInitParameter(INIT_PARAM_STATE_STORE);
+		if (sStateStore != null) {
+			StateStore store;
+			try {
+				store = (StateStore) Class.forName(sStateStore.trim())
+						.getDeclaredConstructor().newInstance();
+			} catch (Exception e) {
+				throw new ServletException("Unable to create state store "
+						+ sStateStore, e);
+			}
+			if (!(store instanceof LocalStateStore))
+				store = new NearCacheStateStore(store);
+			setStateStore(store);
+			log.debug("Keeping raven requests in {}", sStateStore);
+		}
 
 		String sTestingMode = config.getServletContext().getInitParameter(
 				CONTEXT_PARAM_TESTING_MODE);
-		log.debug("Testing mode: " + sTestingMode);
-		testingMode = "true".equals(sTestingMode);
+		log.debug("Testing mode: {}", sTestingMode);
+		boolean testingMode = "true".equals(sTestingMode);
 
-		serverURLPrefix = config.getServletContext().getInitParameter(
+		String serverURLPrefix = config.getServletContext().getInitParameter(
 				CONTEXT_PARAM_URL_PREFIX);
-		log.debug("Server url prefix: " + serverURLPrefix);
+		log.debug("Server url prefix: {}", serverURLPrefix);
 
 		String sAllowedPrincipals = config
 				.getInitParameter(INIT_PARAM_ALLOWED_PRINCIPALS);
 		if (sAllowedPrincipals != null) {
-			allowedPrincipals = new HashSet<String>(
-					Arrays.asList(sAllowedPrincipals.split(",")));
-			log.debug("Restricting access to " + sAllowedPrincipals);
+			log.debug("Restricting access to {}", sAllowedPrincipals);
 		} else {
 			log.debug("Granting access to all principals");
 		}
 
+		settings.set(new FilterSettings(authenticatePage, serverURLPrefix,
+				parsePrincipals(sAllowedPrincipals), testingMode,
+				webauthValidator, createRequestTemplate(), null));
+
+		String sCheckInterval = config
+				.getInitParameter(INIT_PARAM_CERTIFICATE_CHECK_INTERVAL);
+		if (sCheckInterval != null) {
+			long interval;
+			try {
+				interval = Long.parseLong(sCheckInterval.trim());
+			} catch (NumberFormatException e) {
+				throw new ServletException("Invalid "
+						+ INIT_PARAM_CERTIFICATE_CHECK_INTERVAL + ": "
+						+ sCheckInterval, e);
+			}
+			if (interval <= 0)
+				throw new ServletException("Invalid "
+						+ INIT_PARAM_CERTIFICATE_CHECK_INTERVAL + ": "
+						+ sCheckInterval);
+			keyLoader().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					checkKeys();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+			log.debug("Checking for a new certificate every {} seconds",
+					sCheckInterval);
+		}
+
+
+		servletContext = config.getServletContext();
+		String sTenantsConfig = config.getInitParameter(INIT_PARAM_TENANTS_CONFIG);
+		if (sTenantsConfig != null) {
+			sTenantsRealPath = servletContext.getRealPath(sTenantsConfig);
+			reloadTenants();
+		}
+
+		String sWarmup = config.getInitParameter(INIT_PARAM_WARMUP_ITERATIONS);
+		if (sWarmup != null) {
+			int iterations;
+			try {
+				iterations = Integer.parseInt(sWarmup.trim());
+			} catch (NumberFormatException e) {
+				throw new ServletException("Invalid "
+						+ INIT_PARAM_WARMUP_ITERATIONS + ": " + sWarmup, e);
+			}
+			if (iterations < 0)
+				throw new ServletException("Invalid "
+						+ INIT_PARAM_WARMUP_ITERATIONS + ": " + sWarmup);
+			warmUp(iterations);
+		}
+
+		sessionStateBytes = measureSessionStateBytes();
+		if (sessionStateBytes >= 0)
+			log.info("Each logged in session keeps " + sessionStateBytes
+					+ " bytes of state");
+
+		String sJmxName = config.getInitParameter(INIT_PARAM_JMX_NAME);
+		if (sJmxName != null) {
+			try {
+				ObjectName name = new ObjectName(sJmxName.trim());
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+						name);
+				jmxName = name;
+			} catch (JMException e) {
+				throw new ServletException("Unable to register with JMX as "
+						+ sJmxName, e);
+			}
+			log.debug("Registered with JMX as {}", sJmxName);
+		}
+	}
+
+	/**
+	 * Loads everything needed to validate a response and runs synthetic
+	 * logins. Problems are logged rather than stopping the filter, which
+	 * would otherwise only have met them on the first real response.
+	 */
+	private void warmUp(int iterations) {
+		long start = System.currentTimeMillis();
+		FilterSettings s = settings.get();
+		WebauthValidator webauthValidator = s.validator;
+		try {
+			webauthValidator.prepare(DEFAULT_KID);
+		} catch (WebauthException e) {
+			log.warn("Unable to prepare raven public key: " + e.getMessage());
+		}
+		try {
+			new Warmup(webauthValidator.getSignatureProvider(), clock).run(
+					s.requestTemplate, iterations);
+		} catch (IOException e) {
+			log.warn("Warm-up failed", e);
+		} catch (GeneralSecurityException e) {
+			log.warn("Warm-up failed", e);
+		} catch (WebauthException e) {
+			log.warn("Warm-up failed", e);
+		}
+		log.info("Warm-up with " + iterations + " logins took "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Creates the template from which the authentication request for each
+	 * unauthenticated user is built. Only the url and date are set per
+	 * request. Subclasses may override this to add fields such as desc, aauth
+	 * or iact.
+	 * 
+	 * @return the request template
+	 */
+	protected ImmutableWebauthRequest createRequestTemplate() {
+		return ImmutableWebauthRequest.builder().build();
 	}
 
 	/**
@@ -309,16 +853,16 @@ public class RavenFilter implements Filter {
 	 * @return An initialised KeyStore
 	 */
 	protected KeyStore getKeyStore() {
-		// init a new keystore with the Raven certificate,
-		KeyStore newKeyStore;
+		return loadKeyStore(sCertRealPath);
+	}
+
+	/**
+	 * Creates a KeyStore holding the certificate at a path as the raven
+	 * public key.
+	 */
+	private KeyStore loadKeyStore(String sCertRealPath) {
 		try {
-			newKeyStore = KeyStore.getInstance("JKS");
-			newKeyStore.load(null, new char[] {}); // Null InputStream, no password
-			CertificateFactory factory = CertificateFactory
-					.getInstance("X.509");
-			Certificate cert = factory.generateCertificate(new FileInputStream(
-					sCertRealPath));
-			newKeyStore.setCertificateEntry(DEFAULT_KEYNAME, cert);
+			return readKeyStore(sCertRealPath);
 		} catch (KeyStoreException e) {
 			log.error("Unable to setup KeyStore", e);
 			throw new RuntimeException(e);
@@ -335,20 +879,479 @@ public class RavenFilter implements Filter {
 			log.error("General IO problem.  Unable to initialised filter.", e);
 			throw new RuntimeException(e);
 		}
+	}
+
+	/**
+	 * Reads the certificate at a path into a new KeyStore. The file is read
+	 * in one go through a channel and closed before the certificate is
+	 * parsed. No locks are held.
+	 */
+	static KeyStore readKeyStore(String sCertRealPath) throws IOException,
+			KeyStoreException, NoSuchAlgorithmException, CertificateException {
+		byte[] bytes;
+		RandomAccessFile file = new RandomAccessFile(sCertRealPath, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size > MAX_CERTIFICATE_SIZE)
+				throw new IOException("Certificate file too large: "
+						+ sCertRealPath);
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					throw new IOException("Certificate file truncated: "
+							+ sCertRealPath);
+			}
+			bytes = buffer.array();
+		} finally {
+			file.close();
+		}
+
+		// init a new keystore with the Raven certificate,
+		KeyStore newKeyStore = KeyStore.getInstance("JKS");
+		newKeyStore.load(null, new char[] {}); // Null InputStream, no password
+		Certificate cert = CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(bytes));
+		newKeyStore.setCertificateEntry(DEFAULT_KEYNAME, cert);
+		return newKeyStore;
+	}
+
+	/**
+	 * Re-reads the raven certificate, and those of any tenants, in the
+	 * background and gives each one that loads to its validator. Requests
+	 * carry on with the old keys until the new ones are in place and never
+	 * wait for the files. A tenant certificate that can't be loaded is
+	 * logged and its old key kept.
+	 * 
+	 * @return the outcome, which holds the filter's new KeyStore or the
+	 *         reason it couldn't be loaded
+	 */
+	public Future<KeyStore> reloadKeys() {
+		return keyLoader().submit(new Callable<KeyStore>() {
+			@Override
+			public KeyStore call() throws Exception {
+				return loadKeys();
+			}
+		});
+	}
+
+	/** Loads and publishes every certificate; run by the key loader */
+	private KeyStore loadKeys() throws Exception {
+		for (Map.Entry<String, WebauthValidator> e : tenantCertificates()
+				.entrySet()) {
+			try {
+				loadKeys(e.getKey(), e.getValue());
+			} catch (Exception ex) {
+				// logged, and the tenant keeps its key
+			}
+		}
+		return loadKeys(sCertRealPath, getWebauthValidator());
+	}
 
+	/** Loads a certificate and gives it to the validator that uses it */
+	private KeyStore loadKeys(String certRealPath, WebauthValidator validator)
+			throws Exception {
+		long modified = new File(certRealPath).lastModified();
+		KeyStore newKeyStore;
+		try {
+			newKeyStore = readKeyStore(certRealPath);
+		} catch (Exception e) {
+			log.warn("Unable to reload certificate " + certRealPath
+					+ ", keeping the current key", e);
+			throw e;
+		}
+		certificateModified.put(certRealPath, modified);
+		validator.setKeyStore(newKeyStore);
+		log.info("Loaded raven certificate " + certRealPath);
 		return newKeyStore;
+	}
+
+	/** Reloads any certificate whose file has changed */
+	private void checkKeys() {
+		Map<String, WebauthValidator> certificates = new HashMap<String, WebauthValidator>(
+				tenantCertificates());
+		certificates.put(sCertRealPath, getWebauthValidator());
+		for (Map.Entry<String, WebauthValidator> e : certificates.entrySet()) {
+			Long loaded = certificateModified.get(e.getKey());
+			if (loaded != null
+					&& new File(e.getKey()).lastModified() == loaded.longValue())
+				continue;
+			try {
+				loadKeys(e.getKey(), e.getValue());
+			} catch (Exception ex) {
+				// logged, and tried again next time
+			}
+		}
+	}
+
+	/** The tenants' own certificates and their validators, by real path */
+	private Map<String, WebauthValidator> tenantCertificates() {
+		TenantTable tenants = settings.get().tenants;
+		if (tenants == null)
+			return Collections.emptyMap();
+		Map<String, WebauthValidator> certificates = new HashMap<String, WebauthValidator>(
+				tenants.validatorsByCertificate());
+		certificates.remove(sCertRealPath);
+		return certificates;
+	}
+
+	/** Returns the key loader thread's executor, creating it if needed */
+	private synchronized ScheduledExecutorService keyLoader() {
+		if (keyLoader == null) {
+			keyLoader = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "raven-key-loader");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return keyLoader;
+	}
 
+	/**
+	 * Finds the named security provider or, if the name is "fastest", the
+	 * installed provider that verifies signatures with the raven public key
+	 * quickest.
+	 */
+	private Provider selectProvider(String name, String algorithm,
+			KeyStore keyStore) throws ServletException {
+		if (!PROVIDER_FASTEST.equalsIgnoreCase(name.trim())) {
+			Provider provider = Security.getProvider(name.trim());
+			if (provider == null)
+				throw new ServletException("No security provider named " + name);
+			log.debug("Verifying signatures with provider {}", provider.getName());
+			return provider;
+		}
+		try {
+			long start = System.currentTimeMillis();
+			Provider provider = SignatureProviders.fastest(algorithm, keyStore
+					.getCertificate(DEFAULT_KEYNAME).getPublicKey(),
+					PROVIDER_BENCHMARK_ITERATIONS);
+			log.info("Selected provider " + provider.getName() + " for "
+					+ algorithm + " in "
+					+ (System.currentTimeMillis() - start) + "ms");
+			return provider;
+		} catch (NoSuchAlgorithmException e) {
+			throw new ServletException("Unable to select a provider for "
+					+ algorithm, e);
+		} catch (KeyStoreException e) {
+			throw new ServletException("Unable to read raven public key", e);
+		}
 	}
 
 	/**
-	 * Gets a WebauthValidator and initialises if necessary.
+	 * Reads the tenants config file given by the tenantsConfig init-param and
+	 * replaces the per-host configuration with it. Requests being handled
+	 * while this runs use either the old or the new configuration, never a
+	 * mixture. Validators are kept for certificates that were already in
+	 * use, along with anything they have cached. Does nothing if there is no
+	 * tenants config.
+	 * 
+	 * @throws ServletException
+	 *             if the file can't be read or is invalid, in which case the
+	 *             existing configuration is kept
+	 */
+	public void reloadTenants() throws ServletException {
+		if (sTenantsRealPath == null)
+			return;
+
+		Properties props = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(sTenantsRealPath);
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new ServletException("Unable to read tenants config "
+					+ sTenantsRealPath, e);
+		}
+
+		// host -> setting -> value
+		Map<String, Map<String, String>> byHost = new LinkedHashMap<String, Map<String, String>>();
+		for (String key : props.stringPropertyNames()) {
+			int dot = key.lastIndexOf('.');
+			String setting = key.substring(dot + 1);
+			if (dot <= 0
+					|| !(setting.equals(INIT_PARAM_AUTHENTICATE_URL)
+							|| setting.equals(INIT_PARAM_CERTIFICATE_PATH)
+							|| setting.equals(CONTEXT_PARAM_URL_PREFIX) || setting
+								.equals(INIT_PARAM_ALLOWED_PRINCIPALS)))
+				throw new ServletException("Invalid tenants config entry: "
+						+ key);
+			String host = key.substring(0, dot);
+			Map<String, String> hostSettings = byHost.get(host);
+			if (hostSettings == null) {
+				hostSettings = new HashMap<String, String>();
+				byHost.put(host, hostSettings);
+			}
+			hostSettings.put(setting, props.getProperty(key).trim());
+		}
+
+		FilterSettings current = settings.get();
+		TenantTable previous = current.tenants;
+		Map<String, WebauthValidator> validators = new HashMap<String, WebauthValidator>();
+		validators.put(sCertRealPath, getWebauthValidator());
+		List<TenantTable.Tenant> list = new ArrayList<TenantTable.Tenant>();
+		for (Map.Entry<String, Map<String, String>> e : byHost.entrySet()) {
+			Map<String, String> hostSettings = e.getValue();
+
+			// settings not given are left null and taken from the filter's
+			// settings when used, so follow changes to them
+			String authenticatePage = hostSettings
+					.get(INIT_PARAM_AUTHENTICATE_URL);
+			String prefix = hostSettings.get(CONTEXT_PARAM_URL_PREFIX);
+			Set<String> principals = parsePrincipals(hostSettings
+					.get(INIT_PARAM_ALLOWED_PRINCIPALS));
+
+			String certPath = sCertRealPath;
+			String sCertPath = hostSettings.get(INIT_PARAM_CERTIFICATE_PATH);
+			if (sCertPath != null)
+				certPath = servletContext.getRealPath(sCertPath);
+			WebauthValidator validator = validators.get(certPath);
+			if (validator == null && previous != null)
+				validator = previous.validatorFor(certPath);
+			if (validator == null) {
+				try {
+					validator = createTenantValidator(certPath);
+				} catch (RuntimeException ex) {
+					throw new ServletException("Unable to load certificate "
+							+ sCertPath + " for " + e.getKey(), ex);
+				}
+			}
+			validators.put(certPath, validator);
+
+			TenantTable.Tenant tenant = new TenantTable.Tenant(e.getKey(),
+					authenticatePage, prefix, principals, certPath, validator);
+			log.debug("Tenant {}", tenant);
+			list.add(tenant);
+		}
+
+		TenantTable table = new TenantTable(list, validators);
+		FilterSettings s;
+		do {
+			s = settings.get();
+		} while (!settings.compareAndSet(s, s.withTenants(table)));
+		log.info("Loaded configuration for " + list.size() + " hosts from "
+				+ sTenantsRealPath);
+	}
+
+	/**
+	 * Creates a validator for a tenant's certificate with the same settings
+	 * as the filter's own validator.
+	 */
+	private WebauthValidator createTenantValidator(String certRealPath) {
+		long modified = new File(certRealPath).lastModified();
+		WebauthValidator validator = new WebauthValidator(
+				loadKeyStore(certRealPath));
+		certificateModified.put(certRealPath, modified);
+		validator.copySettings(getWebauthValidator());
+		return validator;
+	}
+
+	/**
+	 * Gets the WebauthValidator, or creates one with the key from
+	 * {@link #getKeyStore()} if the filter hasn't been initialised.
+	 * {@link #init(FilterConfig)} uses the validator this returns for every
+	 * request.
 	 * 
 	 */
 	protected WebauthValidator getWebauthValidator() {
-		if (webauthValidator == null) {
-			webauthValidator = new WebauthValidator(getKeyStore());
+		FilterSettings s = settings.get();
+		if (s != null)
+			return s.validator;
+		synchronized (this) {
+			if (initialValidator == null)
+				initialValidator = new WebauthValidator(getKeyStore());
+			return initialValidator;
+		}
+	}
+
+	/** The settings, for a change to them made after init() */
+	private FilterSettings initialisedSettings() {
+		FilterSettings s = settings.get();
+		if (s == null)
+			throw new IllegalStateException("RavenFilter isn't initialised");
+		return s;
+	}
+
+	/** Splits a comma separated list of principals; null gives null */
+	private static Set<String> parsePrincipals(String sPrincipals) {
+		if (sPrincipals == null)
+			return null;
+		return new HashSet<String>(Arrays.asList(sPrincipals.split(",")));
+	}
+
+	@Override
+	public String getAuthenticateUrl() {
+		FilterSettings s = settings.get();
+		return s == null ? null : s.authenticatePage;
+	}
+
+	@Override
+	public void setAuthenticateUrl(String authenticateUrl) {
+		if (authenticateUrl == null)
+			throw new IllegalArgumentException("No authenticate url");
+		FilterSettings s;
+		do {
+			s = initialisedSettings();
+		} while (!settings.compareAndSet(s,
+				s.withAuthenticatePage(authenticateUrl)));
+		log.info("Sending users to " + authenticateUrl);
+	}
+
+	@Override
+	public String getServerURLPrefix() {
+		FilterSettings s = settings.get();
+		return s == null ? null : s.serverURLPrefix;
+	}
+
+	@Override
+	public void setServerURLPrefix(String serverURLPrefix) {
+		FilterSettings s;
+		do {
+			s = initialisedSettings();
+		} while (!settings.compareAndSet(s,
+				s.withServerURLPrefix(serverURLPrefix)));
+		log.info("Server url prefix is now " + serverURLPrefix);
+	}
+
+	@Override
+	public String getAllowedPrincipals() {
+		FilterSettings s = settings.get();
+		Set<String> principals = s == null ? null : s.allowedPrincipals;
+		if (principals == null)
+			return null;
+		StringBuilder sb = new StringBuilder();
+		for (String principal : new TreeSet<String>(principals)) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(principal);
 		}
-		return webauthValidator;
+		return sb.toString();
+	}
+
+	@Override
+	public void setAllowedPrincipals(String allowedPrincipals) {
+		Set<String> principals = parsePrincipals(allowedPrincipals);
+		FilterSettings s;
+		do {
+			s = initialisedSettings();
+		} while (!settings.compareAndSet(s, s.withAllowedPrincipals(principals)));
+		log.info(allowedPrincipals == null ? "Granting access to all principals"
+				: "Restricting access to " + allowedPrincipals);
+	}
+
+	@Override
+	public boolean isTestingMode() {
+		FilterSettings s = settings.get();
+		return s != null && s.testingMode;
+	}
+
+	@Override
+	public int getTenantCount() {
+		FilterSettings s = settings.get();
+		TenantTable table = s == null ? null : s.tenants;
+		return table == null ? 0 : table.size();
+	}
+
+	@Override
+	public long getSessionStateBytes() {
+		return sessionStateBytes;
+	}
+
+	/**
+	 * Measures what building a session's state allocates, which is what the
+	 * session keeps: the principal is shared by the user's sessions and the
+	 * strings come from the response.
+	 * 
+	 * @return bytes per state, or -1 if the JVM can't say
+	 */
+	static long measureSessionStateBytes() {
+		try {
+			WebauthResponse response = new WebauthResponse(SAMPLE_RESPONSE);
+			new RavenState(200, response, 0, null);
+			long before = Allocations.allocatedBytes();
+			if (before < 0)
+				return -1;
+			for (int i = 0; i < MEASURED_STATES; ++i)
+				new RavenState(200, response, i, null);
+			return (Allocations.allocatedBytes() - before) / MEASURED_STATES;
+		} catch (WebauthException e) {
+			// Shouldn't happen
+			throw new Error(e);
+		}
+	}
+
+	@Override
+	public void reloadCertificate() throws Exception {
+		try {
+			reloadKeys().get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets the store in which requests sent to the WLS are kept, so that the
+	 * response can be validated by another node sharing the store. Requests
+	 * are kept in the user's session as well.
+	 * 
+	 * @param stateStore
+	 *            the store, or null to keep requests only in the session
+	 */
+	public void setStateStore(StateStore stateStore) {
+		this.stateStore = stateStore;
+	}
+
+	/**
+	 * @return the store in which requests sent to the WLS are kept, or null
+	 */
+	public StateStore getStateStore() {
+		return stateStore;
+	}
+
+	/**
+	 * Sets the clock giving the time for requests sent to the WLS, the state
+	 * of logged in users and validation, for example to control time in
+	 * tests. init() sets a {@link CoarseClock} unless a clock has been set,
+	 * so one set before init() also gives the time while the filter starts,
+	 * for example when the replay log is opened. The clock is given to the
+	 * filter's validators, including those of tenants, and its audit log.
+	 * 
+	 * @param clock
+	 *            the clock
+	 */
+	public void setClock(Clock clock) {
+		if (clock == null)
+			throw new IllegalArgumentException("Clock is null");
+		this.clock = clock;
+		clockSet = true;
+		AuditLog audit = auditLog;
+		if (audit != null)
+			audit.setClock(clock);
+		FilterSettings s = settings.get();
+		if (s != null) {
+			s.validator.setClock(clock);
+			if (s.tenants != null) {
+				for (WebauthValidator validator : s.tenants.validators())
+					validator.setClock(clock);
+			}
+		}
+	}
+
+	/**
+	 * @return the clock giving the time for requests and validation
+	 */
+	public Clock getClock() {
+		return clock;
 	}
 
 	/*
@@ -358,6 +1361,56 @@ public class RavenFilter implements Filter {
 	 */
 	@Override
 	public void destroy() {
+		synchronized (this) {
+			if (keyLoader != null)
+				keyLoader.shutdownNow();
+			keyLoader = null;
+		}
+		if (ownClock != null) {
+			ownClock.close();
+			if (clock == ownClock)
+				clock = Clock.SYSTEM;
+		}
+		ownClock = null;
+		if (jmxName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						jmxName);
+			} catch (JMException e) {
+				log.warn("Unable to unregister " + jmxName + " from JMX", e);
+			}
+			jmxName = null;
+		}
+		FilterSettings s = settings.get();
+		WebauthValidator validator;
+		synchronized (this) {
+			// a failed init may have left the replay log on this one
+			validator = s == null ? initialValidator : s.validator;
+		}
+		ReplayLog replayLog = validator == null ? null : validator.getReplayLog();
+		if (replayLog != null) {
+			try {
+				replayLog.close();
+			} catch (IOException e) {
+				log.warn("Unable to close replay log", e);
+			}
+		}
+		if (auditLog != null) {
+			try {
+				auditLog.close();
+			} catch (IOException e) {
+				log.warn("Unable to close audit log", e);
+			}
+			auditLog = null;
+		}
+		StateStore store = stateStore;
+		if (store != null) {
+			try {
+				store.close();
+			} catch (IOException e) {
+				log.warn("Unable to close state store", e);
+			}
+		}
 	}
 
 	/*
@@ -380,9 +1433,14 @@ public class RavenFilter implements Filter {
 
 		HttpServletRequest request = (HttpServletRequest) servletReq;
 		HttpServletResponse response = (HttpServletResponse) servletResp;
-		HttpSession session = request.getSession();
-
-		if (testingMode) {
+		// One consistent view of the configuration for the whole request
+		FilterSettings s = settings.get();
+		// With request binding no session is needed until a user logs in
+		RequestBinding binding = s.validator.getRequestBinding();
+		HttpSession session = request.getSession(s.testingMode
+				|| binding == null);
+
+		if (s.testingMode) {
 			// If we are in testing mode then we check to see if the requestor
 			// has specified which user they would like to masquerade as
 			String user = request
@@ -402,7 +1460,18 @@ public class RavenFilter implements Filter {
 			return;
 		}
 
-		log.debug("RavenFilter running for: " + request.getServletPath());
+		log.debug("RavenFilter running for: {}", request.getServletPath());
+
+		// Use the configuration for this virtual host, if it has its own
+		TenantTable.Tenant tenant = s.tenants == null ? null : s.tenants
+				.get(request.getServerName());
+		Set<String> allowedPrincipals = tenant == null
+				|| tenant.allowedPrincipals == null ? s.allowedPrincipals
+				: tenant.allowedPrincipals;
+		String authenticatePage = tenant == null
+				|| tenant.authenticatePage == null ? s.authenticatePage
+				: tenant.authenticatePage;
+		String tenantHost = tenant == null ? null : tenant.host;
 
 		// Check for an authentication reply in the request
 		// If its a POST request then we cannot read parameters because this
@@ -410,22 +1479,34 @@ public class RavenFilter implements Filter {
 		// its a post request then assume that there is no WLS-RESPONSE in the
 		// request. This is reasonable because WLS-Response is sent from the
 		// raven server and it won't do that with a POST request.
-		String wlsResponse = null;
+		// The response is parsed straight from the query string rather than
+		// with getParameter(), which would decode every parameter first.
+		String queryString = null;
+		int wlsResponseOffset = -1;
 		if (!"POST".equals(request.getMethod())) {
-			wlsResponse = request.getParameter(WLS_RESPONSE_PARAM);
-			log.debug("WLS-Response is " + wlsResponse);
+			queryString = request.getQueryString();
+			wlsResponseOffset = WebauthResponse.responseOffset(queryString);
+			log.debug("Query string is {}", queryString);
 		} else {
 			log.debug("Not checking WLS-Response because we have a POST request");
 		}
 
 		// WebauthResponse storedResponse = (WebauthResponse)
 		// session.getAttribute(WLS_RESPONSE_PARAM);
-		WebauthRequest storedRavenReq = (WebauthRequest) session
-				.getAttribute(SESS_RAVEN_REQ_KEY);
-		log.debug("Stored raven request is " + storedRavenReq);
-		RavenState storedState = (RavenState) session
-				.getAttribute(SESS_STORED_STATE_KEY);
-		log.debug("Stored state is " + storedState);
+		WebauthRequest storedRavenReq = session == null ? null
+				: (WebauthRequest) session.getAttribute(SESS_RAVEN_REQ_KEY);
+		log.debug("Stored raven request is {}", storedRavenReq);
+		RavenState storedState = session == null ? null
+				: (RavenState) session.getAttribute(SESS_STORED_STATE_KEY);
+		log.debug("Stored state is {}", storedState);
+		// The host comes from the client, and another tenant may trust a
+		// different WLS, so a login only counts for the tenant it was for
+		if (storedState != null
+				&& (storedState.tenant == null ? tenantHost != null
+						: !storedState.tenant.equals(tenantHost))) {
+			log.debug("Ignoring stored state for tenant {}", storedState.tenant);
+			storedState = null;
+		}
 		/*
 		 * Check the stored state if we have it
 		 */
@@ -448,11 +1529,11 @@ public class RavenFilter implements Filter {
 			 * We do not check for state.last or state.issue being in the
 			 * future. State.issue is already checked in the WebauthValidator
 			 * when the state is initially created. State.last is set by
-			 * System.currentTimeMillis at state creation time and therefore
+			 * the filter's clock at state creation time and therefore
 			 * cannot be in the future.
 			 */
 
-			if (wlsResponse == null || wlsResponse.length() == 0) {
+			if (wlsResponseOffset < 0) {
 				log.debug("Accepting stored session");
 				if (allowedPrincipals == null
 						|| allowedPrincipals.contains(storedState.principal
@@ -474,35 +1555,46 @@ public class RavenFilter implements Filter {
 		 * same request arrived a few minutes later when the first session would
 		 * have expired, thus removing the stored state)
 		 */
-		if (wlsResponse != null && wlsResponse.length() > 0) {
+		if (wlsResponseOffset >= 0) {
 		  WebauthResponse webauthResponse = null;
 			try {
-			  webauthResponse = new WebauthResponse(wlsResponse);
+			  webauthResponse = WebauthResponse.fromQueryString(queryString,
+			      wlsResponseOffset);
+			  if (session == null)
+			    session = request.getSession();
 	      session.setAttribute(WLS_RESPONSE_PARAM, webauthResponse);
-				log.debug("Validating received response with stored request");
-				if (storedRavenReq == null) {
-					response.sendError(500,
-							"Failed to find a stored Raven request in the user's session.");
-					return;
+				WebauthValidator validator = tenant == null ? s.validator
+						: tenant.validator;
+				if (binding != null) {
+					log.debug("Validating received response with bound request");
+					validator.validate(webauthResponse);
+				} else {
+					log.debug("Validating received response with stored request");
+					// The request may have been sent by another node
+					WebauthRequest sharedRavenReq = takeSharedRequest(webauthResponse);
+					if (sharedRavenReq != null)
+						storedRavenReq = sharedRavenReq;
+					if (storedRavenReq == null) {
+						audit(request, webauthResponse, "No stored request");
+						response.sendError(500,
+								"Failed to find a stored Raven request in the user's session.");
+						return;
+					}
+					validator.validate(storedRavenReq, webauthResponse);
 				}
-				this.getWebauthValidator().validate(storedRavenReq,
-						webauthResponse);
-
-				RavenPrincipal principal = new RavenPrincipal(
-						webauthResponse.get("principal"));
-				RavenState state = new RavenState(200,
-						webauthResponse.get("issue"),
-						webauthResponse.get("life"), webauthResponse.get("id"),
-						principal, webauthResponse.get("auth"),
-						webauthResponse.get("sso"),
-						webauthResponse.get("params"));
-
-				log.debug("Storing new state " + state.toString());
+				if (auditLog != null)
+					auditLog.success(request.getRemoteAddr(), webauthResponse);
+
+				RavenState state = new RavenState(200, webauthResponse,
+						clock.currentTimeMillis(), tenantHost);
+
+				log.debug("Storing new state {}", state);
 				session.setAttribute(SESS_STORED_STATE_KEY, state);
-				session.setAttribute(ATTR_REMOTE_USER,
-						state.principal.getName());
-				request.setAttribute(ATTR_REMOTE_USER,
-						state.principal.getName());
+				session.setAttribute(ATTR_REMOTE_USER, state.principal.getName());
+				request.setAttribute(ATTR_REMOTE_USER, state.principal.getName());
+				// only the compact state is kept for the rest of the session
+				session.removeAttribute(WLS_RESPONSE_PARAM);
+				session.removeAttribute(SESS_RAVEN_REQ_KEY);
 
 				/*
 				 * We do a redirect here so the user doesn't see the
@@ -511,13 +1603,15 @@ public class RavenFilter implements Filter {
 				response.sendRedirect(webauthResponse.get("url"));
 				return;
 			} catch (WebauthException e) {
-				log.debug("Response validation failed - " + e.getMessage());
+				log.debug("Response validation failed - {}", e.getMessage());
+				audit(request, webauthResponse, e.getMessage());
 				try {
 				  // If we can get hold of a status
           if (webauthResponse != null) {
-            int status = webauthResponse.getInt("status");
-            if (status > 0) {
-              response.sendError(status, e.getMessage());
+            int status = webauthResponse.status();
+            // a response that reports success but failed isn't sent as one
+            if (status > 0 && status != WebauthStatus.SUCCESS.code()) {
+              response.sendError(WebauthStatus.httpStatus(status), e.getMessage());
               return;
             }
           }
@@ -535,15 +1629,16 @@ public class RavenFilter implements Filter {
 			 * No WLS-Response, no stored state. Redirect the user to Raven to
 			 * log in
 			 */
-			WebauthRequest webauthReq = new WebauthRequest();
-
 			StringBuffer url = request.getRequestURL();
+			String serverURLPrefix = tenant == null
+					|| tenant.serverURLPrefix == null ? s.serverURLPrefix
+					: tenant.serverURLPrefix;
 			if (serverURLPrefix != null) {
 				// strip off everything up to and including the servlet path and
 				// replace with the prefix
 				String contextPath = request.getContextPath();
-				log.debug("Context path is: " + contextPath);
-				log.debug("Request url is: " + request.getRequestURL());
+				log.debug("Context path is: {}", contextPath);
+				log.debug("Request url is: {}", url);
 				int index = url.indexOf(contextPath);
 				if (index == -1) {
 					log.error("Failed to find context path (" + contextPath
@@ -559,65 +1654,219 @@ public class RavenFilter implements Filter {
 				url.append('?');
 				url.append(request.getQueryString());
 			}
-			log.debug("Redirecting with url " + url.toString());
-			webauthReq.set("url", url.toString());
+			log.debug("Redirecting with url {}", url);
+			ImmutableWebauthRequest.Builder builder = s.requestTemplate
+					.toBuilder().set("url", url.toString())
+					.set("date", clock.currentTimeMillis());
+			if (binding != null) {
+				// nothing is kept on the server
+				WebauthRequest webauthReq = binding.bind(builder.build());
+				response.sendRedirect(authenticatePage + "?"
+						+ webauthReq.toQString());
+				return;
+			}
+			StateStore store = stateStore;
+			String stateKey = null;
+			if (store != null) {
+				stateKey = newStateKey();
+				builder.setParam(STATE_PARAM, stateKey);
+			}
+			WebauthRequest webauthReq = builder.build();
 			session.setAttribute(SESS_RAVEN_REQ_KEY, webauthReq);
-			response.sendRedirect(sRavenAuthenticatePage + "?"
+			if (store != null) {
+				try {
+					store.put(stateKey,
+							webauthReq.toQString().getBytes("UTF-8"), STATE_TTL);
+				} catch (IOException e) {
+					// the response can still be validated by this node
+					log.warn("Unable to store raven request", e);
+				}
+			}
+			response.sendRedirect(authenticatePage + "?"
 					+ webauthReq.toQString());
 			return;
 		}
 	}
 
-	class RavenPrincipal implements Principal {
-		protected String name;
+	/** Records a failed login, if there is an audit log */
+	private void audit(HttpServletRequest request,
+			WebauthResponse webauthResponse, String reason) {
+		if (auditLog != null)
+			auditLog.failure(request.getRemoteAddr(), webauthResponse, reason);
+	}
+
+	/**
+	 * Takes the request a response answers from the state store.
+	 * 
+	 * @return the request, or null if there is no state store or it doesn't
+	 *         have the request
+	 */
+	private WebauthRequest takeSharedRequest(WebauthResponse webauthResponse) {
+		StateStore store = stateStore;
+		if (store == null)
+			return null;
+		String stateKey = webauthResponse.getParam(STATE_PARAM);
+		if (stateKey == null)
+			return null;
+		try {
+			byte[] value = store.take(stateKey);
+			if (value == null)
+				return null;
+			return ImmutableWebauthRequest.fromQString(new String(value,
+					"UTF-8"));
+		} catch (IOException e) {
+			log.warn("Unable to take raven request from state store", e);
+		} catch (IllegalArgumentException e) {
+			log.warn("Ignoring malformed raven request in state store", e);
+		}
+		return null;
+	}
+
+	/** Returns a new random key for the state store */
+	private String newStateKey() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		return new String(Hex.encodeHex(bytes));
+	}
+
+	/**
+	 * An authenticated user. Instances are interned: while any session holds
+	 * the principal for a name, {@link #intern} returns that same instance,
+	 * so repeated logins by the same user share one principal and one name
+	 * string, and equal principals are usually identical. The cache only
+	 * holds principals weakly, so users who have left are forgotten.
+	 */
+	static final class RavenPrincipal implements Principal, Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final ConcurrentHashMap<String, Ref> cache = new ConcurrentHashMap<String, Ref>();
+
+		private static final ReferenceQueue<RavenPrincipal> cleared = new ReferenceQueue<RavenPrincipal>();
 
-		public RavenPrincipal(String name) {
+		/** A cache entry, which knows its key so it can be removed */
+		private static final class Ref extends WeakReference<RavenPrincipal> {
+			final String name;
+
+			Ref(RavenPrincipal principal) {
+				super(principal, cleared);
+				this.name = principal.name;
+			}
+		}
+
+		private final String name;
+
+		private RavenPrincipal(String name) {
 			this.name = name;
 		}
 
+		/**
+		 * Returns the principal for a name, shared with every other caller
+		 * asking for the same name while it is in use.
+		 */
+		static RavenPrincipal intern(String name) {
+			expunge();
+			while (true) {
+				Ref ref = cache.get(name);
+				RavenPrincipal principal = ref == null ? null : ref.get();
+				if (principal != null)
+					return principal;
+				principal = new RavenPrincipal(name);
+				Ref fresh = new Ref(principal);
+				if (ref == null ? cache.putIfAbsent(name, fresh) == null : cache
+						.replace(name, ref, fresh))
+					return principal;
+			}
+		}
+
+		/** Number of names cached, including any not yet expunged */
+		static int cacheSize() {
+			expunge();
+			return cache.size();
+		}
+
+		private static void expunge() {
+			Reference<? extends RavenPrincipal> ref;
+			while ((ref = cleared.poll()) != null)
+				cache.remove(((Ref) ref).name, ref);
+		}
+
 		@Override
 		public String getName() {
 			return name;
 		}
 
+		@Override
+		public boolean equals(Object o) {
+			return o == this
+					|| (o instanceof RavenPrincipal && name
+							.equals(((RavenPrincipal) o).name));
+		}
+
+		@Override
+		public int hashCode() {
+			return name.hashCode();
+		}
+
 		@Override
 		public String toString() {
 			return "RavenPrincipal--" + name;
 		}
 
+		/** Sessions read back from disk share the interned instance */
+		private Object readResolve() {
+			return intern(name);
+		}
+
 	}// end inner class RavenPrincipal
 
-	class RavenState {
+	/**
+	 * What is kept in the session for an authenticated user. Only the fields
+	 * needed to decide on later requests are kept, as primitives where
+	 * possible; auth and sso come from a small set of values and are
+	 * interned. The principal is shared with other sessions of the same user,
+	 * and its name is the same string instance as the session's
+	 * {@link #ATTR_REMOTE_USER} attribute.
+	 */
+	static final class RavenState implements Serializable {
 
-		int status;
+		private static final long serialVersionUID = 1L;
 
-		String issue;
+		final int status;
 
-		long last;
+		/** Life in seconds, or -1 if the response gave none */
+		final int life;
 
-		String life;
+		/** Issue time in milliseconds */
+		final long issue;
 
-		String id;
+		final long last;
 
-		Principal principal;
+		final RavenPrincipal principal;
 
-		String aauth;
+		final String auth;
 
-		String sso;
+		final String sso;
 
-		String params;
+		/** Host of the tenant the user logged in to, or null for the filter's own */
+		final String tenant;
 
-		public RavenState(int status, String issue, String life, String id,
-				Principal principal, String aauth, String sso, String params) {
+		RavenState(int status, WebauthResponse response, long last,
+				String tenant) throws WebauthException {
 			this.status = status;
-			this.issue = issue;
-			this.last = System.currentTimeMillis();
+			this.tenant = tenant;
+			this.issue = response.issueMillis();
+			this.last = last;
+			int life;
+			try {
+				life = response.getInt("life");
+			} catch (WebauthException e) {
+				life = -1;
+			}
 			this.life = life;
-			this.id = id;
-			this.principal = principal;
-			this.aauth = aauth;
-			this.sso = sso;
-			this.params = params;
+			this.principal = RavenPrincipal.intern(response.get("principal"));
+			this.auth = response.get("auth").intern();
+			this.sso = response.get("sso").intern();
 		}
 
 		@Override
@@ -631,16 +1880,14 @@ public class RavenFilter implements Filter {
 			sb.append(last);
 			sb.append(" Life: ");
 			sb.append(life);
-			sb.append(" ID: ");
-			sb.append(id);
 			sb.append(" Principal: ");
 			sb.append(principal);
-			sb.append(" AAuth: ");
-			sb.append(aauth);
+			sb.append(" Auth: ");
+			sb.append(auth);
 			sb.append(" SSO: ");
 			sb.append(sso);
-			sb.append(" Params: ");
-			sb.append(params);
+			sb.append(" Tenant: ");
+			sb.append(tenant);
 			return sb.toString();
 		}
 	}// end inner class RavenState
@@ -0,0 +1,90 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import javax.servlet.ServletException;
+
+/**
+ * The management interface of {@link RavenFilter}, registered with JMX if the
+ * filter's jmxName init-param is set. Changes take effect from the next
+ * request and last until the filter is restarted. Each replaces the filter's
+ * settings as a whole, so a request never sees half of a change.
+ */
+public interface RavenFilterMBean {
+
+  /** @return the WLS page users are sent to */
+  String getAuthenticateUrl();
+
+  /**
+   * @param authenticateUrl the WLS page to send users to
+   */
+  void setAuthenticateUrl(String authenticateUrl);
+
+  /** @return the prefix used to build return URLs, or null */
+  String getServerURLPrefix();
+
+  /**
+   * @param serverURLPrefix the prefix to replace the server and context path
+   *        of return URLs with, or null to use them as requested
+   */
+  void setServerURLPrefix(String serverURLPrefix);
+
+  /** @return the principals allowed in, comma separated, or null for anyone */
+  String getAllowedPrincipals();
+
+  /**
+   * @param allowedPrincipals the principals to allow in, comma separated, or
+   *        null for anyone
+   */
+  void setAllowedPrincipals(String allowedPrincipals);
+
+  /** @return whether users are let in without going to the WLS */
+  boolean isTestingMode();
+
+  /** @return the number of virtual hosts with their own configuration */
+  int getTenantCount();
+
+  /**
+   * @return the bytes of state kept in each logged in user's session, as
+   *         measured when the filter started, or -1 if the JVM can't
+   *         measure it
+   */
+  long getSessionStateBytes();
+
+  /**
+   * Re-reads the tenants config.
+   *
+   * @see RavenFilter#reloadTenants()
+   */
+  void reloadTenants() throws ServletException;
+
+  /**
+   * Re-reads the raven certificate, and those of any tenants, and waits for
+   * them to be loaded.
+   *
+   * @throws Exception if the filter's certificate couldn't be loaded, in
+   *         which case the current one stays in use
+   * @see RavenFilter#reloadKeys()
+   */
+  void reloadCertificate() throws Exception;
+}
@@ -0,0 +1,114 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A thin wrapper around a commons-logging {@link Log} for code that runs on
+ * every request. Debug messages are given as a pattern with <tt>{}</tt>
+ * placeholders and the objects to fill them with; the message is only built,
+ * and the objects' <tt>toString()</tt> only called, if debug logging is
+ * enabled. A disabled debug call therefore allocates nothing, provided its
+ * arguments already exist.
+ *
+ * <p>
+ *
+ * Arguments that are expensive to compute should be wrapped in an object
+ * whose <tt>toString()</tt> computes them, or the call guarded with
+ * {@link #isDebugEnabled()}.
+ */
+
+final class RavenLog {
+
+  private final Log log;
+
+  RavenLog(Log log) {
+    this.log = log;
+  }
+
+  static RavenLog getLog(Class<?> c) {
+    return new RavenLog(LogFactory.getLog(c));
+  }
+
+  boolean isDebugEnabled() {
+    return log.isDebugEnabled();
+  }
+
+  void debug(String message) {
+    if (log.isDebugEnabled())
+      log.debug(message);
+  }
+
+  void debug(String pattern, Object arg) {
+    if (log.isDebugEnabled())
+      log.debug(format(pattern, arg, null, 1));
+  }
+
+  void debug(String pattern, Object arg1, Object arg2) {
+    if (log.isDebugEnabled())
+      log.debug(format(pattern, arg1, arg2, 2));
+  }
+
+  void info(String message) {
+    log.info(message);
+  }
+
+  void warn(String message) {
+    log.warn(message);
+  }
+
+  void warn(String message, Throwable t) {
+    log.warn(message, t);
+  }
+
+  void error(String message) {
+    log.error(message);
+  }
+
+  void error(String message, Throwable t) {
+    log.error(message, t);
+  }
+
+  /**
+   * Replaces the first <tt>count</tt> occurrences of "{}" in the pattern
+   * with the arguments. Arguments without a placeholder are appended.
+   */
+  static String format(String pattern, Object arg1, Object arg2, int count) {
+    StringBuilder sb = new StringBuilder(pattern.length() + 64);
+    int from = 0;
+    for (int i = 0; i < count; ++i) {
+      Object arg = i == 0 ? arg1 : arg2;
+      int at = pattern.indexOf("{}", from);
+      if (at < 0) {
+        sb.append(pattern, from, pattern.length()).append(' ').append(arg);
+        from = pattern.length();
+      } else {
+        sb.append(pattern, from, at).append(arg);
+        from = at + 2;
+      }
+    }
+    return sb.append(pattern, from, pattern.length()).toString();
+  }
+}
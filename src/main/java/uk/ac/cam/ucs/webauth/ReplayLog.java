@@ -0,0 +1,370 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Remembers the ids of responses that have been accepted, so that
+ * {@link WebauthValidator} can refuse a response that is presented a second
+ * time, and keeps them in a file so that they are still remembered after a
+ * restart.
+ *
+ * <p>
+ *
+ * Each accepted response is recorded as a 16-byte record holding the time at
+ * which the validator would stop accepting it and a 64-bit hash of its id.
+ * Records are written to a memory-mapped file used as a ring buffer of
+ * <tt>capacity</tt> records, which should be at least the number of
+ * responses expected within the validator's timeout window. When the log is
+ * opened, records that haven't yet expired are read back into memory.
+ *
+ * <p>
+ *
+ * In memory, hashes are held in open-addressing tables of longs, one for the
+ * current window and one for the previous window; a table is discarded once
+ * it is two windows old. Adding an id takes no locks: a hash is claimed with
+ * compare-and-set and each record is written to a ring slot claimed with an
+ * atomic increment, so every slot has a single writer. Two requests
+ * presenting the same response at the same moment can't both succeed.
+ *
+ * <p>
+ *
+ * As the file is only written through the operating system's page cache, a
+ * crash of the whole machine may lose the most recent records. {@link #flush}
+ * forces them to disk.
+ */
+
+public class ReplayLog {
+
+  private static final int MAGIC = 0x52504c47; // "RPLG"
+  private static final int FORMAT = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_SIZE = 16;
+
+  private final File file;
+  private final int capacity;
+  private final long window;
+  private final int tableSize;
+
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+  private final AtomicLong next;
+  private final AtomicReference<Generations> generations;
+
+  /** A set of hashes that entries can only be added to */
+  private static final class Table {
+    final long start;
+    final AtomicLongArray keys;
+    final int mask;
+
+    Table(long start, int size) {
+      this.start = start;
+      this.keys = new AtomicLongArray(size);
+      this.mask = size - 1;
+    }
+
+    /** Adds a non-zero key, returning false if it was already present */
+    boolean add(long key) {
+      int i = (int) key & mask;
+      for (int probes = 0; probes <= mask; ++probes) {
+        long k = keys.get(i);
+        if (k == key)
+          return false;
+        if (k == 0) {
+          if (keys.compareAndSet(i, 0, key))
+            return true;
+          if (keys.get(i) == key)
+            return false;
+          // another key took the slot; carry on along the chain
+        }
+        i = (i + 1) & mask;
+      }
+      throw new IllegalStateException("Replay log is full");
+    }
+
+    boolean contains(long key) {
+      int i = (int) key & mask;
+      for (int probes = 0; probes <= mask; ++probes) {
+        long k = keys.get(i);
+        if (k == key)
+          return true;
+        if (k == 0)
+          return false;
+        i = (i + 1) & mask;
+      }
+      return false;
+    }
+  }
+
+  private static final class Generations {
+    final Table current;
+    final Table previous;
+
+    Generations(Table current, Table previous) {
+      this.current = current;
+      this.previous = previous;
+    }
+  }
+
+  /**
+   * Opens a replay log, creating the file if it doesn't exist.
+   *
+   * @param file the file holding the log
+   * @param capacity the number of responses to remember. This should be at
+   *        least the number of responses that might be accepted within one
+   *        window.
+   * @param window how long, in milliseconds, after an id is added it must
+   *        be remembered. This must be at least the validator's timeout plus
+   *        twice its maximum clock skew.
+   *
+   * @throws IOException if the file can't be read or written, or isn't a
+   *         replay log
+   */
+  public ReplayLog(File file, int capacity, long window) throws IOException {
+    this(file, capacity, window, Clock.SYSTEM);
+  }
+
+  /**
+   * Opens a replay log, creating the file if it doesn't exist, and taking
+   * the time at which it is opened from a clock.
+   *
+   * @param file the file holding the log
+   * @param capacity the number of responses to remember
+   * @param window how long, in milliseconds, after an id is added it must
+   *        be remembered
+   * @param clock gives the time used to discard expired records
+   *
+   * @throws IOException if the file can't be read or written, or isn't a
+   *         replay log
+   * @see #ReplayLog(File, int, long)
+   */
+  public ReplayLog(File file, int capacity, long window, Clock clock) throws IOException {
+    if (capacity <= 0)
+      throw new IllegalArgumentException("capacity must be positive");
+    if (window <= 0)
+      throw new IllegalArgumentException("window must be positive");
+    this.file = file;
+    this.capacity = capacity;
+    this.window = window;
+    // between two and four slots per record
+    int slots = Integer.highestOneBit(Math.max(capacity, 8)) * 4;
+    this.tableSize = slots > 0 ? slots : 1 << 30;
+
+    long now = clock.currentTimeMillis();
+    Table table = new Table(now, tableSize);
+
+    raf = new RandomAccessFile(file, "rw");
+    boolean ok = false;
+    try {
+      FileChannel channel = raf.getChannel();
+
+      // Read whatever is there now; it may have been written with a
+      // different capacity
+      long[] liveExpires = new long[0];
+      long[] liveKeys = new long[0];
+      int nLive = 0;
+      int firstSlot = 0;
+      boolean reuse = false;
+      long length = raf.length();
+      if (length > 0) {
+        if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+          throw new IOException(file + " is not a replay log");
+        ByteBuffer old = ByteBuffer.allocate((int) length);
+        while (old.hasRemaining() && channel.read(old, old.position()) >= 0) {
+          // keep reading
+        }
+        if (old.getInt(0) != MAGIC || old.getInt(4) != FORMAT)
+          throw new IOException(file + " is not a replay log");
+        int records = (int) Math.min(old.getInt(8), (length - HEADER_SIZE) / RECORD_SIZE);
+        reuse = old.getInt(8) == capacity && records == capacity;
+
+        liveExpires = new long[Math.min(records, capacity)];
+        liveKeys = new long[liveExpires.length];
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < records; ++i) {
+          long expires = old.getLong(HEADER_SIZE + i * RECORD_SIZE);
+          long key = old.getLong(HEADER_SIZE + i * RECORD_SIZE + 8);
+          if (expires < oldest) {
+            // a reused file carries on from its oldest record
+            oldest = expires;
+            firstSlot = i;
+          }
+          if (key != 0 && expires > now && nLive < liveKeys.length) {
+            liveExpires[nLive] = expires;
+            liveKeys[nLive] = key;
+            nLive++;
+            table.add(key);
+          }
+        }
+      }
+
+      long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+      if (!reuse) {
+        raf.setLength(0);
+        raf.setLength(size);
+        firstSlot = nLive % capacity;
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      if (!reuse) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT);
+        buffer.putInt(8, capacity);
+        for (int i = 0; i < nLive; ++i)
+          write(i, liveExpires[i], liveKeys[i]);
+      }
+      next = new AtomicLong(firstSlot);
+      ok = true;
+    } finally {
+      if (!ok)
+        raf.close();
+    }
+    generations = new AtomicReference<Generations>(new Generations(table, null));
+  }
+
+  /**
+   * Records that a response has been accepted.
+   *
+   * @param id the id of the response
+   * @param expires the time after which the validator would reject the
+   *        response anyway
+   * @param now the current time
+   *
+   * @return true if the id was added, or false if it was already present
+   *
+   * @throws IllegalStateException if the log has no room, in which case
+   *         capacity is too small
+   */
+  public boolean add(String id, long expires, long now) {
+    long key = hash(id);
+    Generations g = generations(now);
+    if (g.previous != null && g.previous.contains(key))
+      return false;
+    if (!g.current.add(key))
+      return false;
+    // If the tables were rotated meanwhile, a request for the same id may
+    // have checked the new current table before our key was visible in
+    // what is now the previous one. Whoever gets into the newest table first
+    // wins.
+    for (Generations latest = generations.get(); latest != g; latest = generations.get()) {
+      if (!latest.current.add(key))
+        return false;
+      g = latest;
+    }
+
+    write((int) (next.getAndIncrement() % capacity), expires, key);
+    return true;
+  }
+
+  /**
+   * Checks whether a response id has been added.
+   *
+   * @param id the id of a response
+   * @param now the current time
+   *
+   * @return true if the id was added within the last window
+   */
+  public boolean contains(String id, long now) {
+    long key = hash(id);
+    Generations g = generations(now);
+    return g.current.contains(key) || (g.previous != null && g.previous.contains(key));
+  }
+
+  /**
+   * Forces any records not yet written to disk to be written.
+   */
+  public void flush() {
+    buffer.force();
+  }
+
+  /**
+   * Flushes and closes the file. The log must not be used afterwards.
+   *
+   * @throws IOException if the file can't be closed
+   */
+  public void close() throws IOException {
+    flush();
+    raf.close();
+  }
+
+  /**
+   * Gets the file holding the log
+   *
+   * @return the file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Gets the number of records the log holds
+   *
+   * @return the capacity
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /** Returns the tables, starting a new window if the current one is over */
+  private Generations generations(long now) {
+    while (true) {
+      Generations g = generations.get();
+      long age = now - g.current.start;
+      if (age < window)
+        return g;
+      Generations rotated = new Generations(new Table(now, tableSize), age < 2 * window
+          ? g.current : null);
+      if (generations.compareAndSet(g, rotated))
+        return rotated;
+    }
+  }
+
+  private void write(int slot, long expires, long key) {
+    int pos = HEADER_SIZE + slot * RECORD_SIZE;
+    buffer.putLong(pos + 8, key);
+    buffer.putLong(pos, expires);
+  }
+
+  /** FNV-1a of the id, mixed so that the low bits make a good index; never 0 */
+  static long hash(String id) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < id.length(); i++) {
+      h ^= id.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+}
@@ -0,0 +1,170 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Binds a response to the request that produced it without keeping the
+ * request on the server. The fields of the request that
+ * {@link WebauthValidator} checks (ver, iact, aauth and date, plus a
+ * random nonce) are sent to the WLS in the params field, together with a
+ * MAC of them and the request's url. The WLS returns params unchanged, so
+ * the request can be rebuilt from the response and trusted as long as the
+ * MAC matches.
+ *
+ * <p>
+ *
+ * The url itself isn't repeated: the WLS returns it in the response's url
+ * field, and it is covered by the MAC. Every node that might receive a
+ * response must be given the same key.
+ *
+ * <p>
+ *
+ * Nothing then ties a response to the browser that asked for it, so a
+ * response could be presented by someone else within the validator's
+ * timeout. Use a {@link ReplayLog} with request binding.
+ */
+
+public class RequestBinding {
+
+  /** The params entry holding the binding */
+  static final String BINDING_PARAM = "ravenBinding";
+
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+
+  /** Bytes of the MAC that are kept */
+  private static final int MAC_LENGTH = 16;
+
+  private static final int NONCE_LENGTH = 8;
+
+  /** Minimum key length in bytes */
+  static final int MIN_KEY_LENGTH = 16;
+
+  private final SecretKeySpec key;
+
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Creates a binding with a secret key.
+   *
+   * @param key at least 16 bytes known only to the nodes of this application
+   * @throws IllegalArgumentException if the key is too short
+   */
+  public RequestBinding(byte[] key) {
+    if (key == null || key.length < MIN_KEY_LENGTH)
+      throw new IllegalArgumentException("Request binding key must be at least "
+          + MIN_KEY_LENGTH + " bytes");
+    this.key = new SecretKeySpec(key.clone(), MAC_ALGORITHM);
+  }
+
+  /**
+   * Returns a copy of a request with the binding added to its params.
+   *
+   * @param request the request about to be sent to the WLS
+   * @return the request to send
+   */
+  public ImmutableWebauthRequest bind(ImmutableWebauthRequest request) {
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+    String payload = field(request.get("ver")) + "\n" + field(request.get("iact")) + "\n"
+        + field(request.get("aauth")) + "\n" + field(request.get("date")) + "\n"
+        + Base64.encodeBase64URLSafeString(nonce);
+    String binding = Base64.encodeBase64URLSafeString(utf8(payload)) + "."
+        + Base64.encodeBase64URLSafeString(mac(payload, request.get("url")));
+    return request.toBuilder().setParam(BINDING_PARAM, binding).build();
+  }
+
+  /**
+   * Rebuilds the request that a response answers.
+   *
+   * @param response the response from the WLS
+   * @return the request, holding the fields the validator checks
+   * @throws WebauthException if the response has no binding or it doesn't
+   *           match
+   */
+  public WebauthRequest recover(WebauthResponse response) throws WebauthException {
+    String binding = response.getParam(BINDING_PARAM);
+    if (binding == null)
+      throw new WebauthException("Response has no request binding");
+    int dot = binding.indexOf('.');
+    if (dot < 0)
+      throw new WebauthException("Malformed request binding");
+
+    String payload;
+    try {
+      payload = new String(Base64.decodeBase64(binding.substring(0, dot)), "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // Shouldn't happen
+      throw new Error(e);
+    }
+    String url = response.get("url");
+    byte[] expected = mac(payload, url);
+    if (!MessageDigest.isEqual(expected, Base64.decodeBase64(binding.substring(dot + 1))))
+      throw new WebauthException("Request binding doesn't match response");
+
+    String[] fields = Util.split('\n', payload);
+    if (fields.length != 5)
+      throw new WebauthException("Malformed request binding");
+    return ImmutableWebauthRequest.builder().set("ver", fields[0]).set("url", url)
+        .set("iact", fields[1]).set("aauth", fields[2]).set("date", fields[3])
+        .set("params", response.get("params")).build();
+  }
+
+  private byte[] mac(String payload, String url) {
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(key);
+      mac.update(utf8(payload));
+      mac.update((byte) 0);
+      byte[] full = mac.doFinal(utf8(url));
+      byte[] truncated = new byte[MAC_LENGTH];
+      System.arraycopy(full, 0, truncated, 0, MAC_LENGTH);
+      return truncated;
+    } catch (GeneralSecurityException e) {
+      // HmacSHA256 is required of every Java platform
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String field(String value) {
+    return value == null ? "" : value;
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      // Shouldn't happen
+      throw new Error(e);
+    }
+  }
+}
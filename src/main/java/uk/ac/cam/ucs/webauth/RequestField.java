@@ -0,0 +1,91 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+/**
+ * The fields of an authentication request, in the order they appear in the
+ * query string. The ordinal of each constant is its slot in fixed-size field
+ * arrays.
+ */
+enum RequestField {
+  VER("ver"), URL("url"), DESC("desc"), AAUTH("aauth"), IACT("iact"), MSG("msg"),
+  PARAMS("params"), DATE("date"), FAIL("fail");
+
+  /** Number of known request fields */
+  static final int COUNT = values().length;
+
+  private static final RequestField[] FIELDS = values();
+
+  /** The name of the field in the protocol */
+  final String fieldName;
+
+  private RequestField(String fieldName) {
+    this.fieldName = fieldName;
+  }
+
+  /**
+   * Looks up a field by its protocol name.
+   *
+   * @return the field, or null if the name isn't one of the known fields
+   */
+  static RequestField forName(String name) {
+    if (name == null || name.length() == 0)
+      return null;
+    // the first letter picks the only field the name could be
+    RequestField f;
+    switch (name.charAt(0)) {
+    case 'v':
+      f = VER;
+      break;
+    case 'u':
+      f = URL;
+      break;
+    case 'd':
+      f = name.length() == 4 && name.charAt(1) == 'a' ? DATE : DESC;
+      break;
+    case 'a':
+      f = AAUTH;
+      break;
+    case 'i':
+      f = IACT;
+      break;
+    case 'm':
+      f = MSG;
+      break;
+    case 'p':
+      f = PARAMS;
+      break;
+    case 'f':
+      f = FAIL;
+      break;
+    default:
+      return null;
+    }
+    return f.fieldName.equals(name) ? f : null;
+  }
+
+  /** The field stored in the given slot */
+  static RequestField forSlot(int slot) {
+    return FIELDS[slot];
+  }
+}
@@ -0,0 +1,174 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.security.cert.Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers response signatures that have recently been verified, so that a
+ * response presented again (a browser retry, reload or back-button
+ * resubmission) doesn't need another RSA verification.
+ *
+ * <p>
+ *
+ * Entries are found by a 64-bit hash of the signed data, signature and key-id
+ * but a hit is only accepted if all three are identical to the entry and the
+ * key store still holds the same certificate for the key-id, so a hash
+ * collision can't cause an unverified response to be accepted. Only
+ * successful verifications are cached, and entries expire once the response
+ * would be rejected by the validator's timeout anyway.
+ *
+ * <p>
+ *
+ * The cache only short-cuts the signature check; every other check made by
+ * {@link WebauthValidator}, including any replay detection, still applies to
+ * each presentation of a response.
+ */
+
+public class SignatureCache {
+
+  private final int maxEntries;
+  private final Map<Long, Entry> entries;
+
+  private static final class Entry {
+    final String rawData;
+    final String sig;
+    final String kid;
+    final Certificate cert;
+    final long expires;
+
+    Entry(String rawData, String sig, String kid, Certificate cert, long expires) {
+      this.rawData = rawData;
+      this.sig = sig;
+      this.kid = kid;
+      this.cert = cert;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Constructor
+   *
+   * @param maxEntries the maximum number of verified signatures to remember.
+   *        When full the oldest entry is discarded.
+   */
+  public SignatureCache(final int maxEntries) {
+    if (maxEntries <= 0)
+      throw new IllegalArgumentException("maxEntries must be positive");
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<Long, Entry>(Math.min(maxEntries, 1024) * 4 / 3 + 1) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+        return size() > SignatureCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Gets the maximum number of entries
+   *
+   * @return the maximum number of entries
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * Returns the number of entries currently held, including any that have
+   * expired but not yet been removed.
+   *
+   * @return the number of entries
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Discards all entries. This should be called if a key is removed from
+   * the validator's key store.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Checks whether a signature has already been verified.
+   *
+   * @param rawData the signed data
+   * @param sig the signature, as carried in the response
+   * @param kid the key-id
+   * @param cert the certificate the key store currently holds for kid
+   * @param now the current time
+   *
+   * @return true if exactly this signature was verified with this
+   *         certificate and the entry hasn't expired
+   */
+  boolean contains(String rawData, String sig, String kid, Certificate cert, long now) {
+    Long key = Long.valueOf(hash(rawData, sig, kid));
+    Entry e;
+    synchronized (this) {
+      e = entries.get(key);
+      if (e != null && e.expires < now) {
+        entries.remove(key);
+        return false;
+      }
+    }
+    return e != null && (e.cert == cert || e.cert.equals(cert)) && e.kid.equals(kid)
+        && e.sig.equals(sig) && e.rawData.equals(rawData);
+  }
+
+  /**
+   * Records a successful verification.
+   *
+   * @param expires the time after which the entry should no longer be used
+   */
+  void put(String rawData, String sig, String kid, Certificate cert, long expires) {
+    Long key = Long.valueOf(hash(rawData, sig, kid));
+    Entry e = new Entry(rawData, sig, kid, cert, expires);
+    synchronized (this) {
+      entries.put(key, e);
+    }
+  }
+
+  /** FNV-1a over the three strings, with separators */
+  static long hash(String rawData, String sig, String kid) {
+    long h = 0xcbf29ce484222325L;
+    h = hash(h, rawData);
+    h = (h ^ '!') * 0x100000001b3L;
+    h = hash(h, sig);
+    h = (h ^ '!') * 0x100000001b3L;
+    return hash(h, kid);
+  }
+
+  private static long hash(long h, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+}
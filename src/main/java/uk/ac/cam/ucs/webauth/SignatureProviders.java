@@ -0,0 +1,151 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.security.Signature;
+import java.security.interfaces.RSAKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Helps choose which installed security provider {@link WebauthValidator}
+ * should use to verify signatures.
+ *
+ * {@link #benchmark benchmark} times signature verification with each
+ * provider offering an algorithm, using a freshly generated key of the same
+ * type and size as the real key, and {@link #fastest fastest} picks the
+ * quickest. This is intended to be run once at start-up; the chosen provider
+ * can then be pinned with
+ * {@link WebauthValidator#setSignatureProvider(Provider)}.
+ */
+
+public final class SignatureProviders {
+
+  private static final byte[] SAMPLE_DATA = ("3!200!!20141110T150922Z!1415632162-15831-14!"
+      + "http://raven.cam.ac.uk/debug.html!pms52!current!!pwd!42298!").getBytes();
+
+  private SignatureProviders() {
+  }
+
+  /**
+   * Times signature verification with every installed provider that
+   * implements an algorithm. Providers that fail to verify a valid signature
+   * are left out.
+   *
+   * @param algorithm the signature algorithm, for example "SHA1withRSA"
+   * @param key a key like those that will be used; only its type and size are
+   *        used
+   * @param iterations the number of timed verifications per provider. The
+   *        same number again is run untimed first.
+   *
+   * @return the average time per verification in nanoseconds, by provider,
+   *         in the providers' preference order
+   *
+   * @throws NoSuchAlgorithmException if no provider implements the algorithm
+   *         or a sample key can't be generated
+   */
+  public static Map<Provider, Long> benchmark(String algorithm, PublicKey key, int iterations)
+      throws NoSuchAlgorithmException {
+
+    Provider[] providers = Security.getProviders("Signature." + algorithm);
+    if (providers == null)
+      throw new NoSuchAlgorithmException("No provider implements " + algorithm);
+
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(key.getAlgorithm());
+    if (key instanceof RSAKey)
+      generator.initialize(((RSAKey) key).getModulus().bitLength());
+    KeyPair pair = generator.generateKeyPair();
+
+    byte[] sig;
+    try {
+      Signature signer = Signature.getInstance(algorithm);
+      signer.initSign(pair.getPrivate());
+      signer.update(SAMPLE_DATA);
+      sig = signer.sign();
+    } catch (GeneralSecurityException e) {
+      throw new NoSuchAlgorithmException("Unable to create a sample " + algorithm
+          + " signature: " + e.getMessage());
+    }
+
+    Map<Provider, Long> results = new LinkedHashMap<Provider, Long>();
+    for (Provider provider : providers) {
+      try {
+        Signature verifier = Signature.getInstance(algorithm, provider);
+        time(verifier, pair.getPublic(), sig, iterations);
+        long elapsed = time(verifier, pair.getPublic(), sig, iterations);
+        if (elapsed >= 0)
+          results.put(provider, Long.valueOf(elapsed / Math.max(1, iterations)));
+      } catch (GeneralSecurityException e) {
+        // provider can't handle this key; skip it
+      } catch (RuntimeException e) {
+        // nor this
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Returns the installed provider that verifies signatures of an algorithm
+   * fastest. See {@link #benchmark benchmark}.
+   *
+   * @return the fastest provider
+   *
+   * @throws NoSuchAlgorithmException if no provider can verify signatures of
+   *         the algorithm
+   */
+  public static Provider fastest(String algorithm, PublicKey key, int iterations)
+      throws NoSuchAlgorithmException {
+    Provider best = null;
+    long bestTime = Long.MAX_VALUE;
+    for (Map.Entry<Provider, Long> e : benchmark(algorithm, key, iterations).entrySet()) {
+      if (e.getValue().longValue() < bestTime) {
+        best = e.getKey();
+        bestTime = e.getValue().longValue();
+      }
+    }
+    if (best == null)
+      throw new NoSuchAlgorithmException("No provider could verify " + algorithm
+          + " signatures");
+    return best;
+  }
+
+  /** Returns the elapsed nanoseconds, or -1 if any verification failed */
+  private static long time(Signature verifier, PublicKey key, byte[] sig, int iterations)
+      throws GeneralSecurityException {
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      verifier.initVerify(key);
+      verifier.update(SAMPLE_DATA);
+      if (!verifier.verify(sig))
+        return -1;
+    }
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,96 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Storage for state that must be visible to every node of a cluster. This is
+ * used by {@link RavenFilter} to keep the request it sent to the WLS, so that
+ * the response can be validated by whichever node receives it, without
+ * sticky sessions or session replication.
+ *
+ * <p>
+ *
+ * Values are opaque byte arrays, each kept for a time to live given when it
+ * is stored. Implementations that talk to a remote server should send each
+ * call to the batch methods {@link #putAll} and {@link #removeAll} as a
+ * single round trip; {@link NearCacheStateStore} collects concurrent writes
+ * into such batches. {@link LocalStateStore} keeps everything in this JVM.
+ *
+ * <p>
+ *
+ * Implementations must be safe for use by several threads at once.
+ * Implementations named in RavenFilter's <tt>stateStore</tt> init-param
+ * need a public constructor without arguments.
+ */
+
+public interface StateStore {
+
+  /**
+   * Stores a value, replacing any value already stored with the same key.
+   *
+   * @param key the key
+   * @param value the value
+   * @param ttl milliseconds for which the value should be kept
+   * @throws IOException if the store can't be reached
+   */
+  void put(String key, byte[] value, long ttl) throws IOException;
+
+  /**
+   * Stores several values in one operation.
+   *
+   * @param values the values to store, by key
+   * @param ttl milliseconds for which the values should be kept
+   * @throws IOException if the store can't be reached
+   */
+  void putAll(Map<String, byte[]> values, long ttl) throws IOException;
+
+  /**
+   * Removes a value and returns it. Of several nodes taking the same key at
+   * once, only one receives the value.
+   *
+   * @param key the key
+   * @return the value, or null if there is none or it has expired
+   * @throws IOException if the store can't be reached
+   */
+  byte[] take(String key) throws IOException;
+
+  /**
+   * Removes several values in one operation. Keys that aren't present are
+   * ignored.
+   *
+   * @param keys the keys to remove
+   * @throws IOException if the store can't be reached
+   */
+  void removeAll(Collection<String> keys) throws IOException;
+
+  /**
+   * Releases any connections held by the store.
+   *
+   * @throws IOException if the store couldn't be closed cleanly
+   */
+  void close() throws IOException;
+}
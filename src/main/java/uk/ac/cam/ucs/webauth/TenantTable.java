@@ -0,0 +1,131 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The per-virtual-host configuration used by {@link RavenFilter}. A table is
+ * never changed once built; the filter replaces it as a whole on reload.
+ */
+
+final class TenantTable {
+
+  /**
+   * The configuration for one virtual host. Settings that are null weren't
+   * given for the host, which uses the filter's own.
+   */
+  static final class Tenant {
+    final String host;
+    final String authenticatePage;
+    final String serverURLPrefix;
+    final Set<String> allowedPrincipals;
+    final String certificatePath;
+    final WebauthValidator validator;
+
+    Tenant(String host, String authenticatePage, String serverURLPrefix,
+        Set<String> allowedPrincipals, String certificatePath, WebauthValidator validator) {
+      this.host = host;
+      this.authenticatePage = authenticatePage;
+      this.serverURLPrefix = serverURLPrefix;
+      this.allowedPrincipals = allowedPrincipals == null ? null : Collections
+          .unmodifiableSet(allowedPrincipals);
+      this.certificatePath = certificatePath;
+      this.validator = validator;
+    }
+
+    @Override
+    public String toString() {
+      return host + " (authenticateUrl " + (authenticatePage == null ? "default" : authenticatePage)
+          + ", certificate " + certificatePath + ", prefix "
+          + (serverURLPrefix == null ? "default" : serverURLPrefix) + ", principals "
+          + (allowedPrincipals == null ? "default" : allowedPrincipals.toString()) + ")";
+    }
+  }
+
+  private final Map<String, Tenant> byHost;
+  private final Map<String, WebauthValidator> validators;
+
+  /**
+   * @param tenants the tenants, which must have distinct host names
+   * @param validators the validators used by the tenants, by certificate
+   *        path
+   */
+  TenantTable(Iterable<Tenant> tenants, Map<String, WebauthValidator> validators) {
+    Map<String, Tenant> map = new HashMap<String, Tenant>();
+    for (Tenant t : tenants)
+      map.put(t.host.toLowerCase(Locale.ENGLISH), t);
+    this.byHost = map;
+    this.validators = Collections.unmodifiableMap(new HashMap<String, WebauthValidator>(
+        validators));
+  }
+
+  /**
+   * Finds the configuration for a host.
+   *
+   * @param host a host name, as from <tt>ServletRequest.getServerName()</tt>
+   *
+   * @return the tenant, or null if the host has no configuration of its own
+   */
+  Tenant get(String host) {
+    if (host == null)
+      return null;
+    Tenant t = byHost.get(host);
+    if (t == null) {
+      // Host names are case insensitive, but seldom arrive other than in
+      // lower case, so only convert after a miss
+      String lower = host.toLowerCase(Locale.ENGLISH);
+      if (!lower.equals(host))
+        t = byHost.get(lower);
+    }
+    return t;
+  }
+
+  /** The number of hosts configured */
+  int size() {
+    return byHost.size();
+  }
+
+  /**
+   * The validator already built for a certificate, so that a reloaded table
+   * can share it
+   */
+  WebauthValidator validatorFor(String certificatePath) {
+    return validators.get(certificatePath);
+  }
+
+  /** The validators used by the tenants, one per certificate */
+  Collection<WebauthValidator> validators() {
+    return validators.values();
+  }
+
+  /** The validators used by the tenants, by certificate path */
+  Map<String, WebauthValidator> validatorsByCertificate() {
+    return validators;
+  }
+}
@@ -0,0 +1,179 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+/**
+ * A cursor over the fields of delimited text, such as the comma separated
+ * lists in requests and responses. Each call to {@link #next()} moves to the
+ * next field, whose bounds are given by {@link #start()} and {@link #end()};
+ * nothing is allocated unless {@link #token()} is called. A tokenizer can be
+ * reused with {@link #reset}, but isn't thread safe.
+ * <p>
+ * Fields are as from {@link Util#split}: empty text has no fields, otherwise
+ * there is one more field than there are delimiters and fields may be empty.
+ */
+
+final class Tokenizer {
+
+  private CharSequence text;
+  private char delim;
+  /** Bounds of the current field */
+  private int start;
+  private int end;
+  /** Where the next field starts; past the end of the text when done */
+  private int next;
+
+  /** Creates a tokenizer with no fields, to be {@link #reset} before use */
+  Tokenizer() {
+    reset(',', "");
+  }
+
+  Tokenizer(char delim, CharSequence text) {
+    reset(delim, text);
+  }
+
+  /**
+   * Starts again over new text.
+   *
+   * @return this tokenizer
+   */
+  Tokenizer reset(char delim, CharSequence text) {
+    this.text = text;
+    this.delim = delim;
+    this.start = 0;
+    this.end = 0;
+    this.next = text.length() == 0 ? 1 : 0;
+    return this;
+  }
+
+  /**
+   * Moves to the next field.
+   *
+   * @return false if there are no more fields
+   */
+  boolean next() {
+    int length = text.length();
+    if (next > length)
+      return false;
+    int pos = next;
+    while (pos < length && text.charAt(pos) != delim)
+      pos++;
+    start = next;
+    end = pos;
+    next = pos + 1;
+    return true;
+  }
+
+  /**
+   * Narrows the current field to leave out leading and trailing white space,
+   * as <tt>String.trim()</tt> does.
+   *
+   * @return this tokenizer
+   */
+  Tokenizer trim() {
+    while (start < end && text.charAt(start) <= ' ')
+      start++;
+    while (end > start && text.charAt(end - 1) <= ' ')
+      end--;
+    return this;
+  }
+
+  /** @return the offset of the first character of the current field */
+  int start() {
+    return start;
+  }
+
+  /** @return the offset just past the current field */
+  int end() {
+    return end;
+  }
+
+  /** @return the current field as a string */
+  String token() {
+    return text.subSequence(start, end).toString();
+  }
+
+  /** @return whether the current field is the same as s */
+  boolean tokenEquals(CharSequence s) {
+    return regionEquals(text, start, end, s, 0, s.length());
+  }
+
+  /** Counts the fields in some text without moving any tokenizer */
+  static int count(char delim, CharSequence text) {
+    int length = text.length();
+    if (length == 0)
+      return 0;
+    int n = 1;
+    for (int pos = 0; pos < length; pos++) {
+      if (text.charAt(pos) == delim)
+        n++;
+    }
+    return n;
+  }
+
+  /**
+   * Tests whether a delimited list has a field which, trimmed, is the same
+   * as part of another string. This is <tt>getColl(field).contains(s)</tt>
+   * without building the collection.
+   *
+   * @param list the delimited list
+   * @param s holds the value to look for
+   * @param sStart the offset of the value in s
+   * @param sEnd the offset just past the value in s
+   */
+  static boolean containsTrimmed(char delim, CharSequence list, CharSequence s, int sStart,
+      int sEnd) {
+    int length = list.length();
+    if (length == 0)
+      return false;
+    int pos = 0;
+    while (pos <= length) {
+      int fieldEnd = pos;
+      while (fieldEnd < length && list.charAt(fieldEnd) != delim)
+        fieldEnd++;
+      int a = pos;
+      int b = fieldEnd;
+      while (a < b && list.charAt(a) <= ' ')
+        a++;
+      while (b > a && list.charAt(b - 1) <= ' ')
+        b--;
+      if (regionEquals(list, a, b, s, sStart, sEnd))
+        return true;
+      pos = fieldEnd + 1;
+    }
+    return false;
+  }
+
+  /** Compares part of one character sequence with part of another */
+  static boolean regionEquals(CharSequence a, int aStart, int aEnd, CharSequence b, int bStart,
+      int bEnd) {
+    int n = aEnd - aStart;
+    if (n != bEnd - bStart)
+      return false;
+    for (int i = 0; i < n; i++) {
+      if (a.charAt(aStart + i) != b.charAt(bStart + i))
+        return false;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,106 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+/**
+ * Compares the URL in a response with the one in the request, for
+ * {@link WebauthValidator}, in a single pass over both strings.
+ *
+ * The response URL has been URL-decoded, which turns '+' into a space, so a
+ * '+' in the request URL matches a space in the response (but not a '+').
+ * For protocol version 1 the WLS returns the URL without its query string so
+ * each URL is compared only up to its first '?', and the response need only
+ * start with the request URL. From version 2 the URLs must be identical.
+ *
+ * The decisions are exactly those of the original implementation, which
+ * removed query strings with <tt>replaceFirst("[?].*", "")</tt>. As '.'
+ * doesn't match a line terminator, that left anything from the first line
+ * terminator after the '?' in place, and so does this.
+ */
+
+final class UrlMatcher {
+
+  private UrlMatcher() {
+  }
+
+  /**
+   * Checks whether a response URL matches the request URL.
+   *
+   * @param requestURL the url field of the request
+   * @param responseURL the url field of the response
+   * @param prefix true to apply the protocol version 1 rules
+   *
+   * @return true if the URLs match
+   */
+  static boolean matches(String requestURL, String responseURL, boolean prefix) {
+    if (!prefix) {
+      int len = requestURL.length();
+      if (len != responseURL.length())
+        return false;
+      for (int i = 0; i < len; ++i) {
+        if (!same(requestURL.charAt(i), responseURL.charAt(i)))
+          return false;
+      }
+      return true;
+    }
+
+    // Each string without its query string is [0, q) followed by [t, length)
+    int reqQuery = queryStart(requestURL);
+    int reqTail = tailStart(requestURL, reqQuery);
+    int respQuery = queryStart(responseURL);
+    int respTail = tailStart(responseURL, respQuery);
+
+    int reqLen = reqQuery + requestURL.length() - reqTail;
+    int respLen = respQuery + responseURL.length() - respTail;
+    if (respLen < reqLen)
+      return false;
+
+    for (int i = 0; i < reqLen; ++i) {
+      char req = requestURL.charAt(i < reqQuery ? i : i - reqQuery + reqTail);
+      char resp = responseURL.charAt(i < respQuery ? i : i - respQuery + respTail);
+      if (!same(req, resp))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean same(char req, char resp) {
+    return req == '+' ? resp == ' ' : req == resp;
+  }
+
+  /** Index of the first '?', or the length if none */
+  private static int queryStart(String url) {
+    int q = url.indexOf('?');
+    return q < 0 ? url.length() : q;
+  }
+
+  /** Index of the first line terminator at or after from, or the length */
+  private static int tailStart(String url, int from) {
+    for (int i = from; i < url.length(); ++i) {
+      char c = url.charAt(i);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+        return i;
+    }
+    return url.length();
+  }
+}
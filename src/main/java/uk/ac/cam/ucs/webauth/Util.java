@@ -26,31 +26,16 @@ public class Util {
 
 	/*
 	 * Split a string on delim. Note this has different semantics than the java
-	 * standard library split
+	 * standard library split: empty text gives no fields, otherwise there is
+	 * one more field than there are delimiters. Callers that only need to
+	 * look at the fields should use a Tokenizer, which doesn't allocate.
 	 */
 	static String[] split(char delim, String text) {
 
-		if (text.length() == 0)
-			return new String[0];
-
-		int nFields = 0;
-		for (int pos = 0; pos < text.length(); ++pos)
-			if (text.charAt(pos) == delim)
-				++nFields;
-		String[] list = new String[nFields + 1];
-
-		int toIndex = 0;
-		int fromIndex = 0;
-		int ctr = 0;
-
-		while (fromIndex <= text.length()) {
-			toIndex = text.indexOf(delim, fromIndex);
-			if (toIndex == -1)
-				toIndex = text.length();
-			list[ctr++] = text.substring(fromIndex, toIndex);
-			fromIndex = toIndex + 1;
-		}
-
+		String[] list = new String[Tokenizer.count(delim, text)];
+		Tokenizer fields = new Tokenizer(delim, text);
+		for (int ctr = 0; fields.next(); ++ctr)
+			list[ctr] = fields.token();
 		return list;
 
 	}
@@ -0,0 +1,128 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+
+/**
+ * Exercises the code that handles a login so that class loading, security
+ * provider initialisation and JIT compilation happen before the first real
+ * user arrives rather than while they wait.
+ *
+ * Each iteration builds an authentication request from the application's
+ * template and parses and fully validates a response token bundled with
+ * the toolkit. The token is signed with a self-signed key that is only
+ * trusted by the validator created here; it can't authenticate anyone to
+ * the application.
+ */
+
+final class Warmup {
+
+  private static final String CERTIFICATE_RESOURCE = "warmup.crt";
+  private static final String TOKEN_RESOURCE = "warmup.token";
+  private static final String KID = "0";
+
+  private final WebauthValidator validator;
+  private final String query;
+  private final WebauthRequest request;
+  private final long issue;
+  private final Clock clock;
+
+  /**
+   * Loads the bundled key and token.
+   *
+   * @param provider the security provider to verify signatures with, or
+   *        null for the default
+   * @param clock gives the date of the requests built
+   */
+  Warmup(Provider provider, Clock clock) throws IOException, GeneralSecurityException,
+      WebauthException {
+    this.clock = clock;
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, new char[] {});
+    validator = new WebauthValidator(keyStore);
+    validator.setSignatureProvider(provider);
+    keyStore.setCertificateEntry(validator.getKeyPrefix() + KID, loadCertificate());
+
+    String token = loadToken();
+    WebauthResponse response = new WebauthResponse(token);
+    query = RavenFilter.WLS_RESPONSE_PARAM + "=" + URLEncoder.encode(token, "UTF-8");
+    request = ImmutableWebauthRequest.builder().set("url", response.get("url")).build();
+    issue = response.issueMillis();
+  }
+
+  /**
+   * Runs the given number of logins.
+   *
+   * @param template the application's request template
+   * @param iterations the number of logins
+   *
+   * @throws WebauthException if the bundled response doesn't validate,
+   *         which would mean something is wrong with the security set-up
+   */
+  void run(ImmutableWebauthRequest template, int iterations) throws WebauthException {
+    for (int i = 0; i < iterations; ++i) {
+      template.toBuilder().set("url", "http://localhost/warmup?" + i)
+          .set("date", clock.currentTimeMillis()).build().toQString();
+      WebauthResponse response = WebauthResponse.fromQueryString(query);
+      validator.validate(request, response, issue);
+    }
+  }
+
+  private static Certificate loadCertificate() throws IOException, GeneralSecurityException {
+    InputStream in = open(CERTIFICATE_RESOURCE);
+    try {
+      return CertificateFactory.getInstance("X.509").generateCertificate(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String loadToken() throws IOException {
+    InputStream in = open(TOKEN_RESOURCE);
+    try {
+      String token = new BufferedReader(new InputStreamReader(in, "UTF-8")).readLine();
+      if (token == null)
+        throw new IOException("Empty resource " + TOKEN_RESOURCE);
+      return token.trim();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static InputStream open(String resource) throws IOException {
+    InputStream in = Warmup.class.getResourceAsStream(resource);
+    if (in == null)
+      throw new IOException("Missing resource " + resource);
+    return in;
+  }
+}
@@ -24,6 +24,10 @@
 
 package uk.ac.cam.ucs.webauth;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
@@ -34,6 +38,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.TimeZone;
 
 /**
@@ -48,13 +54,31 @@ import java.util.TimeZone;
 public class WebauthRequest implements Serializable {
 
 	private static final long serialVersionUID = -8570777065447980574L;
-	private static final String DEFAULT_VER = "3";
+	static final String DEFAULT_VER = "3";
 	private static final String DATE_FORMAT = "yyyyMMdd'T'HHmmss'Z'";
 
-	private static final String[] FIELD_NAME = { "ver", "url", "desc", "aauth",
+	static final String[] FIELD_NAME = { "ver", "url", "desc", "aauth",
 			"iact", "msg", "params", "date", "fail" };
 
-	private HashMap<String, String> data = new HashMap<String, String>();
+	/*
+	 * The known fields are kept in slots indexed by RequestField, so that
+	 * they can be read and written without hashing; only other names go in
+	 * a map. A field may be set to null, so the slots set are recorded
+	 * separately.
+	 */
+
+	/** Values of the known fields, by RequestField ordinal */
+	private transient String[] values = new String[RequestField.COUNT];
+
+	/** Bit (1 << ordinal) for each known field that has been set */
+	private transient int present;
+
+	/** Fields other than the known ones; null until one is set */
+	private transient HashMap<String, String> extra;
+
+	/** Serialized as a single map of all fields, as before slots were used */
+	private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField(
+			"data", HashMap.class) };
 
   /**
    * Default constructor. "ver" defaults to 3, "date" to the current date and time.
@@ -65,10 +89,66 @@ public class WebauthRequest implements Serializable {
    */
 
 	public WebauthRequest() {
+		this(Clock.SYSTEM);
+	}
+
+	/**
+	 * Constructor taking the date and time from a clock. "ver" defaults to 3.
+	 * 
+	 * @param clock
+	 *            gives the date
+	 */
+
+	public WebauthRequest(Clock clock) {
+		this(clock, true);
+	}
+
+	/**
+	 * Constructor for subclasses that keep their fields elsewhere and so
+	 * may not want the defaults stored here.
+	 * 
+	 * @param clock
+	 *            gives the date, if the defaults are wanted
+	 */
+
+	WebauthRequest(Clock clock, boolean defaults) {
+		if (defaults) {
+			put(RequestField.VER, DEFAULT_VER);
+			put(RequestField.DATE, formatDate(clock.currentTimeMillis()));
+		}
+	}
+
+	/** A second and its formatted form */
+	private static final class FormattedDate {
+		final long second;
+		final String text;
+
+		FormattedDate(long second, String text) {
+			this.second = second;
+			this.text = text;
+		}
+	}
+
+	/**
+	 * The last date formatted. Dates only have second resolution, so most
+	 * requests made in the same second can share it.
+	 */
+	private static volatile FormattedDate lastDate = null;
+
+	/**
+	 * Formats a date in the form used by the 'date' field
+	 */
+
+	static String formatDate(long date) {
+		long second = date >= 0 ? date / 1000 : (date - 999) / 1000;
+		FormattedDate last = lastDate;
+		if (last != null && last.second == second)
+			return last.text;
 		SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
 		format.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
-		data.put("ver", DEFAULT_VER);
-		data.put("date", format.format(new Date()));
+		String text = format.format(new Date(date));
+		lastDate = new FormattedDate(second, text);
+		return text;
 	}
 
 	/**
@@ -78,7 +158,7 @@ public class WebauthRequest implements Serializable {
 	 */
 
 	public int length() {
-		return data.size();
+		return Integer.bitCount(present) + (extra == null ? 0 : extra.size());
 	}
 
 	/**
@@ -89,7 +169,59 @@ public class WebauthRequest implements Serializable {
 	 */
 
 	public Iterator<String> getFieldNames() {
-		return data.keySet().iterator();
+		return new FieldNames();
+	}
+
+	/**
+	 * Iterates over the known fields that are set, then the others. Like the
+	 * key set iterator of a map, remove() removes the field.
+	 */
+
+	private final class FieldNames implements Iterator<String> {
+		private int next = nextSlot(0);
+		private int last = -1;
+		private Iterator<String> others;
+
+		private int nextSlot(int from) {
+			int rest = present >>> from;
+			return rest == 0 ? RequestField.COUNT : from
+					+ Integer.numberOfTrailingZeros(rest);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next < RequestField.COUNT)
+				return true;
+			if (others == null && extra != null)
+				others = extra.keySet().iterator();
+			return others != null && others.hasNext();
+		}
+
+		@Override
+		public String next() {
+			if (next < RequestField.COUNT) {
+				last = next;
+				next = nextSlot(next + 1);
+				return RequestField.forSlot(last).fieldName;
+			}
+			if (!hasNext())
+				throw new NoSuchElementException();
+			last = RequestField.COUNT;
+			return others.next();
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0)
+				throw new IllegalStateException();
+			if (last < RequestField.COUNT) {
+				values[last] = null;
+				present &= ~(1 << last);
+			} else {
+				others.remove();
+			}
+			last = -1;
+		}
 	}
 
 	// Set
@@ -104,7 +236,19 @@ public class WebauthRequest implements Serializable {
 	 */
 
 	public void set(String field, String value) {
-		data.put(field, value);
+		RequestField f = RequestField.forName(field);
+		if (f != null) {
+			put(f, value);
+		} else {
+			if (extra == null)
+				extra = new HashMap<String, String>(4);
+			extra.put(field, value);
+		}
+	}
+
+	private void put(RequestField f, String value) {
+		values[f.ordinal()] = value;
+		present |= 1 << f.ordinal();
 	}
 
 	/**
@@ -131,9 +275,7 @@ public class WebauthRequest implements Serializable {
 	 */
 
 	public void set(String field, long value) {
-		SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
-		format.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
-		set(field, format.format(new Date(value)));
+		set(field, formatDate(value));
 	}
 
 	/**
@@ -146,13 +288,21 @@ public class WebauthRequest implements Serializable {
 	 */
 
 	public void set(String field, Collection<String> value) {
+		set(field, join(value));
+	}
+
+	/**
+	 * Joins a collection into the comma-separated form used by list fields
+	 */
+
+	static String join(Collection<String> value) {
 		StringBuffer buff = new StringBuffer();
 		for (Iterator<String> it = value.iterator(); it.hasNext();) {
 			buff.append(it.next().trim());
 			if (it.hasNext())
 				buff.append(",");
 		}
-		set(field, buff.toString());
+		return buff.toString();
 	}
 
 	// Get
@@ -168,9 +318,12 @@ public class WebauthRequest implements Serializable {
 	 */
 
 	public String get(String field) {
-		if (field == null || data.get(field) == null)
+		if (field == null)
 			return "";
-		return data.get(field);
+		RequestField f = RequestField.forName(field);
+		String value = f != null ? values[f.ordinal()] : extra == null ? null
+				: extra.get(field);
+		return value == null ? "" : value;
 	}
 
 	/**
@@ -230,8 +383,9 @@ public class WebauthRequest implements Serializable {
 
 	public Collection<String> getColl(String field) {
 		HashSet<String> set = new HashSet<String>();
-		for(String token : Util.split(',',get(field))) {
-			set.add(token.trim());
+		Tokenizer tokens = new Tokenizer(',', get(field));
+		while (tokens.next()) {
+			set.add(tokens.trim().token());
 		}
 		return set;
 	}
@@ -250,7 +404,9 @@ public class WebauthRequest implements Serializable {
 		for (int i = 0; i < FIELD_NAME.length; ++i) {
 			if (i != 0)
 				str.append(", ");
-			str.append(FIELD_NAME[i] + ": " + get(FIELD_NAME[i]));
+			String value = values[i];
+			str.append(FIELD_NAME[i]).append(": ")
+					.append(value == null ? "" : value);
 		}
 
 		return str.toString();
@@ -265,16 +421,17 @@ public class WebauthRequest implements Serializable {
 
 	public String toQString() {
 
-		StringBuffer str = new StringBuffer();
+		StringBuilder str = new StringBuilder(128);
 
 		for (int i = 0; i < FIELD_NAME.length; ++i) {
-			if (get(FIELD_NAME[i]) == null || get(FIELD_NAME[i]).equals(""))
+			String value = values[i];
+			if (value == null || value.length() == 0)
 				continue;
 			if (i != 0)
-				str.append("&");
+				str.append('&');
 			try {
-				str.append(FIELD_NAME[i] + "="
-						+ URLEncoder.encode(get(FIELD_NAME[i]),"UTF-8"));
+				str.append(FIELD_NAME[i]).append('=')
+						.append(URLEncoder.encode(value, "UTF-8"));
 			} catch (UnsupportedEncodingException e) {
 				// Shouldn't happen	
 				throw new Error(e);
@@ -309,4 +466,30 @@ public class WebauthRequest implements Serializable {
     set("params", params);
   }
 
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		HashMap<String, String> data = new HashMap<String, String>();
+		for (int i = 0; i < RequestField.COUNT; ++i) {
+			if ((present & (1 << i)) != 0)
+				data.put(FIELD_NAME[i], values[i]);
+		}
+		if (extra != null)
+			data.putAll(extra);
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("data", data);
+		out.writeFields();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		values = new String[RequestField.COUNT];
+		@SuppressWarnings("unchecked")
+		Map<String, String> data = (Map<String, String>) fields.get("data",
+				null);
+		if (data != null) {
+			for (Map.Entry<String, String> e : data.entrySet())
+				set(e.getKey(), e.getValue());
+		}
+	}
+
 }
@@ -23,16 +23,24 @@
 
 package uk.ac.cam.ucs.webauth;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents an authentication response message.
@@ -59,14 +67,35 @@ public class WebauthResponse implements Serializable {
 
 	private static final char RESPONSE_SEP = '!';
 	private static final String DATE_FORMAT = "yyyyMMdd'T'HHmmss'Z'";
+	private static final String QUERY_PARAM = "WLS-Response=";
+	private static final String UTF8 = "UTF-8";
 
 	private HashMap<String,String> data;
 
 	private String[] fieldNames;
 	private int nFields;
-	private String rawData = "";
+	// Created from tokenBytes when first asked for
+	private String rawData;
 	private String token;
 
+	// The token as received, and the length of the signed part of it
+	private transient byte[] tokenBytes;
+	private transient int rawLength;
+
+	// Fields used on every validation, parsed once by parseFields(). Numbers
+	// are -1 if the field is empty or INVALID if it wouldn't parse.
+	private transient int version;
+	private transient int status;
+	private transient long issue;
+	private transient String kid;
+	private static final int INVALID = Integer.MIN_VALUE;
+
+	// Parsed forms of list-valued fields and of 'params', built on first use.
+	// The response never changes after construction so these are simply
+	// dropped on serialization and rebuilt when next needed.
+	private transient volatile Map<String, Collection<String>> collections;
+	private transient volatile Map<String, String> paramIndex;
+
 	/**
 	 * Status code representing successfull authentication
 	 */
@@ -142,28 +171,8 @@ public class WebauthResponse implements Serializable {
 	 */
 
 	public static String statusString(String status) {
-		if (status.equals("200")) {
-			return "OK";
-		} else if (status.equals("410")) {
-			return "Authentication cancelled at user's request";
-		} else if (status.equals("510")) {
-			return "No mutually acceptable types of authentication available";
-		} else if (status.equals("520")) {
-			return "Unsupported authentication protocol version";
-		} else if (status.equals("530")) {
-			return "Parameter error in authentication request";
-		} else if (status.equals("540")) {
-			return "Interaction with the user would be required";
-			// } else if (status.equals("550")) {
-			// return "Web server and authentication server clocks out of sync";
-		} else if (status.equals("560")) {
-			return "Web server not authorised to use "
-					+ "the authentication service";
-		} else if (status.equals("570")) {
-			return "Operation declined by the authentication service";
-		} else {
-			return "Unrecognised status code: " + status;
-		}
+		WebauthStatus s = WebauthStatus.forCode(status);
+		return s != null ? s.message() : "Unrecognised status code: " + status;
 	}
 
 	/**
@@ -176,7 +185,8 @@ public class WebauthResponse implements Serializable {
 	 */
 
 	public static String statusString(int status) {
-		return statusString(String.valueOf(status));
+		WebauthStatus s = WebauthStatus.forCode(status);
+		return s != null ? s.message() : "Unrecognised status code: " + status;
 	}
 
 	/**
@@ -190,42 +200,302 @@ public class WebauthResponse implements Serializable {
 	 */
 
 	public WebauthResponse(String token) throws WebauthException {
+		this(utf8(token), token);
+	}
+
+  /**
+   * Constructs a new WebauthResponse object straight from a URL query string
+   * containing a <tt>WLS-Response</tt> parameter, as returned by
+   * <tt>HttpServletRequest.getQueryString()</tt>.
+   * 
+   * This gives the same result as passing the decoded parameter value to
+   * {@link #WebauthResponse(String)} but decodes the query string and splits
+   * the response into fields in one pass over its bytes, without the servlet
+   * container first decoding every parameter in the query string. As with the
+   * constructor the response is not validated.
+   * 
+   * @param queryString
+   *          a URL query string, which may be null
+   * 
+   * @return the response, or null if the query string has no WLS-Response
+   *         parameter or its value is empty
+   * 
+   * @throws WebauthException
+   *           if the parameter isn't correctly URL-encoded or isn't a
+   *           response message
+   */
+  public static WebauthResponse fromQueryString(String queryString) throws WebauthException {
+    int offset = responseOffset(queryString);
+    return offset < 0 ? null : fromQueryString(queryString, offset);
+  }
+
+  /**
+   * Finds the WLS-Response parameter in a query string.
+   * 
+   * @return the index of the start of the parameter's value, or -1 if, as for
+   *         <tt>ServletRequest.getParameter()</tt>, the first WLS-Response
+   *         parameter is missing or empty
+   */
+  static int responseOffset(String queryString) {
+    if (queryString == null)
+      return -1;
+    int pos = 0;
+    while (pos < queryString.length()) {
+      if (queryString.startsWith(QUERY_PARAM, pos)) {
+        int start = pos + QUERY_PARAM.length();
+        if (start == queryString.length() || queryString.charAt(start) == '&')
+          return -1;
+        return start;
+      }
+      pos = queryString.indexOf('&', pos) + 1;
+      if (pos == 0)
+        break;
+    }
+    return -1;
+  }
+
+  /**
+   * Parses the WLS-Response parameter value starting at offset, as found by
+   * {@link #responseOffset(String)}.
+   */
+  static WebauthResponse fromQueryString(String queryString, int offset) throws WebauthException {
+    int end = queryString.indexOf('&', offset);
+    if (end < 0)
+      end = queryString.length();
+
+    // Undo the query string encoding: '+' and %XX. The result is the token
+    // exactly as the WLS signed it.
+    byte[] bytes = new byte[end - offset];
+    int n = 0;
+    for (int i = offset; i < end; ++i) {
+      char c = queryString.charAt(i);
+      if (c == '%') {
+        int b = i + 2 < end ? hexByte(queryString.charAt(i + 1), queryString.charAt(i + 2)) : -1;
+        if (b < 0)
+          throw new WebauthException(
+              "Error: WLS-Response parameter is not correctly URL-encoded");
+        bytes[n++] = (byte) b;
+        i += 2;
+      } else if (c == '+') {
+        bytes[n++] = ' ';
+      } else if (c < 0x80) {
+        bytes[n++] = (byte) c;
+      } else {
+        // Not legal in a URL, but accept it as a container decoding the query
+        // string as UTF-8 would
+        int len = Character.isHighSurrogate(c) && i + 1 < end ? 2 : 1;
+        byte[] enc = utf8(queryString.substring(i, i + len));
+        i += len - 1;
+        if (bytes.length - n < enc.length + end - i - 1)
+          bytes = Arrays.copyOf(bytes, n + enc.length + end - i - 1);
+        System.arraycopy(enc, 0, bytes, n, enc.length);
+        n += enc.length;
+      }
+    }
+    if (n < bytes.length)
+      bytes = Arrays.copyOf(bytes, n);
+    return new WebauthResponse(bytes, null);
+  }
+
+  private WebauthResponse(byte[] bytes, String token) throws WebauthException {
+
+    this.tokenBytes = bytes;
+    this.token = token;
+
+    // Find the separators. Fields are URL-encoded within the token so every
+    // '!' byte is one; UTF-8 never uses 0x21 within a multi-byte character.
+    int nSeps = 0;
+    for (byte b : bytes) {
+      if (b == RESPONSE_SEP)
+        ++nSeps;
+    }
+    int[] ends = new int[nSeps + 1];
+    int k = 0;
+    for (int i = 0; i < bytes.length; ++i) {
+      if (bytes[i] == RESPONSE_SEP)
+        ends[k++] = i;
+    }
+    ends[k] = bytes.length;
 
-		String[] value = Util.split(RESPONSE_SEP, token);
-		this.token = token;
+    // Everything before the penultimate separator is signed
+    rawLength = nSeps >= 2 ? ends[nSeps - 2] : 0;
 
     // The first field should always be the protocol version number
     int version;
 
-    if (value == null || value.length < 1 || value[0].length() == 0)
+    if (bytes.length == 0 || ends[0] == 0)
       throw new WebauthException("Error: response does not specify a protocol version");
 
     try {
-      version = Integer.parseInt(value[0]);
+      version = Integer.parseInt(new String(bytes, 0, ends[0], UTF8));
       if (version <= 0)
         throw new WebauthException("Error: invalid protocol version - " + version);
     } catch (NumberFormatException e) {
       throw new WebauthException("Error: protocol version is not a valid integer", e);
+    } catch (UnsupportedEncodingException e) {
+      // Shouldn't happen
+      throw new Error("Unable to use encoding UTF-8");
     }
 
     fieldNames = version < 3 ? FIELD_NAMES_12 : FIELD_NAMES_3;
-    nFields = (value.length < fieldNames.length) ? value.length : fieldNames.length;
-		data = new HashMap<String,String>(nFields);
-		for (int i = 0; i < nFields; ++i) {
-			try {
-				data.put(fieldNames[i],URLDecoder.decode(value[i],"UTF-8"));
-			} catch (UnsupportedEncodingException e) {
-				// Shouldn't happen
-				throw new Error("Unable to use encoding UTF-8");
-			}
-		}
+    nFields = (ends.length < fieldNames.length) ? ends.length : fieldNames.length;
+    data = new HashMap<String, String>(nFields);
+    int start = 0;
+    for (int i = 0; i < nFields; ++i) {
+      data.put(fieldNames[i], decodeField(fieldNames[i], bytes, start, ends[i]));
+      start = ends[i] + 1;
+    }
+    parseFields();
+  }
 
-		int ultimate = token.lastIndexOf(RESPONSE_SEP);
-		int penultimate = token.lastIndexOf(RESPONSE_SEP, ultimate - 1);
-		if (penultimate > 0)
-			rawData = token.substring(0, penultimate);
+  private void parseFields() {
+    version = parseInt(get("ver"));
+    status = parseInt(get("status"));
+    issue = parseDate(get("issue"));
+    kid = get("kid");
+  }
 
-	}
+  private static int parseInt(String value) {
+    if (value.length() == 0)
+      return -1;
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return INVALID;
+    }
+  }
+
+  /**
+   * Parses a date of exactly the form yyyyMMddTHHmmssZ with every field in
+   * range, as WLS dates always are. Anything else, which the lenient
+   * SimpleDateFormat of getDate() might still accept, gives INVALID.
+   */
+  static long parseDate(String value) {
+    if (value.length() == 0)
+      return -1;
+    if (value.length() != 16 || value.charAt(8) != 'T' || value.charAt(15) != 'Z')
+      return INVALID;
+    int year = digits(value, 0, 4);
+    int month = digits(value, 4, 2);
+    int day = digits(value, 6, 2);
+    int hour = digits(value, 9, 2);
+    int minute = digits(value, 11, 2);
+    int second = digits(value, 13, 2);
+    if (year < 1970 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)
+        || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59)
+      return INVALID;
+
+    // Days since 1970-01-01 in the Gregorian calendar, counting years from
+    // March so that the leap day comes last
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400;
+    int yoe = y - era * 400;
+    int doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+    long days = era * 146097L + doe - 719468;
+    return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+  }
+
+  /** Value of n decimal digits, or -1 if they aren't all digits */
+  private static int digits(String s, int start, int n) {
+    int v = 0;
+    for (int i = start; i < start + n; ++i) {
+      int d = s.charAt(i) - '0';
+      if (d < 0 || d > 9)
+        return -1;
+      v = v * 10 + d;
+    }
+    return v;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2)
+      return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+    return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+  }
+
+  /** Undoes the URL-encoding of a single field, as URLDecoder would */
+  private static String decodeField(String name, byte[] bytes, int start, int end)
+      throws WebauthException {
+    try {
+      int i = start;
+      while (i < end && bytes[i] != '%' && bytes[i] != '+')
+        ++i;
+      if (i == end)
+        return new String(bytes, start, end - start, UTF8);
+
+      byte[] out = new byte[end - start];
+      int n = i - start;
+      System.arraycopy(bytes, start, out, 0, n);
+      for (; i < end; ++i) {
+        byte b = bytes[i];
+        if (b == '%') {
+          int d = i + 2 < end ? hexByte((char) bytes[i + 1], (char) bytes[i + 2]) : -1;
+          if (d < 0)
+            throw new WebauthException("Error: response field '" + name
+                + "' is not correctly URL-encoded");
+          out[n++] = (byte) d;
+          i += 2;
+        } else {
+          out[n++] = b == '+' ? (byte) ' ' : b;
+        }
+      }
+      return new String(out, 0, n, UTF8);
+    } catch (UnsupportedEncodingException e) {
+      // Shouldn't happen
+      throw new Error("Unable to use encoding UTF-8");
+    }
+  }
+
+  /** Value of two hex digits, or -1 if either isn't one */
+  private static int hexByte(char hi, char lo) {
+    int h = Character.digit(hi, 16);
+    int l = Character.digit(lo, 16);
+    return h < 0 || l < 0 ? -1 : h << 4 | l;
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes(UTF8);
+    } catch (UnsupportedEncodingException e) {
+      // Shouldn't happen
+      throw new Error("Unable to use encoding UTF-8");
+    }
+  }
+
+  /**
+   * Recovers the token bytes and the length of the signed part from the
+   * token after deserialization. Done before the response can be seen by
+   * any other thread, as the constructor does, since the two must be read
+   * together.
+   */
+  private void recoverTokenBytes() {
+    int ultimate = token.lastIndexOf(RESPONSE_SEP);
+    int penultimate = token.lastIndexOf(RESPONSE_SEP, ultimate - 1);
+    rawLength = penultimate > 0 ? utf8(token.substring(0, penultimate)).length : 0;
+    tokenBytes = utf8(token);
+  }
+
+  /**
+   * Passes the raw data (see {@link #getRawData()}) to a signature object,
+   * as the UTF-8 bytes that the WLS signed.
+   */
+  void updateSignature(Signature signature) throws SignatureException {
+    signature.update(tokenBytes, 0, rawLength);
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    // make sure the lazily created strings are there to be written
+    getToken();
+    getRawData();
+    out.defaultWriteObject();
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    recoverTokenBytes();
+    parseFields();
+  }
 
 	/* public methods to retrieve data */
 
@@ -292,6 +562,64 @@ public class WebauthResponse implements Serializable {
 		}
 	}
 
+  /**
+   * Returns the protocol version of this response. This is the same as
+   * <tt>getInt("ver")</tt> but the field is only parsed once, when the
+   * response is constructed.
+   * 
+   * @return the protocol version
+   * 
+   * @throws WebauthException
+   *           if the version isn't an integer
+   */
+
+  public int version() throws WebauthException {
+    return version == INVALID ? getInt("ver") : version;
+  }
+
+  /**
+   * Returns the status code from this response. This is the same as
+   * <tt>getInt("status")</tt> but the field is only parsed once, when the
+   * response is constructed.
+   * 
+   * @return the status code, or -1 if the status field is missing or empty
+   * 
+   * @throws WebauthException
+   *           if the status isn't an integer
+   * 
+   * @see WebauthStatus#forCode(int)
+   */
+
+  public int status() throws WebauthException {
+    return status == INVALID ? getInt("status") : status;
+  }
+
+  /**
+   * Returns the issue date of this response as the number of milliseconds
+   * since January 1, 1970 GMT. This is the same as <tt>getDate("issue")</tt>
+   * but a well-formed date is only parsed once, when the response is
+   * constructed.
+   * 
+   * @return the issue date, or -1 if the issue field is missing or empty
+   * 
+   * @throws WebauthException
+   *           if the field can't be converted into a date
+   */
+
+  public long issueMillis() throws WebauthException {
+    return issue == INVALID ? getDate("issue") : issue;
+  }
+
+  /**
+   * Returns the key-id of the key used to sign this response.
+   * 
+   * @return the key-id, or "" if the response doesn't have one
+   */
+
+  public String kid() {
+    return kid;
+  }
+
 	/**
 	 * Returns the value of the specified response field as a long value that
 	 * represents a Date object. The date is returned as the number of
@@ -325,7 +653,8 @@ public class WebauthResponse implements Serializable {
 
 	/**
 	 * Returns a java.util.collection containing the comma-seperated strings
-	 * from the specified field from this response
+	 * from the specified field from this response. The field is parsed only
+	 * once; each call returns a new copy, which the caller may modify.
 	 * 
 	 * @param field
 	 *            a field name from the response
@@ -336,11 +665,30 @@ public class WebauthResponse implements Serializable {
 	 */
 
 	public Collection<String> getColl(String field) {
-		HashSet<String> set = new HashSet<String>();
-		for (String item : Util.split(',',get(field))) {
-			set.add(item.trim());
+		return new HashSet<String>(collection(field));
+	}
+
+	/** The parsed, unmodifiable contents of a list field, cached */
+	private Collection<String> collection(String field) {
+		if (field == null)
+			return Collections.emptySet();
+		Map<String, Collection<String>> cache = collections;
+		if (cache == null) {
+			// A lost race just means a field may be parsed twice
+			cache = new ConcurrentHashMap<String, Collection<String>>(4);
+			collections = cache;
 		}
-		return set;
+		Collection<String> coll = cache.get(field);
+		if (coll == null) {
+			HashSet<String> set = new HashSet<String>();
+			Tokenizer items = new Tokenizer(',', get(field));
+			while (items.next()) {
+				set.add(items.trim().token());
+			}
+			coll = Collections.unmodifiableSet(set);
+			cache.put(field, coll);
+		}
+		return coll;
 	}
 
 	/**
@@ -352,7 +700,17 @@ public class WebauthResponse implements Serializable {
 	 */
 
 	public String getRawData() {
-		return rawData;
+		String raw = rawData;
+		if (raw == null) {
+			try {
+				raw = new String(tokenBytes, 0, rawLength, UTF8);
+			} catch (UnsupportedEncodingException e) {
+				// Shouldn't happen
+				throw new Error("Unable to use encoding UTF-8");
+			}
+			rawData = raw;
+		}
+		return raw;
   }
 
   /**
@@ -361,7 +719,17 @@ public class WebauthResponse implements Serializable {
    * @return the response string from the Raven server.
    */
   public String getToken() {
-    return token;
+    String t = token;
+    if (t == null) {
+      try {
+        t = new String(tokenBytes, UTF8);
+      } catch (UnsupportedEncodingException e) {
+        // Shouldn't happen
+        throw new Error("Unable to use encoding UTF-8");
+      }
+      token = t;
+    }
+    return t;
   }
 
 	/**
@@ -382,7 +750,8 @@ public class WebauthResponse implements Serializable {
 	}
 
   /**
-   * Gets a parameter value stored within the params field.
+   * Gets a parameter value stored within the params field. The params field is indexed on first
+   * use so looking up several parameters only parses it once.
    * 
    * Returns: The parameter value if found. An empty string if the parameter name exists without a
    * value. Null if the parameter does not exist.
@@ -391,24 +760,19 @@ public class WebauthResponse implements Serializable {
     if (paramName == null || paramName.length() == 0)
       return null;
 
-    Collection<String> params = getColl("params");
-    if (params == null)
-      return null;
-
-    // remove any existing method
-    for (String s : params) {
-
-      String[] tokens = s.split("=", 2);
-
-      if (paramName.equals(tokens[0])) {
-        if (tokens.length >= 2)
-          return tokens[1];
-        else
-          return "";// parameter present but no value
+    Map<String, String> index = paramIndex;
+    if (index == null) {
+      index = new HashMap<String, String>();
+      for (String s : collection("params")) {
+        int eq = s.indexOf('=');
+        String name = eq < 0 ? s : s.substring(0, eq);
+        // first occurrence wins, as it did when the collection was scanned
+        if (!index.containsKey(name))
+          index.put(name, eq < 0 ? "" : s.substring(eq + 1));
       }
+      paramIndex = index;
     }
-
-    return null;
+    return index.get(paramName);
   }
 
 }
@@ -0,0 +1,153 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+/**
+ * The status codes that may appear in an authentication response, with
+ * their descriptions. The codes are also available as int constants in
+ * {@link WebauthResponse}.
+ *
+ * @see <a href="http://raven.cam.ac.uk/project/waa2wls-protocol.txt">The
+ *      Cambridge Web Authentication System: WAA->WLS communication protocol</a>
+ */
+
+public enum WebauthStatus {
+
+  SUCCESS(WebauthResponse.SUCCESS, "OK"),
+
+  CANCELED(WebauthResponse.CANCELED, "Authentication cancelled at user's request"),
+
+  NO_COMMON_AUTH(WebauthResponse.NO_COMMON_AUTH,
+      "No mutually acceptable types of authentication available"),
+
+  BAD_VERSION(WebauthResponse.BAD_VERSION, "Unsupported authentication protocol version"),
+
+  REQUEST_ERROR(WebauthResponse.REQUEST_ERROR, "Parameter error in authentication request"),
+
+  IACT_REQUIRED(WebauthResponse.IACT_REQUIRED, "Interaction with the user would be required"),
+
+  UNAUTHORIZED(WebauthResponse.UNAUTHORIZED,
+      "Web server not authorised to use the authentication service"),
+
+  DECLINED(WebauthResponse.DECLINED, "Operation declined by the authentication service");
+
+  // Indexed by (code - 400) / 10 for codes that are a multiple of 10
+  private static final WebauthStatus[] BY_CODE = new WebauthStatus[20];
+
+  static {
+    for (WebauthStatus s : values()) {
+      if (s != SUCCESS)
+        BY_CODE[(s.code - 400) / 10] = s;
+    }
+  }
+
+  private final int code;
+  private final String message;
+
+  private WebauthStatus(int code, String message) {
+    this.code = code;
+    this.message = message;
+  }
+
+  /**
+   * Returns the numeric status code
+   *
+   * @return the status code
+   */
+  public int code() {
+    return code;
+  }
+
+  /**
+   * Returns a text description of this status, as given by
+   * {@link WebauthResponse#statusString(int)}
+   *
+   * @return text description
+   */
+  public String message() {
+    return message;
+  }
+
+  /**
+   * Returns the HTTP status with which an application should report a
+   * response with this status. The protocol's codes are chosen to be
+   * meaningful as HTTP codes so this is the status code itself.
+   *
+   * @return an HTTP status code
+   */
+  public int httpStatus() {
+    return code;
+  }
+
+  /**
+   * Finds the status with a numeric code
+   *
+   * @param code a status code
+   *
+   * @return the status, or null if the code isn't one of those defined
+   */
+  public static WebauthStatus forCode(int code) {
+    if (code == WebauthResponse.SUCCESS)
+      return SUCCESS;
+    if (code < 400 || code >= 600 || code % 10 != 0)
+      return null;
+    return BY_CODE[(code - 400) / 10];
+  }
+
+  /**
+   * Finds the status with a code in string form
+   *
+   * @param code a status code, exactly as it would appear in a response
+   *
+   * @return the status, or null if the code isn't one of those defined
+   */
+  public static WebauthStatus forCode(String code) {
+    if (code == null || code.length() != 3)
+      return null;
+    int n = 0;
+    for (int i = 0; i < 3; ++i) {
+      int d = code.charAt(i) - '0';
+      if (d < 0 || d > 9)
+        return null;
+      n = n * 10 + d;
+    }
+    return forCode(n);
+  }
+
+  /**
+   * Returns the HTTP status with which an application should report a
+   * response status code. Codes that aren't defined by the protocol are
+   * passed on if they are HTTP client or server error codes; anything else
+   * is reported as 500.
+   *
+   * @param code a status code from a response
+   *
+   * @return an HTTP status code
+   */
+  public static int httpStatus(int code) {
+    WebauthStatus s = forCode(code);
+    if (s != null)
+      return s.httpStatus();
+    return code >= 400 && code < 600 ? code : 500;
+  }
+}
@@ -29,12 +29,15 @@ import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.Certificate;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implements a validator for authentication response message.
@@ -53,10 +56,16 @@ public class WebauthValidator {
 
 	private static final String DATE_FORMAT = "yyyy-MM-dd HH:mm:ss.SSS z";
 
-	private KeyStore keyStore;
+	private final AtomicReference<KeyStore> keyStore = new AtomicReference<KeyStore>();
 	private int timeout = DEFAULT_TIMEOUT;
 	private int maxSkew = DEFAULT_MAX_SKEW;
 	private String keyPrefix = DEFAULT_KEY_PREFIX;
+	private SignatureCache signatureCache = null;
+	private ReplayLog replayLog = null;
+	private RequestBinding requestBinding = null;
+	private final Map<String, String> signatureAlgorithms = new ConcurrentHashMap<String, String>();
+	private Provider signatureProvider = null;
+	private volatile Clock clock = Clock.SYSTEM;
 
 	/**
 	 * Default constructor. The timeout for the resulting object is set to 30
@@ -106,7 +115,7 @@ public class WebauthValidator {
 	 */
 
 	public WebauthValidator(KeyStore k) {
-		keyStore = k;
+		keyStore.set(k);
 	}
 
 	/**
@@ -153,7 +162,7 @@ public class WebauthValidator {
 	public void validate(WebauthRequest request, WebauthResponse response)
 			throws WebauthException {
 
-		validate(request, response, new Date().getTime());
+		validate(request, response, clock.currentTimeMillis());
 
 	}
 
@@ -185,12 +194,60 @@ public class WebauthValidator {
     check_parameters(response);
     check_status(response);
     check_time(response, date);
-    check_sig(response);
+    check_sig(response, date);
 
     check_protocol(request, response);
     check_url(request, response);
     check_iact(request, response);
     check_aauth(request, response);
+    check_replay(response, date);
+	}
+
+	/**
+	 * Validate a response to a request that was bound with the validator's
+	 * {@link RequestBinding}, rebuilding the request from the response rather
+	 * than needing a stored copy. See
+	 * {@link #validate(WebauthRequest, WebauthResponse)} for the checks made.
+	 * 
+	 * @param response
+	 *            The {@link WebauthResponse WebauthResponse} object to be
+	 *            validated
+	 * 
+	 * @throws WebauthException
+	 *             if there is no request binding, the response's binding
+	 *             doesn't match, or the response fails to validate
+	 */
+
+	public void validate(WebauthResponse response) throws WebauthException {
+
+		validate(response, clock.currentTimeMillis());
+
+	}
+
+	/**
+	 * Alternate version of {@link #validate(WebauthResponse) validate} in
+	 * which date on which validation is based can be specified.
+	 * 
+	 * @param response
+	 *            See {@link #validate(WebauthResponse)}
+	 * @param date
+	 *            The date on which validation should be based, expressed as the
+	 *            number of milliseconds since January 1, 1970 GMT..
+	 * 
+	 * @throws WebauthException
+	 *             if the response fails to validate
+	 */
+
+	public void validate(WebauthResponse response, long date)
+			throws WebauthException {
+
+		RequestBinding binding = requestBinding;
+		if (binding == null)
+			throw new WebauthException("No request binding configured");
+		if (null == response)
+			throw new WebauthException("Missing WebauthResponse information");
+		validate(binding.recover(response), response, date);
+
 	}
 
 	private void check_parameters(WebauthResponse response)
@@ -213,12 +270,12 @@ public class WebauthValidator {
 			throw new WebauthException("URL missing from response");
 
 		if (response.get("principal").equals("")
-				&& response.getInt("status") == WebauthResponse.SUCCESS)
+				&& response.status() == WebauthResponse.SUCCESS)
 			throw new WebauthException("Principal missing from "
 					+ "status 200 response");
 
 		if (response.get("auth").equals("") && response.get("sso").equals("")
-				&& response.getInt("status") == WebauthResponse.SUCCESS)
+				&& response.status() == WebauthResponse.SUCCESS)
 			throw new WebauthException("No authentication type "
 					+ "found in status 200 response");
 
@@ -226,8 +283,8 @@ public class WebauthValidator {
 			throw new WebauthException("Both first-hand and SSO auth tokens "
 					+ "found in response");
 
-		if ((response.get("kid").equals("") || response.get("sig").equals(""))
-				&& response.getInt("status") == WebauthResponse.SUCCESS)
+		if ((response.kid().equals("") || response.get("sig").equals(""))
+				&& response.status() == WebauthResponse.SUCCESS)
 			throw new WebauthException("KeyID and/or signature missing from "
 					+ "status 200 response");
 	}
@@ -235,8 +292,8 @@ public class WebauthValidator {
 	private void check_protocol(WebauthRequest request, WebauthResponse response)
 			throws WebauthException {
 
-		if ((response.getInt("ver") > MAX_VER)
-				|| (response.getInt("ver") > request.getInt("ver"))) {
+		int version = response.version();
+		if ((version > MAX_VER) || (version > request.getInt("ver"))) {
 			throw new WebauthException("Unacceptable protocol version ("
 					+ response.get("ver") + ") in response");
 		}
@@ -250,37 +307,25 @@ public class WebauthValidator {
     // The url sent back inside the WLS-Response.
     String responseURL = response.get("url");
     // The responseURL is stored in a decoded state which will have converted + into a space.
-    // Lets also do this for the comparison.
-    //
-    // >> Ideally we would have written a Raven specific decoder based on a modified copy of
-    // >> java.net.ULRDecoder but the licensing might be a problem.
-    requestURL = requestURL.replace("+", " ");
+    // The comparison allows for this, and for version 1 responding without the query string.
+    boolean v1 = response.version() == 1;
+    if (UrlMatcher.matches(requestURL, responseURL, v1))
+      return;
 
-    if ("1".equals(response.get("ver"))) {
-      // Version 1 protocol responds without the query string.
-
-      // remove any query strings for comparison
+    // Report the URLs as they were compared
+    requestURL = requestURL.replace("+", " ");
+    if (v1) {
       requestURL = requestURL.replaceFirst("[?].*", "");
       responseURL = responseURL.replaceFirst("[?].*", "");
-
-      if (!responseURL.startsWith(requestURL)) {
-        throw new WebauthException("URL in response (" + responseURL
-            + ") does not match expected URL (" + requestURL + ")");
-      }
-    } else {
-      // Version 2+. Do any exact match on the url.
-      if (!requestURL.equals(responseURL)) {
-        throw new WebauthException("URL in response (" + responseURL
-            + ") does not match expected URL (" + requestURL + ")");
-      }
-
     }
+    throw new WebauthException("URL in response (" + responseURL
+        + ") does not match expected URL (" + requestURL + ")");
 
   }
 
 	private void check_status(WebauthResponse response) throws WebauthException {
 
-		int status = response.getInt("status");
+		int status = response.status();
 		if (status != WebauthResponse.SUCCESS) {
 			String msg = WebauthResponse.statusString(status);
 			if (!response.get("msg").equals("")) {
@@ -294,7 +339,7 @@ public class WebauthValidator {
 	private void check_time(WebauthResponse response, long now)
 			throws WebauthException {
 
-		long issue = response.getDate("issue");
+		long issue = response.issueMillis();
 
 		// We require Issue <= Now + Skew
 
@@ -340,43 +385,84 @@ public class WebauthValidator {
 	private void check_aauth(WebauthRequest request, WebauthResponse response)
 			throws WebauthException {
 
-		Collection<String> aauth = request.getColl("aauth");
+		// The lists are scanned in place rather than built into collections
+		String aauth = request.get("aauth");
 
-		if (aauth == null || aauth.isEmpty())
+		if (aauth == null || aauth.length() == 0)
 			return;
 
 		String auth = response.get("auth");
-		Collection<String> sso = response.getColl("sso");
-		for (String next : aauth) {
-			if (auth.equals(next) || sso.contains(next)) {
+		String sso = response.get("sso");
+		Tokenizer wanted = new Tokenizer(',', aauth);
+		while (wanted.next()) {
+			wanted.trim();
+			if (wanted.tokenEquals(auth)
+					|| Tokenizer.containsTrimmed(',', sso, aauth, wanted.start(),
+							wanted.end())) {
 				return;
 			}
 		}
 		throw new WebauthException("No acceptable authentication types used");
 	}
 
-	private void check_sig(WebauthResponse response) throws WebauthException {
+	private void check_replay(WebauthResponse response, long now)
+			throws WebauthException {
 
+		ReplayLog log = replayLog;
+		if (log == null)
+			return;
 		try {
-			Certificate cert = keyStore.getCertificate(keyPrefix
-					+ response.get("kid"));
+			if (!log.add(response.get("id"), response.issueMillis() + timeout
+					+ maxSkew, now)) {
+				throw new WebauthException("Response " + response.get("id")
+						+ " has already been used");
+			}
+		} catch (IllegalStateException e) {
+			throw new WebauthException("Unable to record response - "
+					+ e.getMessage());
+		}
+	}
+
+	private void check_sig(WebauthResponse response, long now)
+			throws WebauthException {
+
+		String kid = response.kid();
+		try {
+			Certificate cert = keyStore.get().getCertificate(keyPrefix
+					+ kid);
 			if (cert == null) {
 				throw new WebauthException("Failed to retrieve a key with "
-						+ "alias " + keyPrefix + response.get("kid")
+						+ "alias " + keyPrefix + kid
 						+ " from the key store");
 			}
 
+			// A response seen again within its lifetime (browser retry,
+			// reload) needn't be verified again
+			SignatureCache cache = signatureCache;
+			if (cache != null
+					&& cache.contains(response.getRawData(), response.get("sig"),
+							kid, cert, now)) {
+				return;
+			}
+
 			WebauthDecoder decoder = new WebauthDecoder();
 			byte[] sigBytes = decoder.decodeBuffer(response.get("sig"));
 
-			Signature signature = Signature.getInstance(SIGNATURE_SCHEME);
+			Signature signature = getSignature(kid);
 			signature.initVerify(cert);
-			signature.update(response.getRawData().getBytes());
+			response.updateSignature(signature);
 
 			if (!signature.verify(sigBytes)) {
 				throw new WebauthException(
 						"Unable to verify response signature");
 			}
+
+			// Cache until the response would fail check_time anyway
+			if (cache != null) {
+				cache.put(response.getRawData(), response.get("sig"),
+						kid, cert, response.issueMillis()
+								+ timeout + maxSkew);
+			}
 		} catch (KeyStoreException e) {
 			throw new WebauthException("Validator keyStore object "
 					+ "not correctly initialized");
@@ -384,11 +470,12 @@ public class WebauthValidator {
 			throw new WebauthException("Failed to decode signature string");
 		} catch (NoSuchAlgorithmException e) {
 			throw new WebauthException("No security provider implementing "
-					+ "signature scheme " + SIGNATURE_SCHEME
+					+ "signature scheme "
+					+ getSignatureAlgorithm(kid)
 					+ " available in this VM");
 		} catch (InvalidKeyException e) {
 			throw new WebauthException("Key with alias " + keyPrefix
-					+ response.get("kid") + " in the key store is invalid");
+					+ kid + " in the key store is invalid");
 		} catch (SignatureException e) {
 			throw new WebauthException("Failed to verify signature - "
 					+ "signature object is not initialized");
@@ -396,6 +483,69 @@ public class WebauthValidator {
 
 	}
 
+	private Signature getSignature(String kid) throws NoSuchAlgorithmException {
+		String algorithm = getSignatureAlgorithm(kid);
+		Provider provider = signatureProvider;
+		if (provider == null)
+			return Signature.getInstance(algorithm);
+		return Signature.getInstance(algorithm, provider);
+	}
+
+	/**
+	 * Looks up the certificate for a key-id and initialises a signature
+	 * object with it, as check_sig will, so that the key store, provider and
+	 * algorithm are loaded before the first response arrives.
+	 * 
+	 * @throws WebauthException
+	 *             if a response signed with the key couldn't be verified
+	 */
+	void prepare(String kid) throws WebauthException {
+		try {
+			Certificate cert = keyStore.get().getCertificate(keyPrefix + kid);
+			if (cert == null)
+				throw new WebauthException("Failed to retrieve a key with "
+						+ "alias " + keyPrefix + kid + " from the key store");
+			getSignature(kid).initVerify(cert);
+		} catch (KeyStoreException e) {
+			throw new WebauthException("Validator keyStore object "
+					+ "not correctly initialized");
+		} catch (NoSuchAlgorithmException e) {
+			throw new WebauthException("No security provider implementing "
+					+ "signature scheme " + getSignatureAlgorithm(kid)
+					+ " available in this VM");
+		} catch (InvalidKeyException e) {
+			throw new WebauthException("Key with alias " + keyPrefix + kid
+					+ " in the key store is invalid");
+		}
+	}
+
+	/**
+	 * Replace the {@link java.security.KeyStore} holding the WLS's public
+	 * keys, for example after a key has been added or retired. The new store
+	 * is used by every validation that starts after this call; validations
+	 * already under way finish with the old one. The store must not be
+	 * changed after it has been passed in.
+	 * 
+	 * @param k
+	 *            the new key store
+	 */
+
+	public void setKeyStore(KeyStore k) {
+		if (k == null)
+			throw new IllegalArgumentException("KeyStore is null");
+		keyStore.set(k);
+	}
+
+	/**
+	 * Get the {@link java.security.KeyStore} holding the WLS's public keys.
+	 * 
+	 * @return the key store in use
+	 */
+
+	public KeyStore getKeyStore() {
+		return keyStore.get();
+	}
+
 	/**
 	 * Set the maximum expected transmission time for response messages, in
 	 * milliseconds. A response recieved more than this time after it was issued
@@ -477,4 +627,195 @@ public class WebauthValidator {
 		return keyPrefix;
 	}
 
+	/**
+	 * Set a cache of recently verified signatures. When set, a response whose
+	 * signature has already been verified by this validator, with the same
+	 * key, is not verified again while it is still within the timeout. All
+	 * other checks are still made. The default is no cache. The cache should
+	 * be cleared if a key is removed from the key store.
+	 * 
+	 * @param signatureCache
+	 *            the cache, or null to verify every signature
+	 */
+
+	public void setSignatureCache(SignatureCache signatureCache) {
+		this.signatureCache = signatureCache;
+	}
+
+	/**
+	 * Get the cache of recently verified signatures. See
+	 * {@link #setSignatureCache setSignatureCache} for details.
+	 * 
+	 * @return the cache, or null if there isn't one
+	 */
+
+	public SignatureCache getSignatureCache() {
+		return signatureCache;
+	}
+
+	/**
+	 * Set the clock giving the time at which responses are validated by the
+	 * versions of <tt>validate</tt> that aren't given a date. The default
+	 * reads the system time.
+	 * 
+	 * @param clock
+	 *            the clock
+	 */
+
+	public void setClock(Clock clock) {
+		if (clock == null)
+			throw new IllegalArgumentException("Clock is null");
+		this.clock = clock;
+	}
+
+	/**
+	 * Get the clock giving the time at which responses are validated. See
+	 * {@link #setClock setClock} for details.
+	 * 
+	 * @return the clock
+	 */
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Set a log of accepted responses, used to reject any response presented
+	 * more than once. Only responses that pass every other check are
+	 * recorded. By default there is no replay log; an application should
+	 * then make sure for itself that a response is only used once, for
+	 * example by only accepting a response for a session that sent the
+	 * corresponding request.
+	 * 
+	 * @param replayLog
+	 *            the replay log, or null for none. Its window must be at least
+	 *            the timeout plus twice the maximum skew.
+	 */
+
+	public void setReplayLog(ReplayLog replayLog) {
+		this.replayLog = replayLog;
+	}
+
+	/**
+	 * Get the log of accepted responses. See {@link #setReplayLog
+	 * setReplayLog} for details.
+	 * 
+	 * @return the replay log, or null if there isn't one
+	 */
+
+	public ReplayLog getReplayLog() {
+		return replayLog;
+	}
+
+	/**
+	 * Set the binding used to rebuild requests from responses; see
+	 * {@link #validate(WebauthResponse)}. Requests must have been passed
+	 * through {@link RequestBinding#bind RequestBinding.bind} with the same
+	 * key before being sent to the WLS. A replay log should be used as well.
+	 * 
+	 * @param requestBinding
+	 *            the binding, or null for none
+	 */
+
+	public void setRequestBinding(RequestBinding requestBinding) {
+		this.requestBinding = requestBinding;
+	}
+
+	/**
+	 * Get the binding used to rebuild requests from responses. See
+	 * {@link #setRequestBinding setRequestBinding} for details.
+	 * 
+	 * @return the binding, or null if there isn't one
+	 */
+
+	public RequestBinding getRequestBinding() {
+		return requestBinding;
+	}
+
+	/**
+	 * Set the signature algorithm used to verify responses signed with a
+	 * particular key. The default for every key is "SHA1withRSA", which is
+	 * what the WLS currently uses. Any algorithm name accepted by
+	 * {@link java.security.Signature#getInstance(String)} can be given.
+	 * 
+	 * @param kid
+	 *            the key-id, as carried in responses
+	 * @param algorithm
+	 *            the signature algorithm, or null to revert to the default
+	 */
+
+	public void setSignatureAlgorithm(String kid, String algorithm) {
+		if (algorithm == null)
+			signatureAlgorithms.remove(kid);
+		else
+			signatureAlgorithms.put(kid, algorithm);
+		// signatures verified under the old algorithm shouldn't be trusted
+		SignatureCache cache = signatureCache;
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * Get the signature algorithm used to verify responses signed with a
+	 * particular key. See {@link #setSignatureAlgorithm setSignatureAlgorithm}
+	 * for details.
+	 * 
+	 * @param kid
+	 *            the key-id
+	 * @return the signature algorithm
+	 */
+
+	public String getSignatureAlgorithm(String kid) {
+		String algorithm = kid == null ? null : signatureAlgorithms.get(kid);
+		return algorithm == null ? SIGNATURE_SCHEME : algorithm;
+	}
+
+	/**
+	 * Set the security provider used to verify signatures. By default the
+	 * highest-priority installed provider implementing the algorithm is used.
+	 * {@link SignatureProviders#fastest SignatureProviders.fastest} can be
+	 * used to choose the quickest one.
+	 * 
+	 * @param provider
+	 *            the provider, or null to use the default lookup
+	 */
+
+	public void setSignatureProvider(Provider provider) {
+		this.signatureProvider = provider;
+	}
+
+	/**
+	 * Get the security provider used to verify signatures. See
+	 * {@link #setSignatureProvider setSignatureProvider} for details.
+	 * 
+	 * @return the provider, or null if the default lookup is used
+	 */
+
+	public Provider getSignatureProvider() {
+		return signatureProvider;
+	}
+
+	/**
+	 * Copies every setting except the key store from another validator, so
+	 * that validators for different certificates behave alike. Caches and
+	 * logs are shared rather than copied.
+	 * 
+	 * @param other
+	 *            the validator to copy from
+	 */
+
+	void copySettings(WebauthValidator other) {
+		timeout = other.timeout;
+		maxSkew = other.maxSkew;
+		keyPrefix = other.keyPrefix;
+		signatureAlgorithms.clear();
+		signatureAlgorithms.putAll(other.signatureAlgorithms);
+		signatureProvider = other.signatureProvider;
+		// entries are checked against the certificate so can be shared
+		signatureCache = other.signatureCache;
+		replayLog = other.replayLog;
+		requestBinding = other.requestBinding;
+		clock = other.clock;
+	}
+
 }
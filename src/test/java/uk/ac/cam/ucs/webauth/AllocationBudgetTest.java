@@ -0,0 +1,196 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how many bytes the common operations allocate, so that changes
+ * which add garbage to the path every login or request takes are caught by
+ * the build. Allocation is measured with the JVM's per-thread counter,
+ * averaged over many calls after warming up; the tests do nothing on JVMs
+ * without one. Budgets leave room for differences between JVMs, so only
+ * real regressions fail.
+ */
+public class AllocationBudgetTest extends TestCase {
+
+  private static final int WARMUP = 20000;
+  private static final int ITERATIONS = 20000;
+
+  /** One call of the operation being measured */
+  private interface Operation {
+    void run() throws Exception;
+  }
+
+  private WlsSimulator wls;
+  private WebauthRequest request;
+  private String token;
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(AllocationBudgetTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    wls = new WlsSimulator("2");
+    request = new WebauthRequest();
+    request.set("ver", 3);
+    request.set("url", "http://localhost:8080/app/private?page=1");
+    request.set("aauth", "pwd");
+    request.set("date", System.currentTimeMillis());
+    request.setParam("method", "GET");
+    token = wls.respond(request.toQString(), "abc123", 3);
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testParseResponse() throws Exception {
+    assertBudget("new WebauthResponse", 4096, new Operation() {
+      @Override
+      public void run() throws Exception {
+        new WebauthResponse(token);
+      }
+    });
+  }
+
+  public void testValidate() throws Exception {
+    // every call checks the signature
+    final WebauthValidator validator = new WebauthValidator(wls.validatorKeyStore());
+    final WebauthResponse response = new WebauthResponse(token);
+    final long now = response.issueMillis();
+    assertBudget("WebauthValidator.validate", 24576, new Operation() {
+      @Override
+      public void run() throws Exception {
+        validator.validate(request, response, now);
+      }
+    });
+  }
+
+  public void testValidateCached() throws Exception {
+    // after the first call the signature is found in the cache
+    final WebauthValidator validator = new WebauthValidator(wls.validatorKeyStore());
+    validator.setSignatureCache(new SignatureCache(16));
+    final WebauthResponse response = new WebauthResponse(token);
+    final long now = response.issueMillis();
+    assertBudget("WebauthValidator.validate with a signature cache", 512, new Operation() {
+      @Override
+      public void run() throws Exception {
+        validator.validate(request, response, now);
+      }
+    });
+  }
+
+  public void testToQString() throws Exception {
+    assertBudget("WebauthRequest.toQString", 3072, new Operation() {
+      @Override
+      public void run() throws Exception {
+        request.toQString();
+      }
+    });
+  }
+
+  public void testStoredSession() throws Exception {
+    RavenFilter filter = filter();
+    try {
+      MockHttp.Session session = new MockHttp.Session();
+      String toWls = redirect(filter, session);
+      String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      final MockHttp.Request login = new MockHttp.Request(session, back.substring(back
+          .indexOf('?') + 1));
+      filter.doFilter(login.proxy, new MockHttp.Response().proxy, new MockHttp.Chain());
+
+      final MockHttp.Request request = new MockHttp.Request(session, "page=1");
+      final MockHttp.Response response = new MockHttp.Response();
+      final MockHttp.Chain chain = new MockHttp.Chain();
+      assertBudget("RavenFilter.doFilter with a stored session", 512, filter, request,
+          response, chain);
+      assertEquals(200, response.status);
+      assertEquals(WARMUP + ITERATIONS, chain.calls.get());
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  public void testRedirect() throws Exception {
+    RavenFilter filter = filter();
+    try {
+      final MockHttp.Request request = new MockHttp.Request(new MockHttp.Session(), "page=1");
+      final MockHttp.Response response = new MockHttp.Response();
+      final MockHttp.Chain chain = new MockHttp.Chain();
+      assertBudget("RavenFilter.doFilter redirecting to the WLS", 5120, filter, request,
+          response, chain);
+      assertEquals(302, response.status);
+      assertEquals(0, chain.calls.get());
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  // --------------------------------------------------------------- Helpers
+
+  private static RavenFilter filter() throws Exception {
+    RavenFilter filter = new RavenFilter();
+    filter.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+    return filter;
+  }
+
+  private static String redirect(RavenFilter filter, MockHttp.Session session)
+      throws Exception {
+    MockHttp.Request request = new MockHttp.Request(session, "page=1");
+    MockHttp.Response response = new MockHttp.Response();
+    filter.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+    return response.redirect;
+  }
+
+  private static void assertBudget(String name, long budget, final RavenFilter filter,
+      final MockHttp.Request request, final MockHttp.Response response,
+      final MockHttp.Chain chain) throws Exception {
+    assertBudget(name, budget, new Operation() {
+      @Override
+      public void run() throws Exception {
+        filter.doFilter(request.proxy, response.proxy, chain);
+      }
+    });
+  }
+
+  /**
+   * Fails if an operation allocates more than its budget of bytes per call,
+   * on average.
+   */
+  private static void assertBudget(String name, long budget, Operation op) throws Exception {
+    for (int i = 0; i < WARMUP; ++i)
+      op.run();
+    long before = Allocations.allocatedBytes();
+    if (before < 0)
+      return; // not measurable on this JVM
+    for (int i = 0; i < ITERATIONS; ++i)
+      op.run();
+    long perCall = (Allocations.allocatedBytes() - before) / ITERATIONS;
+    assertTrue(name + " allocated " + perCall + " bytes per call, over its budget of "
+        + budget, perCall <= budget);
+  }
+}
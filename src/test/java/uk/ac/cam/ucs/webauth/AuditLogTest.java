@@ -0,0 +1,218 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class AuditLogTest extends TestCase {
+
+  private static final String TOKEN = "3!200!!20141110T151218Z!1415632338-25497-14!"
+      + "http://localhost/!abc123!current!pwd!!36000!!2!sig";
+
+  private File file;
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(AuditLogTest.class);
+  }
+
+  // --------------------------------------------------------------- Fixtures
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("audit", ".log");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    for (int i = 0; i <= 3; ++i)
+      new File(file.getPath() + (i == 0 ? "" : "." + i)).delete();
+  }
+
+  private static List<String> lines(File file) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+        "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null)
+        lines.add(line);
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testEvents() throws Exception {
+    AuditLog audit = new AuditLog(file, 16, AuditLog.OverflowPolicy.DROP);
+    WebauthResponse response = new WebauthResponse(TOKEN);
+    assertTrue(audit.success("10.0.0.1", response));
+    assertTrue(audit.failure("10.0.0.2", response, "Bad\tthing\nhappened"));
+    assertTrue(audit.failure(null, null, "Unparseable"));
+    audit.close();
+    assertFalse(audit.success("10.0.0.1", response));
+    assertEquals(1, audit.getDropped());
+
+    List<String> lines = lines(file);
+    assertEquals(3, lines.size());
+    String[] f = lines.get(0).split("\t", -1);
+    assertEquals(9, f.length);
+    assertTrue(f[0].endsWith("Z"));
+    assertEquals("SUCCESS", f[1]);
+    assertEquals("10.0.0.1", f[2]);
+    assertEquals("abc123", f[3]);
+    assertEquals("1415632338-25497-14", f[4]);
+    assertEquals("20141110T151218Z", f[5]);
+    assertEquals("pwd", f[6]);
+    assertEquals("", f[8]);
+    f = lines.get(1).split("\t", -1);
+    assertEquals("FAILURE", f[1]);
+    assertEquals("Bad thing happened", f[8]);
+    f = lines.get(2).split("\t", -1);
+    assertEquals("", f[2]);
+    assertEquals("", f[3]);
+    assertEquals("Unparseable", f[8]);
+  }
+
+  public void testDrop() throws Exception {
+    AuditLog audit = new AuditLog(file, 4, AuditLog.OverflowPolicy.DROP, 1 << 20, 1, false);
+    for (int i = 0; i < 4; ++i)
+      assertTrue(audit.failure(null, null, "event " + i));
+    assertFalse(audit.failure(null, null, "event 4"));
+    assertEquals(1, audit.getDropped());
+    audit.start();
+    audit.close();
+    List<String> lines = lines(file);
+    assertEquals(4, lines.size());
+    assertTrue(lines.get(3).endsWith("event 3"));
+  }
+
+  public void testBlock() throws Exception {
+    final AuditLog audit = new AuditLog(file, 2, AuditLog.OverflowPolicy.BLOCK, 1 << 20, 1,
+        false);
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 100; ++i)
+          audit.failure(null, null, "event " + i);
+      }
+    };
+    producer.start();
+    producer.join(200);
+    assertTrue("producer should wait for space", producer.isAlive());
+    audit.start();
+    producer.join(5000);
+    assertFalse(producer.isAlive());
+    audit.close();
+    assertEquals(0, audit.getDropped());
+    assertEquals(100, lines(file).size());
+  }
+
+  public void testConcurrentProducers() throws Exception {
+    final AuditLog audit = new AuditLog(file, 64, AuditLog.OverflowPolicy.BLOCK);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      final int n = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 1000; ++i)
+            audit.failure("thread " + n, null, "event " + i);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread t : threads)
+      t.join();
+    audit.close();
+    assertEquals(4000, lines(file).size());
+  }
+
+  public void testCloseWhileProducing() throws Exception {
+    final AuditLog audit = new AuditLog(file, 64, AuditLog.OverflowPolicy.BLOCK);
+    final AtomicInteger accepted = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 1000; ++i) {
+            if (audit.failure(null, null, "event " + i))
+              accepted.incrementAndGet();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    Thread.sleep(1);
+    audit.close();
+    for (Thread t : threads)
+      t.join();
+
+    // every event is either written or counted as dropped
+    assertEquals(accepted.get(), lines(file).size());
+    assertEquals(4000, accepted.get() + audit.getDropped());
+  }
+
+  public void testIdleWriter() throws Exception {
+    AuditLog audit = new AuditLog(file, 16, AuditLog.OverflowPolicy.DROP);
+    Thread.sleep(50);
+    // an event arriving while the writer waits for work wakes it
+    audit.failure(null, null, "late");
+    long deadline = System.currentTimeMillis() + 5000;
+    while (file.length() == 0 && System.currentTimeMillis() < deadline)
+      Thread.sleep(1);
+    assertEquals(1, lines(file).size());
+    audit.close();
+  }
+
+  public void testRolling() throws Exception {
+    AuditLog audit = new AuditLog(file, 16, AuditLog.OverflowPolicy.BLOCK, 200, 2, false);
+    audit.start();
+    for (int i = 0; i < 30; ++i) {
+      audit.failure(null, null, "event " + i);
+      // one event per batch, so that the file rolls between them
+      Thread.sleep(8);
+    }
+    audit.close();
+    assertTrue(new File(file.getPath() + ".1").exists());
+    assertTrue(new File(file.getPath() + ".2").exists());
+    assertFalse(new File(file.getPath() + ".3").exists());
+    assertTrue(file.length() <= 200);
+    List<String> lines = lines(file);
+    assertTrue(lines.get(lines.size() - 1).endsWith("event 29"));
+  }
+}
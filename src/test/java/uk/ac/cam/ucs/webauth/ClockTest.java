@@ -0,0 +1,91 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import junit.framework.TestCase;
+
+public class ClockTest extends TestCase {
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(ClockTest.class);
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testCoarseClock() throws Exception {
+    CoarseClock clock = new CoarseClock(2);
+    try {
+      assertEquals(2, clock.getResolution());
+      long first = clock.currentTimeMillis();
+      assertTrue(Math.abs(System.currentTimeMillis() - first) < 1000);
+      long deadline = System.currentTimeMillis() + 5000;
+      while (clock.currentTimeMillis() == first && System.currentTimeMillis() < deadline)
+        Thread.sleep(1);
+      assertTrue("clock didn't advance", clock.currentTimeMillis() > first);
+    } finally {
+      clock.close();
+    }
+    // once closed, the system time is read directly
+    Thread.sleep(20);
+    long before = System.currentTimeMillis();
+    long now = clock.currentTimeMillis();
+    assertTrue(now >= before && now <= System.currentTimeMillis());
+  }
+
+  public void testResolution() {
+    try {
+      new CoarseClock(0);
+      fail("Accepted a resolution of 0");
+    } catch (IllegalArgumentException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testManualClock() {
+    ManualClock clock = new ManualClock(1000);
+    assertEquals(1000, clock.currentTimeMillis());
+    clock.advance(500);
+    assertEquals(1500, clock.currentTimeMillis());
+    clock.set(0);
+    assertEquals(0, clock.currentTimeMillis());
+  }
+
+  public void testRequestDate() throws Exception {
+    ManualClock clock = new ManualClock(1104584645000L); // 2005-01-01 13:04:05
+    assertEquals("20050101T130405Z", new WebauthRequest(clock).get("date"));
+    assertEquals("20050101T130405Z", ImmutableWebauthRequest.builder(clock).build().get("date"));
+    assertEquals("3", new WebauthRequest(clock).get("ver"));
+  }
+
+  public void testFormatDateCache() {
+    String a = WebauthRequest.formatDate(1104584645000L);
+    assertSame(a, WebauthRequest.formatDate(1104584645999L));
+    assertEquals("20050101T130406Z", WebauthRequest.formatDate(1104584646000L));
+    assertEquals("20050101T130405Z", WebauthRequest.formatDate(1104584645001L));
+    assertEquals("19691231T235959Z", WebauthRequest.formatDate(-1));
+    assertEquals("19700101T000000Z", WebauthRequest.formatDate(0));
+    assertEquals("19691231T235959Z", WebauthRequest.formatDate(-1000));
+  }
+}
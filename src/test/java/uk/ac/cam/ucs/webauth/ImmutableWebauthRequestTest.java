@@ -0,0 +1,209 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+public class ImmutableWebauthRequestTest extends TestCase {
+
+  private WebauthRequest mutable;
+  private ImmutableWebauthRequest request;
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(ImmutableWebauthRequestTest.class);
+  }
+
+  // --------------------------------------------------------------- Fixtures
+
+  @Override
+  protected void setUp() {
+
+    mutable = new WebauthRequest();
+    mutable.set("ver", 2);
+    mutable.set("url", "http://www.cam.ac.uk/raven");
+    mutable.set("desc", "Description");
+    mutable.set("aauth", "x-foobar,pwd");
+    mutable.set("msg", "Message");
+    mutable.set("params", "Params");
+    mutable.set("date", "20050305T123456Z");
+
+    request = ImmutableWebauthRequest.builder().set("ver", 2)
+        .set("url", "http://www.cam.ac.uk/raven").set("desc", "Description")
+        .set("aauth", "x-foobar,pwd").set("msg", "Message").set("params", "Params")
+        .set("date", "20050305T123456Z").build();
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testDefaults() throws java.text.ParseException {
+    ImmutableWebauthRequest r = ImmutableWebauthRequest.builder().build();
+    assertEquals("3", r.get("ver"));
+    long age = new Date().getTime() - r.getDate("date");
+    assertTrue(age >= 0 && age < 1000);
+    assertEquals(2, r.length());
+  }
+
+  public void testSameAsMutable() {
+    assertEquals(mutable.toQString(), request.toQString());
+    assertEquals(mutable.toString(), request.toString());
+    assertEquals(mutable.length(), request.length());
+    assertEquals(mutable.getColl("aauth"), request.getColl("aauth"));
+    assertEquals(mutable.getColl("nonsuch"), request.getColl("nonsuch"));
+    assertEquals(mutable.getColl(null), request.getColl(null));
+    assertEquals("", request.get(null));
+    assertEquals(-1, request.getInt("nonsuch"));
+
+    HashSet<String> expected = new HashSet<String>();
+    for (Iterator<String> it = mutable.getFieldNames(); it.hasNext();)
+      expected.add(it.next());
+    HashSet<String> got = new HashSet<String>();
+    for (Iterator<String> it = request.getFieldNames(); it.hasNext();)
+      got.add(it.next());
+    assertEquals(expected, got);
+  }
+
+  public void testCopyOf() {
+    mutable.set("foo", "bar");
+    ImmutableWebauthRequest copy = ImmutableWebauthRequest.copyOf(mutable);
+    assertEquals(mutable.toQString(), copy.toQString());
+    assertEquals("bar", copy.get("foo"));
+    assertEquals(8, copy.length());
+    assertSame(copy, ImmutableWebauthRequest.copyOf(copy));
+  }
+
+  public void testImmutable() {
+    try {
+      request.set("url", "http://evil.example/");
+      fail("Didn't refuse set");
+    } catch (UnsupportedOperationException e) {
+      // correct behaviour
+    }
+    try {
+      request.set("ver", 3);
+      fail("Didn't refuse set");
+    } catch (UnsupportedOperationException e) {
+      // correct behaviour
+    }
+    try {
+      request.setParam("method", "PUT");
+      fail("Didn't refuse setParam");
+    } catch (UnsupportedOperationException e) {
+      // correct behaviour
+    }
+    try {
+      request.getColl("aauth").clear();
+      fail("Didn't refuse to modify collection");
+    } catch (UnsupportedOperationException e) {
+      // correct behaviour
+    }
+    assertEquals("http://www.cam.ac.uk/raven", request.get("url"));
+  }
+
+  public void testQStringMemoized() {
+    assertSame(request.toQString(), request.toQString());
+  }
+
+  public void testTemplate() {
+    ImmutableWebauthRequest template = ImmutableWebauthRequest.builder()
+        .set("desc", "My application").set("aauth", Arrays.asList("pwd", "card")).build();
+
+    ImmutableWebauthRequest a = template.toBuilder().set("url", "http://a.b/one?x=y")
+        .set("date", 1110026096000L).build();
+    ImmutableWebauthRequest b = template.toBuilder().set("url", "http://a.b/two")
+        .set("date", 1117974896000L).build();
+
+    assertEquals("ver=3&url=http%3A%2F%2Fa.b%2Fone%3Fx%3Dy&desc=My+application"
+        + "&aauth=pwd%2Ccard&date=20050305T123456Z", a.toQString());
+    assertEquals("ver=3&url=http%3A%2F%2Fa.b%2Ftwo&desc=My+application"
+        + "&aauth=pwd%2Ccard&date=20050605T123456Z", b.toQString());
+    assertEquals("", template.get("url"));
+
+    WebauthRequest equivalent = new WebauthRequest();
+    equivalent.set("url", "http://a.b/two");
+    equivalent.set("desc", "My application");
+    equivalent.set("aauth", "pwd,card");
+    equivalent.set("date", 1117974896000L);
+    assertEquals(equivalent.toQString(), b.toQString());
+  }
+
+  public void testSetParam() {
+    ImmutableWebauthRequest r = request.toBuilder().set("params", "").setParam("method", "PUT")
+        .setParam("id", "7").setParam("method", "POST").build();
+    assertEquals(new HashSet<String>(Arrays.asList("method=POST", "id=7")),
+        new HashSet<String>(r.getColl("params")));
+
+    mutable.set("params", "");
+    mutable.setParam("method", "PUT");
+    mutable.setParam("id", "7");
+    mutable.setParam("method", "POST");
+    assertEquals(mutable.getColl("params"), new HashSet<String>(r.getColl("params")));
+
+    ImmutableWebauthRequest replaced = r.toBuilder().set("params", "a=b").setParam("c", "d")
+        .build();
+    assertEquals("a=b,c=d", replaced.get("params"));
+  }
+
+  public void testSerialization() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(request);
+    out.close();
+
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    WebauthRequest copy = (WebauthRequest) in.readObject();
+    assertTrue(copy instanceof ImmutableWebauthRequest);
+    assertEquals(request.toQString(), copy.toQString());
+    assertEquals(request.toString(), copy.toString());
+  }
+
+  public void testFromQString() {
+    ImmutableWebauthRequest copy = ImmutableWebauthRequest.fromQString(request.toQString());
+    assertEquals(request.toQString(), copy.toQString());
+    assertEquals(request.toString(), copy.toString());
+    try {
+      ImmutableWebauthRequest.fromQString("ver=3&url");
+      fail("Didn't reject malformed field");
+    } catch (IllegalArgumentException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testValidates() throws Exception {
+    WlsSimulator wls = new WlsSimulator("901");
+    WebauthValidator validator = new WebauthValidator(wls.validatorKeyStore());
+    ImmutableWebauthRequest r = ImmutableWebauthRequest.builder().set("url", "http://a.b/c")
+        .set("aauth", "pwd").build();
+    validator.validate(r, new WebauthResponse(wls.respond(r.toQString(), "abc123", 3)));
+  }
+}
@@ -0,0 +1,52 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock that only moves when told to, for tests and benchmarks that need
+ * the time under their control.
+ */
+final class ManualClock implements Clock {
+
+  private final AtomicLong now;
+
+  ManualClock(long now) {
+    this.now = new AtomicLong(now);
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return now.get();
+  }
+
+  void set(long time) {
+    now.set(time);
+  }
+
+  /** Moves the clock on by some milliseconds */
+  void advance(long millis) {
+    now.addAndGet(millis);
+  }
+}
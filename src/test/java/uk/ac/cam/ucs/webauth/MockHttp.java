@@ -0,0 +1,300 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Minimal in-memory servlet objects for driving {@link RavenFilter} without a
+ * container.
+ *
+ * The servlet interfaces are implemented with dynamic proxies so that only
+ * the handful of methods the filter actually calls need to be provided; any
+ * other call fails loudly with an UnsupportedOperationException.
+ */
+final class MockHttp {
+
+  private static final AtomicLong SESSION_IDS = new AtomicLong();
+
+  private MockHttp() {
+  }
+
+  private static Object unsupported(Method method) {
+    throw new UnsupportedOperationException(method.getDeclaringClass().getSimpleName() + "."
+        + method.getName() + " is not implemented by MockHttp");
+  }
+
+  /** Parse the value of a single parameter out of a query string. */
+  static String queryParameter(String query, String name) {
+    if (query == null)
+      return null;
+    for (String pair : Util.split('&', query)) {
+      int eq = pair.indexOf('=');
+      String key = eq < 0 ? pair : pair.substring(0, eq);
+      if (name.equals(decode(key)))
+        return eq < 0 ? "" : decode(pair.substring(eq + 1));
+    }
+    return null;
+  }
+
+  private static String decode(String s) {
+    try {
+      return URLDecoder.decode(s, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new Error(e);
+    }
+  }
+
+  /**
+   * An HttpSession holding its attributes in a concurrent map.
+   */
+  static final class Session implements InvocationHandler {
+    final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+    final String id = "mock-" + SESSION_IDS.incrementAndGet();
+    final HttpSession proxy = (HttpSession) Proxy.newProxyInstance(
+        HttpSession.class.getClassLoader(), new Class<?>[] {HttpSession.class}, this);
+
+    @Override
+    public Object invoke(Object p, Method method, Object[] args) {
+      String name = method.getName();
+      if ("getAttribute".equals(name)) {
+        return attributes.get(args[0]);
+      } else if ("setAttribute".equals(name)) {
+        if (args[1] == null)
+          attributes.remove(args[0]);
+        else
+          attributes.put((String) args[0], args[1]);
+        return null;
+      } else if ("removeAttribute".equals(name)) {
+        attributes.remove(args[0]);
+        return null;
+      } else if ("getId".equals(name)) {
+        return id;
+      } else if ("invalidate".equals(name)) {
+        attributes.clear();
+        return null;
+      } else if ("hashCode".equals(name)) {
+        return System.identityHashCode(p);
+      } else if ("equals".equals(name)) {
+        return p == args[0];
+      } else if ("toString".equals(name)) {
+        return "MockSession[" + id + "]";
+      }
+      return unsupported(method);
+    }
+  }
+
+  /**
+   * An HttpServletRequest for a single URL of the form
+   * <tt>scheme://host:port/contextPath/servletPath?query</tt>.
+   */
+  static final class Request implements InvocationHandler {
+    String method = "GET";
+    String scheme = "http";
+    String serverName = "localhost";
+    int serverPort = 8080;
+    String contextPath = "/app";
+    String servletPath = "/private";
+    String queryString;
+    String remoteAddr = "127.0.0.1";
+    Session session;
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    final HttpServletRequest proxy = (HttpServletRequest) Proxy.newProxyInstance(
+        HttpServletRequest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class},
+        this);
+
+    Request(Session session, String queryString) {
+      this.session = session;
+      this.queryString = queryString;
+    }
+
+    String requestURL() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(scheme).append("://").append(serverName);
+      if (serverPort != 80)
+        sb.append(':').append(serverPort);
+      return sb.append(contextPath).append(servletPath).toString();
+    }
+
+    @Override
+    public Object invoke(Object p, Method m, Object[] args) {
+      String name = m.getName();
+      if ("getSession".equals(name)) {
+        if (session == null && (args == null || Boolean.TRUE.equals(args[0])))
+          session = new Session();
+        return session == null ? null : session.proxy;
+      } else if ("getParameter".equals(name)) {
+        return queryParameter(queryString, (String) args[0]);
+      } else if ("getQueryString".equals(name)) {
+        return queryString;
+      } else if ("getMethod".equals(name)) {
+        return method;
+      } else if ("getRequestURL".equals(name)) {
+        return new StringBuffer(requestURL());
+      } else if ("getRequestURI".equals(name)) {
+        return contextPath + servletPath;
+      } else if ("getContextPath".equals(name)) {
+        return contextPath;
+      } else if ("getServletPath".equals(name)) {
+        return servletPath;
+      } else if ("getServerName".equals(name)) {
+        return serverName;
+      } else if ("getServerPort".equals(name)) {
+        return serverPort;
+      } else if ("getScheme".equals(name)) {
+        return scheme;
+      } else if ("getRemoteAddr".equals(name)) {
+        return remoteAddr;
+      } else if ("getHeader".equals(name)) {
+        return null;
+      } else if ("getAttribute".equals(name)) {
+        return attributes.get(args[0]);
+      } else if ("setAttribute".equals(name)) {
+        attributes.put((String) args[0], args[1]);
+        return null;
+      } else if ("removeAttribute".equals(name)) {
+        attributes.remove(args[0]);
+        return null;
+      } else if ("hashCode".equals(name)) {
+        return System.identityHashCode(p);
+      } else if ("equals".equals(name)) {
+        return p == args[0];
+      } else if ("toString".equals(name)) {
+        return "MockRequest[" + requestURL() + "?" + queryString + "]";
+      }
+      return unsupported(m);
+    }
+  }
+
+  /**
+   * An HttpServletResponse recording the error status or redirect location
+   * sent by the filter.
+   */
+  static final class Response implements InvocationHandler {
+    int status = 200;
+    String message;
+    String redirect;
+    final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(
+        HttpServletResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+        this);
+
+    @Override
+    public Object invoke(Object p, Method m, Object[] args) {
+      String name = m.getName();
+      if ("sendError".equals(name)) {
+        status = (Integer) args[0];
+        message = args.length > 1 ? (String) args[1] : null;
+        return null;
+      } else if ("sendRedirect".equals(name)) {
+        status = 302;
+        redirect = (String) args[0];
+        return null;
+      } else if ("setStatus".equals(name)) {
+        status = (Integer) args[0];
+        return null;
+      } else if ("isCommitted".equals(name)) {
+        return status != 200;
+      } else if ("hashCode".equals(name)) {
+        return System.identityHashCode(p);
+      } else if ("equals".equals(name)) {
+        return p == args[0];
+      } else if ("toString".equals(name)) {
+        return "MockResponse[" + status + " " + (redirect != null ? redirect : message) + "]";
+      }
+      return unsupported(m);
+    }
+  }
+
+  /**
+   * A FilterChain that counts the requests reaching the protected resource.
+   */
+  static final class Chain implements FilterChain {
+    final AtomicLong calls = new AtomicLong();
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) {
+      calls.incrementAndGet();
+    }
+  }
+
+  /**
+   * Build a FilterConfig whose ServletContext resolves real paths through
+   * the supplied map.
+   */
+  static FilterConfig filterConfig(final Map<String, String> initParams,
+      final Map<String, String> contextParams, final Map<String, String> realPaths) {
+
+    final ServletContext context = (ServletContext) Proxy.newProxyInstance(
+        ServletContext.class.getClassLoader(), new Class<?>[] {ServletContext.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object p, Method m, Object[] args) {
+            String name = m.getName();
+            if ("getRealPath".equals(name)) {
+              return realPaths.get(args[0]);
+            } else if ("getInitParameter".equals(name)) {
+              return contextParams.get(args[0]);
+            } else if ("log".equals(name)) {
+              return null;
+            }
+            return unsupported(m);
+          }
+        });
+
+    return (FilterConfig) Proxy.newProxyInstance(FilterConfig.class.getClassLoader(),
+        new Class<?>[] {FilterConfig.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object p, Method m, Object[] args) {
+            String name = m.getName();
+            if ("getInitParameter".equals(name)) {
+              return initParams.get(args[0]);
+            } else if ("getServletContext".equals(name)) {
+              return context;
+            } else if ("getFilterName".equals(name)) {
+              return "ravenFilter";
+            } else if ("getInitParameterNames".equals(name)) {
+              return Collections.enumeration(initParams.keySet());
+            }
+            return unsupported(m);
+          }
+        });
+  }
+}
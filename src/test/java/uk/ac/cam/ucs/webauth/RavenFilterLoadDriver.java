@@ -0,0 +1,436 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.FilterConfig;
+
+/**
+ * Drives complete Raven logins through a {@link RavenFilter} against a
+ * {@link WlsSimulator} from several threads at once and reports latency
+ * percentiles and throughput for the whole loop.
+ *
+ * Each login is three passes through the filter in a fresh session: the
+ * initial request (redirected to the WLS), the return from the WLS carrying
+ * the WLS-Response (validated, then redirected to the original URL), and the
+ * follow-up request accepted from the stored session. The simulated WLS
+ * answers with protocol versions 1, 2 and 3 in rotation.
+ *
+ * It can also drive single requests in the mix seen in production: 95% from
+ * users with a stored session, 4% from new users redirected to the WLS and
+ * 1% returning from the WLS with a response to validate. Sessions and WLS
+ * responses are set up before timing starts, so only the filter is
+ * measured. The mix is run with 1, 2, 4 and so on up to the given number of
+ * threads, to show contention as the thread count grows.
+ *
+ * <pre>
+ * java uk.ac.cam.ucs.webauth.RavenFilterLoadDriver [threads] [logins-per-thread]
+ * java uk.ac.cam.ucs.webauth.RavenFilterLoadDriver mix [max-threads] [requests-per-thread]
+ * </pre>
+ */
+public class RavenFilterLoadDriver {
+
+  static final String AUTHENTICATE_URL = "https://wls.invalid/auth/authenticate.html";
+
+  private final RavenFilter filter;
+  private final WlsSimulator wls;
+  private final MockHttp.Chain chain = new MockHttp.Chain();
+
+  /**
+   * Creates a driver with a freshly initialised filter trusting the
+   * simulator's key.
+   */
+  public RavenFilterLoadDriver() throws Exception {
+    this(new HashMap<String, String>());
+  }
+
+  /**
+   * Creates a driver whose filter is initialised with additional init
+   * parameters.
+   */
+  RavenFilterLoadDriver(Map<String, String> initParams) throws Exception {
+    wls = new WlsSimulator("2");
+    filter = new RavenFilter();
+    filter.init(filterConfig(initParams));
+  }
+
+  static FilterConfig filterConfig(Map<String, String> initParams) throws URISyntaxException {
+    Map<String, String> params = new HashMap<String, String>(initParams);
+    if (!params.containsKey(RavenFilter.INIT_PARAM_AUTHENTICATE_URL))
+      params.put(RavenFilter.INIT_PARAM_AUTHENTICATE_URL, AUTHENTICATE_URL);
+    Map<String, String> realPaths = new HashMap<String, String>();
+    realPaths.put(RavenFilter.DEFAULT_CERTIFICATE_PATH, new File(RavenFilterLoadDriver.class
+        .getResource(WlsSimulator.CERTIFICATE_RESOURCE).toURI()).getPath());
+    return MockHttp.filterConfig(params, new HashMap<String, String>(), realPaths);
+  }
+
+  RavenFilter getFilter() {
+    return filter;
+  }
+
+  WlsSimulator getWls() {
+    return wls;
+  }
+
+  long getChainCalls() {
+    return chain.calls.get();
+  }
+
+  /**
+   * Performs one complete login, throwing an IllegalStateException if the
+   * filter does anything unexpected along the way.
+   *
+   * @return the session, in which the user is now logged in
+   */
+  MockHttp.Session login(String principal, int version, int page) throws Exception {
+    MockHttp.Session session = new MockHttp.Session();
+    String query = "page=" + page;
+
+    // 1. Unauthenticated request: redirected to the WLS
+    MockHttp.Request first = new MockHttp.Request(session, query);
+    MockHttp.Response toWls = new MockHttp.Response();
+    filter.doFilter(first.proxy, toWls.proxy, chain);
+    if (toWls.redirect == null || !toWls.redirect.startsWith(AUTHENTICATE_URL + "?"))
+      throw new IllegalStateException("Expected redirect to WLS, got " + toWls);
+
+    // 2. The WLS authenticates the user and sends them back
+    String back = wls.authenticate(toWls.redirect.substring(AUTHENTICATE_URL.length() + 1),
+        principal, version);
+    MockHttp.Request second = new MockHttp.Request(session, back.substring(back.indexOf('?') + 1));
+    MockHttp.Response toApp = new MockHttp.Response();
+    filter.doFilter(second.proxy, toApp.proxy, chain);
+    if (!first.requestURL().concat("?").concat(query).equals(toApp.redirect))
+      throw new IllegalStateException("Expected redirect to application, got " + toApp);
+
+    // 3. Follow-up request accepted from the stored session
+    MockHttp.Request third = new MockHttp.Request(session, query);
+    MockHttp.Response page3 = new MockHttp.Response();
+    long before = chain.calls.get();
+    filter.doFilter(third.proxy, page3.proxy, chain);
+    if (page3.status != 200 || chain.calls.get() == before)
+      throw new IllegalStateException("Expected stored session to be accepted, got " + page3);
+    return session;
+  }
+
+  /**
+   * Sends a new user to the WLS and has them authenticated, stopping short
+   * of returning to the filter.
+   *
+   * @return the request carrying the WLS-Response back to the application
+   */
+  MockHttp.Request pendingLogin(String principal, int page) throws Exception {
+    MockHttp.Session session = new MockHttp.Session();
+    MockHttp.Request first = new MockHttp.Request(session, "page=" + page);
+    MockHttp.Response toWls = new MockHttp.Response();
+    filter.doFilter(first.proxy, toWls.proxy, new MockHttp.Chain());
+    if (toWls.redirect == null)
+      throw new IllegalStateException("Expected redirect to WLS, got " + toWls);
+    String back = wls.authenticate(toWls.redirect.substring(AUTHENTICATE_URL.length() + 1),
+        principal, 3);
+    return new MockHttp.Request(session, back.substring(back.indexOf('?') + 1));
+  }
+
+  /**
+   * Result of a load run.
+   */
+  static class Result {
+    final String operation;
+    final int threads;
+    final long[] latencies;
+    final long elapsedNanos;
+    final int failures;
+    final Throwable firstFailure;
+
+    Result(int threads, long[] latencies, long elapsedNanos, int failures,
+        Throwable firstFailure) {
+      this("logins", threads, latencies, elapsedNanos, failures, firstFailure);
+    }
+
+    Result(String operation, int threads, long[] latencies, long elapsedNanos, int failures,
+        Throwable firstFailure) {
+      this.operation = operation;
+      this.threads = threads;
+      this.latencies = latencies;
+      this.elapsedNanos = elapsedNanos;
+      this.failures = failures;
+      this.firstFailure = firstFailure;
+      Arrays.sort(this.latencies);
+    }
+
+    /** Latency at the given percentile (0-100), in microseconds. */
+    long percentileMicros(double percentile) {
+      if (latencies.length == 0)
+        return 0;
+      int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+      return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000;
+    }
+
+    /** Completed operations per second. */
+    double throughput() {
+      return latencies.length * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("threads=%d %s=%d failures=%d throughput=%.1f/s "
+          + "p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus", threads, operation,
+          latencies.length, failures, throughput(), percentileMicros(50), percentileMicros(90),
+          percentileMicros(99), percentileMicros(99.9), percentileMicros(100));
+    }
+  }
+
+  /**
+   * Runs <tt>loginsPerThread</tt> complete logins on each of
+   * <tt>threads</tt> threads.
+   */
+  Result run(final int threads, final int loginsPerThread) throws InterruptedException {
+    final long[][] latencies = new long[threads][loginsPerThread];
+    final AtomicInteger failures = new AtomicInteger();
+    final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      workers[t] = new Thread("raven-load-" + t) {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < loginsPerThread; i++) {
+            long begin = System.nanoTime();
+            try {
+              login("user" + (id * loginsPerThread + i) % 1000, 1 + i % 3, i);
+            } catch (Throwable e) {
+              failures.incrementAndGet();
+              firstFailure.compareAndSet(null, e);
+            }
+            latencies[id][i] = System.nanoTime() - begin;
+          }
+        }
+      };
+      workers[t].start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers)
+      worker.join();
+    long elapsed = System.nanoTime() - begin;
+
+    long[] all = new long[threads * loginsPerThread];
+    for (int t = 0; t < threads; t++)
+      System.arraycopy(latencies[t], 0, all, t * loginsPerThread, loginsPerThread);
+    return new Result(threads, all, elapsed, failures.get(), firstFailure.get());
+  }
+
+  /** Kinds of request in the production mix */
+  static final int SESSION = 0;
+  static final int REDIRECT = 1;
+  static final int VALIDATE = 2;
+
+  /** Logged in sessions each thread spreads its stored-session requests over */
+  private static final int SESSIONS_PER_THREAD = 8;
+
+  /** The kind of the i'th request a thread makes */
+  static int kind(int i) {
+    int n = i % 100;
+    return n == 0 ? VALIDATE : n <= 4 ? REDIRECT : SESSION;
+  }
+
+  /**
+   * Result of a run of the production mix: all requests, and each kind on
+   * its own.
+   */
+  static class MixResult {
+    final Result all;
+    final Result[] byKind;
+
+    MixResult(Result all, Result[] byKind) {
+      this.all = all;
+      this.byKind = byKind;
+    }
+
+    @Override
+    public String toString() {
+      return all + "\n  " + byKind[SESSION] + "\n  " + byKind[REDIRECT] + "\n  "
+          + byKind[VALIDATE];
+    }
+  }
+
+  /**
+   * Makes <tt>requestsPerThread</tt> requests in the production mix on each
+   * of <tt>threads</tt> threads. Every thread needs a WLS response for each
+   * validation, made in advance, so runs should be kept well within the
+   * validator's timeout.
+   */
+  MixResult runMix(final int threads, final int requestsPerThread) throws Exception {
+    final long[][] latencies = new long[threads][requestsPerThread];
+    final int[][] kinds = new int[threads][requestsPerThread];
+    // threads whose sessions couldn't be set up make no requests
+    final boolean[] ran = new boolean[threads];
+    final AtomicInteger[] failures = { new AtomicInteger(), new AtomicInteger(),
+        new AtomicInteger() };
+    final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+    final CountDownLatch ready = new CountDownLatch(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      workers[t] = new Thread("raven-mix-" + t) {
+        @Override
+        public void run() {
+          MockHttp.Session[] sessions = new MockHttp.Session[SESSIONS_PER_THREAD];
+          MockHttp.Request[] pending = new MockHttp.Request[requestsPerThread / 100 + 1];
+          MockHttp.Chain chain = new MockHttp.Chain();
+          try {
+            for (int s = 0; s < sessions.length; s++)
+              sessions[s] = login("user" + (id * SESSIONS_PER_THREAD + s) % 1000, 3, s);
+            for (int v = 0; v < pending.length; v++)
+              pending[v] = pendingLogin("user" + v % 1000, v);
+            ran[id] = true;
+          } catch (Throwable e) {
+            failures[SESSION].incrementAndGet();
+            firstFailure.compareAndSet(null, e);
+            return;
+          } finally {
+            ready.countDown();
+          }
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            ran[id] = false;
+            return;
+          }
+          int validations = 0;
+          for (int i = 0; i < requestsPerThread; i++) {
+            int kind = kind(i);
+            MockHttp.Request request;
+            if (kind == SESSION)
+              request = new MockHttp.Request(sessions[i % sessions.length], "page=1");
+            else if (kind == REDIRECT)
+              request = new MockHttp.Request(new MockHttp.Session(), "page=" + i);
+            else
+              request = pending[validations++];
+            MockHttp.Response response = new MockHttp.Response();
+            long calls = chain.calls.get();
+            long begin = System.nanoTime();
+            try {
+              filter.doFilter(request.proxy, response.proxy, chain);
+              latencies[id][i] = System.nanoTime() - begin;
+              boolean ok = kind == SESSION ? chain.calls.get() == calls + 1
+                  : kind == REDIRECT ? response.redirect != null
+                      && response.redirect.startsWith(AUTHENTICATE_URL)
+                      : response.redirect != null && !response.redirect.startsWith(AUTHENTICATE_URL);
+              if (!ok)
+                throw new IllegalStateException("Unexpected response " + response);
+            } catch (Throwable e) {
+              latencies[id][i] = System.nanoTime() - begin;
+              failures[kind].incrementAndGet();
+              firstFailure.compareAndSet(null, e);
+            }
+            kinds[id][i] = kind;
+          }
+        }
+      };
+      workers[t].start();
+    }
+
+    ready.await();
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers)
+      worker.join();
+    long elapsed = System.nanoTime() - begin;
+
+    int running = 0;
+    for (int t = 0; t < threads; t++)
+      if (ran[t])
+        running++;
+    long[] all = new long[running * requestsPerThread];
+    long[][] byKind = new long[3][];
+    int[] counts = new int[3];
+    for (int i = 0; i < requestsPerThread; i++)
+      counts[kind(i)] += running;
+    for (int k = 0; k < 3; k++)
+      byKind[k] = new long[counts[k]];
+    int[] filled = new int[3];
+    int filledAll = 0;
+    for (int t = 0; t < threads; t++) {
+      if (!ran[t])
+        continue;
+      System.arraycopy(latencies[t], 0, all, filledAll, requestsPerThread);
+      filledAll += requestsPerThread;
+      for (int i = 0; i < requestsPerThread; i++)
+        byKind[kinds[t][i]][filled[kinds[t][i]]++] = latencies[t][i];
+    }
+    Throwable failure = firstFailure.get();
+    int failed = failures[SESSION].get() + failures[REDIRECT].get() + failures[VALIDATE].get();
+    return new MixResult(new Result("requests", threads, all, elapsed, failed, failure),
+        new Result[] {
+            new Result("sessions", threads, byKind[SESSION], elapsed,
+                failures[SESSION].get(), failure),
+            new Result("redirects", threads, byKind[REDIRECT], elapsed,
+                failures[REDIRECT].get(), failure),
+            new Result("validations", threads, byKind[VALIDATE], elapsed,
+                failures[VALIDATE].get(), failure) });
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && "mix".equals(args[0])) {
+      int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+      int requests = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+      RavenFilterLoadDriver driver = new RavenFilterLoadDriver();
+      System.out.println("warm-up: " + driver.runMix(maxThreads, Math.max(100, requests / 10)));
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        MixResult result = driver.runMix(threads, requests);
+        System.out.println(result);
+        if (result.all.firstFailure != null)
+          result.all.firstFailure.printStackTrace();
+      }
+      return;
+    }
+
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int logins = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    RavenFilterLoadDriver driver = new RavenFilterLoadDriver();
+    System.out.println("warm-up: " + driver.run(threads, Math.max(1, logins / 10)));
+    Result result = driver.run(threads, logins);
+    System.out.println(result);
+    if (result.firstFailure != null)
+      result.firstFailure.printStackTrace();
+  }
+}
@@ -0,0 +1,675 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.security.KeyStore;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks RavenFilter's configuration and the features around a login, running
+ * logins against the local WLS simulator.
+ */
+public class RavenFilterTest extends TestCase {
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(RavenFilterTest.class);
+  }
+
+  public void testFailedSuccessResponse() throws Exception {
+    RavenFilter filter = new RavenFilter();
+    filter.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+    try {
+      WlsSimulator wls = new WlsSimulator("2");
+      MockHttp.Session session = new MockHttp.Session();
+      String toWls = redirect(filter, "localhost", session, "page=1");
+      String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      MockHttp.Request request = new MockHttp.Request(session, back.substring(
+          back.indexOf('?') + 1).replace("abc123", "xyz999"));
+      MockHttp.Response response = new MockHttp.Response();
+      filter.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+
+      // a status 200 response that fails validation is an error, not a success
+      assertEquals(500, response.status);
+      assertTrue(response.message, response.message.indexOf("signature") >= 0);
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  public void testWarmup() throws Exception {
+    new Warmup(null, Clock.SYSTEM).run(ImmutableWebauthRequest.builder().build(), 3);
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_WARMUP_ITERATIONS, "5");
+    RavenFilterLoadDriver driver = new RavenFilterLoadDriver(params);
+    driver.login("abc123", 3, 1);
+    assertEquals(1, driver.getChainCalls());
+
+    params.put(RavenFilter.INIT_PARAM_WARMUP_ITERATIONS, "lots");
+    try {
+      new RavenFilterLoadDriver(params);
+      fail("Didn't reject invalid warmupIterations");
+    } catch (ServletException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testTenants() throws Exception {
+    File config = File.createTempFile("tenants", ".properties");
+    config.deleteOnExit();
+    writeFile(config, "tenant.example.authenticateUrl=https://other.invalid/auth\n"
+        + "tenant.example.allowedPrincipals=abc123\n");
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_AUTHENTICATE_URL, RavenFilterLoadDriver.AUTHENTICATE_URL);
+    params.put(RavenFilter.INIT_PARAM_TENANTS_CONFIG, "/WEB-INF/tenants.properties");
+    Map<String, String> realPaths = new HashMap<String, String>();
+    realPaths.put(RavenFilter.DEFAULT_CERTIFICATE_PATH, new File(getClass().getResource(
+        WlsSimulator.CERTIFICATE_RESOURCE).toURI()).getPath());
+    realPaths.put("/WEB-INF/tenants.properties", config.getPath());
+    RavenFilter filter = new RavenFilter();
+    try {
+      filter.init(MockHttp.filterConfig(params, new HashMap<String, String>(), realPaths));
+
+      assertTrue(redirect(filter, "localhost").startsWith(RavenFilterLoadDriver.AUTHENTICATE_URL));
+      assertTrue(redirect(filter, "tenant.example").startsWith("https://other.invalid/auth?"));
+      assertTrue(redirect(filter, "Tenant.Example").startsWith("https://other.invalid/auth?"));
+
+      // the tenant shares the filter's key but restricts principals
+      WlsSimulator wls = new WlsSimulator("2");
+      assertEquals(200, login(filter, wls, "tenant.example", "abc123"));
+      assertEquals(403, login(filter, wls, "tenant.example", "xyz999"));
+      assertEquals(200, login(filter, wls, "localhost", "xyz999"));
+
+      // a session from one host isn't accepted on another, which may trust
+      // a different WLS: the user is sent to log in there
+      MockHttp.Session session = new MockHttp.Session();
+      String toWls = redirect(filter, "localhost", session, "page=1");
+      String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      redirect(filter, "localhost", session, back.substring(back.indexOf('?') + 1));
+      assertEquals(200, request(filter, "localhost", session).status);
+      MockHttp.Response response = request(filter, "tenant.example", session);
+      assertEquals(302, response.status);
+      assertTrue(response.redirect.startsWith("https://other.invalid/auth?"));
+      response = request(filter, "Tenant.Example", session);
+      assertEquals(302, response.status);
+      // and the same goes the other way
+      session = new MockHttp.Session();
+      toWls = redirect(filter, "tenant.example", session, "page=1");
+      back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      redirect(filter, "tenant.example", session, back.substring(back.indexOf('?') + 1));
+      assertEquals(200, request(filter, "tenant.example", session).status);
+      assertEquals(302, request(filter, "localhost", session).status);
+
+      writeFile(config, "tenant.example.authenticateUrl=https://new.invalid/auth\n");
+      filter.reloadTenants();
+      assertTrue(redirect(filter, "tenant.example").startsWith("https://new.invalid/auth?"));
+      assertEquals(200, login(filter, wls, "tenant.example", "xyz999"));
+
+      writeFile(config, "tenant.example.colour=blue\n");
+      try {
+        filter.reloadTenants();
+        fail("Didn't reject unknown setting");
+      } catch (ServletException e) {
+        // correct behaviour
+      }
+      assertTrue(redirect(filter, "tenant.example").startsWith("https://new.invalid/auth?"));
+
+      // settings the tenant doesn't give follow the filter's
+      filter.setAuthenticateUrl("https://changed.invalid/auth");
+      filter.setAllowedPrincipals("abc123");
+      assertTrue(redirect(filter, "localhost").startsWith("https://changed.invalid/auth?"));
+      assertTrue(redirect(filter, "tenant.example").startsWith("https://new.invalid/auth?"));
+      assertEquals(403, login(filter, wls, "tenant.example", "xyz999"));
+      assertEquals(200, login(filter, wls, "tenant.example", "abc123"));
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  public void testReconfigure() throws Exception {
+    RavenFilter filter = new RavenFilter();
+    try {
+      filter.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+      WlsSimulator wls = new WlsSimulator("2");
+      assertNull(filter.getAllowedPrincipals());
+      assertEquals(200, login(filter, wls, "localhost", "abc123"));
+
+      filter.setAllowedPrincipals("xyz999,def456");
+      assertEquals("def456,xyz999", filter.getAllowedPrincipals());
+      assertEquals(403, login(filter, wls, "localhost", "abc123"));
+      assertEquals(200, login(filter, wls, "localhost", "xyz999"));
+      filter.setAllowedPrincipals(null);
+      assertEquals(200, login(filter, wls, "localhost", "abc123"));
+
+      filter.setAuthenticateUrl("https://other.invalid/auth");
+      assertEquals("https://other.invalid/auth", filter.getAuthenticateUrl());
+      assertTrue(redirect(filter, "localhost").startsWith("https://other.invalid/auth?"));
+      try {
+        filter.setAuthenticateUrl(null);
+        fail("Accepted no authenticate url");
+      } catch (IllegalArgumentException e) {
+        // correct behaviour
+      }
+
+      filter.setServerURLPrefix("https://proxy.example/app");
+      assertEquals("https://proxy.example/app", filter.getServerURLPrefix());
+      assertTrue(redirect(filter, "localhost").indexOf("proxy.example") > 0);
+      assertFalse(filter.isTestingMode());
+      assertEquals(0, filter.getTenantCount());
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  public void testBeforeInit() throws Exception {
+    WlsSimulator wls = new WlsSimulator("2");
+    final KeyStore keyStore = wls.validatorKeyStore();
+    final AtomicInteger loads = new AtomicInteger();
+    RavenFilter filter = new RavenFilter() {
+      @Override
+      protected KeyStore getKeyStore() {
+        loads.incrementAndGet();
+        return keyStore;
+      }
+    };
+    assertNull(filter.getAuthenticateUrl());
+    assertNull(filter.getServerURLPrefix());
+    assertNull(filter.getAllowedPrincipals());
+    assertFalse(filter.isTestingMode());
+    assertEquals(0, filter.getTenantCount());
+    try {
+      filter.setAllowedPrincipals("abc123");
+      fail("Changed settings before init");
+    } catch (IllegalStateException e) {
+      // correct behaviour
+    }
+
+    // the validator is built once, and init goes on to use it
+    WebauthValidator validator = filter.getWebauthValidator();
+    assertSame(validator, filter.getWebauthValidator());
+    filter.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+    try {
+      assertSame(validator, filter.getWebauthValidator());
+      assertEquals(1, loads.get());
+      assertEquals(200, login(filter, wls, "localhost", "abc123"));
+    } finally {
+      filter.destroy();
+    }
+    assertEquals(RavenFilterLoadDriver.AUTHENTICATE_URL, filter.getAuthenticateUrl());
+  }
+
+  public void testJmx() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_JMX_NAME, "uk.ac.cam.ucs.webauth:type=RavenFilter,name=test");
+    RavenFilter filter = new RavenFilter();
+    filter.init(RavenFilterLoadDriver.filterConfig(params));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(params.get(RavenFilter.INIT_PARAM_JMX_NAME));
+    try {
+      assertTrue(server.isRegistered(name));
+      assertEquals(RavenFilterLoadDriver.AUTHENTICATE_URL, server.getAttribute(name,
+          "AuthenticateUrl"));
+      assertEquals(Boolean.FALSE, server.getAttribute(name, "TestingMode"));
+      server.setAttribute(name, new Attribute("AllowedPrincipals", "abc123"));
+      assertEquals("abc123", filter.getAllowedPrincipals());
+      server.invoke(name, "reloadCertificate", new Object[0], new String[0]);
+    } finally {
+      filter.destroy();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+
+  public void testReloadKeys() throws Exception {
+    File original = new File(getClass().getResource(WlsSimulator.CERTIFICATE_RESOURCE).toURI());
+    File cert = File.createTempFile("raven", ".crt");
+    cert.deleteOnExit();
+    writeFile(cert, readFile(original));
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_AUTHENTICATE_URL, RavenFilterLoadDriver.AUTHENTICATE_URL);
+    Map<String, String> realPaths = new HashMap<String, String>();
+    realPaths.put(RavenFilter.DEFAULT_CERTIFICATE_PATH, cert.getPath());
+    RavenFilter filter = new RavenFilter();
+    try {
+      filter.init(MockHttp.filterConfig(params, new HashMap<String, String>(), realPaths));
+      WlsSimulator wls = new WlsSimulator("2");
+      assertEquals(200, login(filter, wls, "localhost", "abc123"));
+
+      // a bad certificate is reported and the old key stays in use
+      KeyStore before = filter.getWebauthValidator().getKeyStore();
+      writeFile(cert, "not a certificate");
+      try {
+        filter.reloadKeys().get();
+        fail("Loaded a bad certificate");
+      } catch (ExecutionException e) {
+        // correct behaviour
+      }
+      assertSame(before, filter.getWebauthValidator().getKeyStore());
+      assertEquals(200, login(filter, wls, "localhost", "abc123"));
+
+      writeFile(cert, readFile(original));
+      KeyStore after = filter.reloadKeys().get();
+      assertNotSame(before, after);
+      assertSame(after, filter.getWebauthValidator().getKeyStore());
+      assertEquals(200, login(filter, wls, "localhost", "abc123"));
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  public void testReloadTenantKeys() throws Exception {
+    String simulatorCert = readFile(new File(getClass().getResource(
+        WlsSimulator.CERTIFICATE_RESOURCE).toURI()));
+    KeyStore other = KeyStore.getInstance("JKS");
+    other.load(getClass().getResourceAsStream("/keystore"), "keystore password".toCharArray());
+    String otherCert = "-----BEGIN CERTIFICATE-----\n"
+        + Base64.encodeBase64String(other.getCertificate("webauth-pubkey2").getEncoded())
+        + "\n-----END CERTIFICATE-----\n";
+
+    File cert = File.createTempFile("tenant", ".crt");
+    cert.deleteOnExit();
+    writeFile(cert, otherCert);
+    File config = File.createTempFile("tenants", ".properties");
+    config.deleteOnExit();
+    writeFile(config, "tenant.example.certificatePath=/WEB-INF/tenant.crt\n");
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_AUTHENTICATE_URL, RavenFilterLoadDriver.AUTHENTICATE_URL);
+    params.put(RavenFilter.INIT_PARAM_TENANTS_CONFIG, "/WEB-INF/tenants.properties");
+    Map<String, String> realPaths = new HashMap<String, String>();
+    realPaths.put(RavenFilter.DEFAULT_CERTIFICATE_PATH, new File(getClass().getResource(
+        WlsSimulator.CERTIFICATE_RESOURCE).toURI()).getPath());
+    realPaths.put("/WEB-INF/tenants.properties", config.getPath());
+    realPaths.put("/WEB-INF/tenant.crt", cert.getPath());
+    RavenFilter filter = new RavenFilter();
+    filter.init(MockHttp.filterConfig(params, new HashMap<String, String>(), realPaths));
+    try {
+      // the tenant's certificate doesn't match the simulator's key, so the
+      // user is sent to log in again
+      WlsSimulator wls = new WlsSimulator("2");
+      assertEquals(200, login(filter, wls, "localhost", "abc123"));
+      assertEquals(302, login(filter, wls, "tenant.example", "abc123"));
+
+      // a reload picks up the tenant's new certificate
+      writeFile(cert, simulatorCert);
+      filter.reloadKeys().get();
+      assertEquals(200, login(filter, wls, "tenant.example", "abc123"));
+
+      // and a bad one is reported while the old key stays in use
+      writeFile(cert, "not a certificate");
+      filter.reloadKeys().get();
+      assertEquals(200, login(filter, wls, "tenant.example", "abc123"));
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  public void testStateStore() throws Exception {
+    RavenFilter node1 = new RavenFilter();
+    RavenFilter node2 = new RavenFilter();
+    try {
+      node1.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+      node2.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+      WlsSimulator wls = new WlsSimulator("2");
+
+      // without a shared store the second node can't find the request
+      assertEquals(500, crossNodeLogin(node1, node2, wls).status);
+
+      LocalStateStore shared = new LocalStateStore();
+      node1.setStateStore(shared);
+      node2.setStateStore(shared);
+      MockHttp.Response response = crossNodeLogin(node1, node2, wls);
+      assertEquals(302, response.status);
+      assertEquals("http://localhost:8080/app/private?page=1", response.redirect);
+      assertEquals(0, shared.size());
+      // and the first node still accepts responses to its own requests
+      assertEquals(200, login(node1, wls, "localhost", "abc123"));
+      assertEquals(0, shared.size());
+    } finally {
+      node1.destroy();
+      node2.destroy();
+    }
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_STATE_STORE, LocalStateStore.class.getName());
+    RavenFilter filter = new RavenFilter();
+    try {
+      filter.init(RavenFilterLoadDriver.filterConfig(params));
+      assertTrue(filter.getStateStore() instanceof LocalStateStore);
+    } finally {
+      filter.destroy();
+    }
+
+    params.put(RavenFilter.INIT_PARAM_STATE_STORE, "no.such.Store");
+    try {
+      new RavenFilter().init(RavenFilterLoadDriver.filterConfig(params));
+      fail("Didn't reject unknown state store");
+    } catch (ServletException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testRequestBinding() throws Exception {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_REQUEST_BINDING_KEY, "a secret shared by all nodes");
+    RavenFilter node1 = new RavenFilter();
+    RavenFilter node2 = new RavenFilter();
+    try {
+      node1.init(RavenFilterLoadDriver.filterConfig(params));
+      node2.init(RavenFilterLoadDriver.filterConfig(params));
+      WlsSimulator wls = new WlsSimulator("2");
+
+      // no session is created before the redirect
+      MockHttp.Request request = new MockHttp.Request(null, "page=1");
+      MockHttp.Response response = new MockHttp.Response();
+      node1.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+      assertEquals(302, response.status);
+      assertNull(request.session);
+
+      response = crossNodeLogin(node1, node2, wls);
+      assertEquals(302, response.status);
+      assertEquals("http://localhost:8080/app/private?page=1", response.redirect);
+      assertEquals(200, login(node2, wls, "localhost", "abc123"));
+    } finally {
+      node1.destroy();
+      node2.destroy();
+    }
+
+    params.put(RavenFilter.INIT_PARAM_REQUEST_BINDING_KEY, "short");
+    try {
+      new RavenFilter().init(RavenFilterLoadDriver.filterConfig(params));
+      fail("Didn't reject short key");
+    } catch (ServletException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testAuditLog() throws Exception {
+    File file = File.createTempFile("audit", ".log");
+    file.deleteOnExit();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_AUDIT_LOG, file.getPath());
+    params.put(RavenFilter.INIT_PARAM_AUDIT_LOG_POLICY, "block");
+    RavenFilterLoadDriver driver = new RavenFilterLoadDriver(params);
+    driver.login("abc123", 3, 1);
+    // a response arriving with nothing stored
+    assertEquals(500, crossNodeLogin(driver.getFilter(), driver.getFilter(),
+        driver.getWls()).status);
+    driver.getFilter().destroy();
+
+    String content = readFile(file);
+    assertTrue(content, content.indexOf("\tSUCCESS\t127.0.0.1\tabc123\t") > 0);
+    assertTrue(content, content.indexOf("\tFAILURE\t127.0.0.1\tabc123\t") > 0);
+    assertTrue(content, content.endsWith("No stored request\n"));
+
+    params.put(RavenFilter.INIT_PARAM_AUDIT_LOG_POLICY, "sometimes");
+    try {
+      new RavenFilterLoadDriver(params);
+      fail("Didn't reject unknown policy");
+    } catch (ServletException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testClock() throws Exception {
+    File audit = File.createTempFile("audit", ".log");
+    audit.deleteOnExit();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_AUDIT_LOG, audit.getPath());
+    params.put(RavenFilter.INIT_PARAM_AUDIT_LOG_POLICY, "block");
+    // responses are issued at the real time, truncated to the second
+    long now = System.currentTimeMillis() / 1000 * 1000 + 1000;
+    RavenFilter filter = new RavenFilter();
+    try {
+      filter.init(RavenFilterLoadDriver.filterConfig(params));
+      assertTrue(filter.getClock() instanceof CoarseClock);
+      assertSame(filter.getClock(), filter.getWebauthValidator().getClock());
+      WlsSimulator wls = new WlsSimulator("2");
+
+      ManualClock clock = new ManualClock(now);
+      filter.setClock(clock);
+      assertSame(clock, filter.getWebauthValidator().getClock());
+      MockHttp.Session session = new MockHttp.Session();
+      String toWls = redirect(filter, "localhost", session, "page=1");
+      assertEquals(WebauthRequest.formatDate(now), MockHttp.queryParameter(toWls.substring(toWls
+          .indexOf('?') + 1), "date"));
+      String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      redirect(filter, "localhost", session, back.substring(back.indexOf('?') + 1));
+      RavenFilter.RavenState state = (RavenFilter.RavenState) session.attributes
+          .get(RavenFilter.SESS_STORED_STATE_KEY);
+      assertEquals(now, state.last);
+
+      // the response is stale by the filter's clock
+      clock.advance(10 * 60 * 1000L);
+      session = new MockHttp.Session();
+      toWls = redirect(filter, "localhost", session, "page=1");
+      back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      MockHttp.Request request = new MockHttp.Request(session, back.substring(back
+          .indexOf('?') + 1));
+      MockHttp.Response response = new MockHttp.Response();
+      filter.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+      assertNull(response.redirect);
+      assertTrue(response.message.indexOf("too long ago") >= 0);
+    } finally {
+      filter.destroy();
+    }
+
+    // and the audit log records both logins at the filter's time
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String content = readFile(audit);
+    assertTrue(content, content.startsWith(format.format(new Date(now)) + "\tSUCCESS\t"));
+    assertTrue(content, content.indexOf("\n" + format.format(new Date(now + 10 * 60 * 1000L))
+        + "\tFAILURE\t") > 0);
+  }
+
+  public void testClockSetBeforeInit() throws Exception {
+    long now = System.currentTimeMillis() / 1000 * 1000 + 1000;
+    ManualClock clock = new ManualClock(now);
+    RavenFilter filter = new RavenFilter();
+    filter.setClock(clock);
+    try {
+      filter.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+      assertSame(clock, filter.getClock());
+      assertSame(clock, filter.getWebauthValidator().getClock());
+      WlsSimulator wls = new WlsSimulator("2");
+      MockHttp.Session session = new MockHttp.Session();
+      String toWls = redirect(filter, "localhost", session, "page=1");
+      String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      redirect(filter, "localhost", session, back.substring(back.indexOf('?') + 1));
+      assertEquals(now, ((RavenFilter.RavenState) session.attributes
+          .get(RavenFilter.SESS_STORED_STATE_KEY)).last);
+    } finally {
+      filter.destroy();
+    }
+    // and restarting the filter keeps it
+    try {
+      filter.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+      assertSame(clock, filter.getClock());
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  public void testFailedInit() throws Exception {
+    File audit = File.createTempFile("audit", ".log");
+    audit.deleteOnExit();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put(RavenFilter.INIT_PARAM_AUDIT_LOG, audit.getPath());
+    params.put(RavenFilter.INIT_PARAM_CERTIFICATE_CHECK_INTERVAL, "never");
+    int before = threads();
+    try {
+      new RavenFilter().init(RavenFilterLoadDriver.filterConfig(params));
+      fail("Didn't reject invalid interval");
+    } catch (ServletException e) {
+      // correct behaviour
+    }
+
+    // the clock and audit log threads started before the failure are gone
+    long deadline = System.currentTimeMillis() + 5000;
+    while (threads() > before && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    assertTrue(threads() <= before);
+  }
+
+  public void testSessionFootprint() throws Exception {
+    RavenFilter filter = new RavenFilter();
+    try {
+      filter.init(RavenFilterLoadDriver.filterConfig(new HashMap<String, String>()));
+      WlsSimulator wls = new WlsSimulator("2");
+      MockHttp.Session session = new MockHttp.Session();
+      String toWls = redirect(filter, "localhost", session, "page=1");
+      String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      redirect(filter, "localhost", session, back.substring(back.indexOf('?') + 1));
+
+      // only the compact state and the user name are left in the session
+      assertEquals(2, session.attributes.size());
+      RavenFilter.RavenState state = (RavenFilter.RavenState) session.attributes
+          .get(RavenFilter.SESS_STORED_STATE_KEY);
+      assertSame(state.principal.getName(), session.attributes.get(RavenFilter.ATTR_REMOTE_USER));
+      assertEquals("pwd", state.auth);
+      assertTrue(state.issue > 0);
+
+      // the filter reports what a state costs: only the state itself, as the
+      // principal is shared and the strings come from the response
+      long perState = filter.getSessionStateBytes();
+      if (Allocations.allocatedBytes() >= 0) {
+        // a 56 byte object, or 72 without compressed references
+        assertTrue("allocated " + perState, perState > 0 && perState <= 80);
+      } else {
+        assertEquals(-1, perState);
+      }
+
+      // a second login by the same user shares the principal
+      MockHttp.Session other = new MockHttp.Session();
+      toWls = redirect(filter, "localhost", other, "page=1");
+      back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+      redirect(filter, "localhost", other, back.substring(back.indexOf('?') + 1));
+      assertSame(state.principal, ((RavenFilter.RavenState) other.attributes
+          .get(RavenFilter.SESS_STORED_STATE_KEY)).principal);
+    } finally {
+      filter.destroy();
+    }
+  }
+
+  /** Counts the live threads the filter starts */
+  private static int threads() {
+    int n = 0;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.isAlive() && t.getName().startsWith("raven-"))
+        ++n;
+    }
+    return n;
+  }
+
+  /** Sends a user to the WLS from one node and back to another */
+  private static MockHttp.Response crossNodeLogin(RavenFilter from, RavenFilter to,
+      WlsSimulator wls) throws Exception {
+    String toWls = redirect(from, "localhost", new MockHttp.Session(), "page=1");
+    String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), "abc123", 3);
+    MockHttp.Request request = new MockHttp.Request(new MockHttp.Session(),
+        back.substring(back.indexOf('?') + 1));
+    MockHttp.Response response = new MockHttp.Response();
+    to.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+    return response;
+  }
+
+  private static String readFile(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(bytes);
+    } finally {
+      in.close();
+    }
+    return new String(bytes, "UTF-8");
+  }
+
+  private static void writeFile(File file, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  /** Makes a request to a host in an existing session */
+  private static MockHttp.Response request(RavenFilter filter, String host,
+      MockHttp.Session session) throws Exception {
+    MockHttp.Request request = new MockHttp.Request(session, "page=1");
+    request.serverName = host;
+    MockHttp.Response response = new MockHttp.Response();
+    filter.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+    return response;
+  }
+
+  private static String redirect(RavenFilter filter, String host) throws Exception {
+    return redirect(filter, host, new MockHttp.Session(), "page=1");
+  }
+
+  /** Logs in and returns the status of the following request */
+  private static int login(RavenFilter filter, WlsSimulator wls, String host, String principal)
+      throws Exception {
+    MockHttp.Session session = new MockHttp.Session();
+    String toWls = redirect(filter, host, session, "page=1");
+    String back = wls.authenticate(toWls.substring(toWls.indexOf('?') + 1), principal, 3);
+    redirect(filter, host, session, back.substring(back.indexOf('?') + 1));
+    MockHttp.Request request = new MockHttp.Request(session, "page=1");
+    request.serverName = host;
+    MockHttp.Response response = new MockHttp.Response();
+    filter.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+    return response.status;
+  }
+
+  private static String redirect(RavenFilter filter, String host, MockHttp.Session session,
+      String query) throws Exception {
+    MockHttp.Request request = new MockHttp.Request(session, query);
+    request.serverName = host;
+    MockHttp.Response response = new MockHttp.Response();
+    filter.doFilter(request.proxy, response.proxy, new MockHttp.Chain());
+    return response.redirect;
+  }
+}
@@ -0,0 +1,141 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+
+import junit.framework.TestCase;
+
+public class RavenLogTest extends TestCase {
+
+  private static final int CALLS = 100000;
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(RavenLogTest.class);
+  }
+
+  // --------------------------------------------------------------- Fixtures
+
+  /** A Log recording debug messages, with debug enabled or not */
+  private static Log recordingLog(final boolean debug, final List<Object> messages) {
+    return (Log) Proxy.newProxyInstance(Log.class.getClassLoader(), new Class<?>[] {Log.class},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object p, Method m, Object[] args) {
+            if (m.getName().equals("isDebugEnabled"))
+              return debug;
+            if (m.getName().startsWith("is"))
+              return true;
+            if (m.getName().equals("debug"))
+              messages.add(args[0]);
+            return null;
+          }
+        });
+  }
+
+  /** An argument that counts calls to toString() */
+  private static class Counted {
+    int calls;
+
+    @Override
+    public String toString() {
+      ++calls;
+      return "counted";
+    }
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testFormat() {
+    assertEquals("a 1 b", RavenLog.format("a {} b", 1, null, 1));
+    assertEquals("a 1 b 2", RavenLog.format("a {} b {}", 1, 2, 2));
+    assertEquals("a null", RavenLog.format("a {}", null, null, 1));
+    assertEquals("a 1", RavenLog.format("a", 1, null, 1));
+    assertEquals("a 1 b {}", RavenLog.format("a {} b {}", 1, null, 1));
+  }
+
+  public void testLazy() {
+    List<Object> messages = new ArrayList<Object>();
+    Counted arg = new Counted();
+
+    RavenLog disabled = new RavenLog(recordingLog(false, messages));
+    disabled.debug("constant");
+    disabled.debug("value {}", arg);
+    disabled.debug("values {} {}", arg, arg);
+    assertEquals(0, arg.calls);
+    assertTrue(messages.isEmpty());
+
+    RavenLog enabled = new RavenLog(recordingLog(true, messages));
+    enabled.debug("constant");
+    enabled.debug("value {}", arg);
+    enabled.debug("values {} and {}", arg, "x");
+    assertEquals(2, arg.calls);
+    assertEquals("constant", messages.get(0));
+    assertEquals("value counted", messages.get(1));
+    assertEquals("values counted and x", messages.get(2));
+  }
+
+  public void testDisabledAllocatesNothing() {
+    if (Allocations.allocatedBytes() < 0)
+      return; // not measurable on this JVM
+    RavenLog disabled = new RavenLog(recordingLog(false, new ArrayList<Object>()));
+    WebauthRequest request = new WebauthRequest();
+    String path = "/private";
+
+    // warm up, so that JIT compilation doesn't count
+    for (int i = 0; i < CALLS; ++i) {
+      disabled.debug("RavenFilter running for: {}", path);
+      disabled.debug("Stored raven request is {}", request);
+    }
+
+    long before = Allocations.allocatedBytes();
+    for (int i = 0; i < CALLS; ++i) {
+      disabled.debug("RavenFilter running for: {}", path);
+      disabled.debug("Stored raven request is {}", request);
+    }
+    long guarded = Allocations.allocatedBytes() - before;
+
+    // the old style builds the message whether or not it is logged
+    before = Allocations.allocatedBytes();
+    int length = 0;
+    for (int i = 0; i < CALLS; ++i) {
+      String a = "RavenFilter running for: " + path;
+      String b = "Stored raven request is " + request;
+      length += a.length() + b.length();
+    }
+    long concatenated = Allocations.allocatedBytes() - before;
+    assertTrue(length > 0);
+
+    // under a byte a call, allowing for the measurement itself
+    assertTrue("disabled logging allocated " + guarded + " bytes", guarded < CALLS);
+    assertTrue(guarded * 100 < concatenated);
+  }
+}
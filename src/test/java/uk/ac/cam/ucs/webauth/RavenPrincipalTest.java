@@ -0,0 +1,92 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+public class RavenPrincipalTest extends TestCase {
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(RavenPrincipalTest.class);
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testIntern() {
+    RavenFilter.RavenPrincipal a = RavenFilter.RavenPrincipal.intern("abc123");
+    assertSame(a, RavenFilter.RavenPrincipal.intern(new String("abc123")));
+    assertEquals("abc123", a.getName());
+    RavenFilter.RavenPrincipal b = RavenFilter.RavenPrincipal.intern("def456");
+    assertFalse(a.equals(b));
+    assertEquals(a.hashCode(), "abc123".hashCode());
+  }
+
+  public void testSerialization() throws Exception {
+    RavenFilter.RavenPrincipal a = RavenFilter.RavenPrincipal.intern("abc123");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(a);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    assertSame(a, in.readObject());
+  }
+
+  public void testForgotten() throws Exception {
+    for (int i = 0; i < 1000; ++i)
+      RavenFilter.RavenPrincipal.intern("user" + i);
+    // nothing holds them, so they are collected and expunged
+    for (int i = 0; i < 50 && RavenFilter.RavenPrincipal.cacheSize() >= 1000; ++i) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertTrue(RavenFilter.RavenPrincipal.cacheSize() < 1000);
+  }
+
+  public void testConcurrent() throws Exception {
+    final RavenFilter.RavenPrincipal[] seen = new RavenFilter.RavenPrincipal[8];
+    Thread[] threads = new Thread[seen.length];
+    for (int t = 0; t < threads.length; ++t) {
+      final int n = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          seen[n] = RavenFilter.RavenPrincipal.intern("shared");
+        }
+      };
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    RavenFilter.RavenPrincipal held = RavenFilter.RavenPrincipal.intern("shared");
+    for (RavenFilter.RavenPrincipal p : seen)
+      assertSame(held, p);
+  }
+}
@@ -0,0 +1,201 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class ReplayLogTest extends TestCase {
+
+  private static final long WINDOW = 31000;
+
+  private File file;
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(ReplayLogTest.class);
+  }
+
+  // --------------------------------------------------------------- Fixtures
+
+  @Override
+  protected void setUp() throws IOException {
+    file = File.createTempFile("replay", ".log");
+    file.delete();
+  }
+
+  @Override
+  protected void tearDown() {
+    file.delete();
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testAdd() throws IOException {
+    ReplayLog log = new ReplayLog(file, 100, WINDOW);
+    long now = System.currentTimeMillis();
+    assertFalse(log.contains("1-2-3", now));
+    assertTrue(log.add("1-2-3", now + WINDOW, now));
+    assertTrue(log.contains("1-2-3", now));
+    assertFalse(log.add("1-2-3", now + WINDOW, now));
+    assertTrue(log.add("1-2-4", now + WINDOW, now));
+    log.close();
+  }
+
+  public void testSurvivesRestart() throws IOException {
+    long now = System.currentTimeMillis();
+    ReplayLog log = new ReplayLog(file, 100, WINDOW);
+    assertTrue(log.add("live", now + WINDOW, now));
+    assertTrue(log.add("expired", now - 1, now));
+    log.close();
+
+    log = new ReplayLog(file, 100, WINDOW);
+    assertFalse(log.add("live", now + WINDOW, now));
+    assertTrue(log.add("expired", now + WINDOW, now));
+    assertTrue(log.add("new", now + WINDOW, now));
+    log.close();
+
+    // a different capacity rewrites the file, keeping live records
+    log = new ReplayLog(file, 10, WINDOW);
+    assertEquals(16 + 10 * 16, file.length());
+    assertTrue(log.contains("live", now));
+    assertTrue(log.contains("new", now));
+    log.close();
+    log = new ReplayLog(file, 10, WINDOW);
+    assertTrue(log.contains("new", now));
+    log.close();
+  }
+
+  public void testRingWraps() throws IOException {
+    long now = System.currentTimeMillis();
+    ReplayLog log = new ReplayLog(file, 10, WINDOW);
+    for (int i = 0; i < 25; ++i)
+      assertTrue(log.add("id" + i, now + WINDOW, now));
+    log.close();
+    assertEquals(16 + 10 * 16, file.length());
+
+    // only the last capacity records survive
+    log = new ReplayLog(file, 10, WINDOW);
+    for (int i = 15; i < 25; ++i)
+      assertTrue(log.contains("id" + i, now));
+    assertFalse(log.contains("id0", now));
+    // and new records replace the oldest
+    assertTrue(log.add("id25", now + WINDOW, now));
+    log.close();
+    log = new ReplayLog(file, 10, WINDOW);
+    assertTrue(log.contains("id25", now));
+    assertTrue(log.contains("id24", now));
+    log.close();
+  }
+
+  public void testWindows() throws IOException {
+    long now = System.currentTimeMillis();
+    ReplayLog log = new ReplayLog(file, 100, WINDOW);
+    assertTrue(log.add("a", now + WINDOW, now));
+    assertFalse(log.add("a", now + 2 * WINDOW, now + WINDOW + 1));
+    assertTrue(log.add("b", now + 2 * WINDOW, now + WINDOW + 1));
+    assertFalse(log.contains("a", now + 2 * WINDOW + 2));
+    assertTrue(log.contains("b", now + 2 * WINDOW + 2));
+    assertFalse(log.contains("b", now + 4 * WINDOW));
+    log.close();
+  }
+
+  public void testFull() throws IOException {
+    long now = System.currentTimeMillis();
+    ReplayLog log = new ReplayLog(file, 8, WINDOW);
+    try {
+      for (int i = 0; i < 1000; ++i)
+        log.add("id" + i, now + WINDOW, now);
+      fail("Didn't report full log");
+    } catch (IllegalStateException e) {
+      // correct behaviour
+    }
+    log.close();
+  }
+
+  public void testNotALog() throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    out.write("not a replay log at all".getBytes("US-ASCII"));
+    out.close();
+    try {
+      new ReplayLog(file, 100, WINDOW);
+      fail("Didn't refuse a file that isn't a replay log");
+    } catch (IOException e) {
+      // correct behaviour
+    }
+    assertEquals(23, file.length());
+  }
+
+  public void testConcurrentDuplicates() throws Exception {
+    final ReplayLog log = new ReplayLog(file, 10000, WINDOW);
+    final long now = System.currentTimeMillis();
+    final AtomicInteger accepted = new AtomicInteger();
+    final CountDownLatch start = new CountDownLatch(1);
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; ++t) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < 1000; ++i) {
+            if (log.add("id" + i, now + WINDOW, now))
+              accepted.incrementAndGet();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread t : threads)
+      t.join();
+    assertEquals(1000, accepted.get());
+    log.close();
+  }
+
+  public void testThroughput() throws IOException {
+    ReplayLog log = new ReplayLog(file, 300000, WINDOW);
+    long now = System.currentTimeMillis();
+    String[] ids = new String[200000];
+    for (int i = 0; i < ids.length; ++i)
+      ids[i] = "1415632162-" + i + "-14";
+    long begin = System.nanoTime();
+    for (String id : ids)
+      assertTrue(log.add(id, now + WINDOW, now));
+    long elapsed = System.nanoTime() - begin;
+    log.close();
+    // well over 100k per second, with a wide margin for slow test machines;
+    // only checked on request since it depends on the machine and its disk
+    if (Boolean.getBoolean("webauth.timingTests"))
+      assertTrue("took " + elapsed / 1000000 + "ms", elapsed < 2000000000L);
+  }
+}
@@ -0,0 +1,119 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import junit.framework.TestCase;
+
+public class RequestBindingTest extends TestCase {
+
+  private static final byte[] KEY = "0123456789abcdef".getBytes();
+
+  private WlsSimulator wls;
+  private WebauthValidator validator;
+  private ImmutableWebauthRequest request;
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(RequestBindingTest.class);
+  }
+
+  // --------------------------------------------------------------- Fixtures
+
+  @Override
+  protected void setUp() throws Exception {
+    wls = new WlsSimulator("901");
+    validator = new WebauthValidator(wls.validatorKeyStore());
+    validator.setRequestBinding(new RequestBinding(KEY));
+    request = ImmutableWebauthRequest.builder().set("url", "http://localhost/app/private?a=b")
+        .set("aauth", "pwd").set("iact", "yes").setParam("method", "GET").build();
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testRoundTrip() throws Exception {
+    ImmutableWebauthRequest bound = validator.getRequestBinding().bind(request);
+    assertTrue(bound.get("params").indexOf(RequestBinding.BINDING_PARAM + "=") >= 0);
+
+    WebauthResponse response = new WebauthResponse(wls.respond(bound.toQString(), "abc123", 3));
+    WebauthRequest recovered = validator.getRequestBinding().recover(response);
+    assertEquals(request.get("ver"), recovered.get("ver"));
+    assertEquals(request.get("url"), recovered.get("url"));
+    assertEquals("pwd", recovered.get("aauth"));
+    assertEquals("yes", recovered.get("iact"));
+    assertEquals(request.get("date"), recovered.get("date"));
+    assertEquals("GET", response.getParam("method"));
+    validator.validate(response);
+
+    // each binding is different
+    assertFalse(bound.get("params").equals(
+        validator.getRequestBinding().bind(request).get("params")));
+  }
+
+  public void testRejected() throws Exception {
+    // no binding
+    WebauthResponse response = new WebauthResponse(wls.respond(request.toQString(), "abc123", 3));
+    try {
+      validator.validate(response);
+      fail("Didn't reject unbound response");
+    } catch (WebauthException e) {
+      assertEquals("Response has no request binding", e.getMessage());
+    }
+
+    // bound to a different url
+    ImmutableWebauthRequest bound = validator.getRequestBinding().bind(request);
+    String query = bound.toQString().replace("private", "public");
+    try {
+      validator.validate(new WebauthResponse(wls.respond(query, "abc123", 3)));
+      fail("Didn't reject binding for another url");
+    } catch (WebauthException e) {
+      assertEquals("Request binding doesn't match response", e.getMessage());
+    }
+
+    // bound with a different key
+    WebauthValidator other = new WebauthValidator(wls.validatorKeyStore());
+    other.setRequestBinding(new RequestBinding("fedcba9876543210".getBytes()));
+    try {
+      other.validate(new WebauthResponse(wls.respond(bound.toQString(), "abc123", 3)));
+      fail("Didn't reject binding made with another key");
+    } catch (WebauthException e) {
+      assertEquals("Request binding doesn't match response", e.getMessage());
+    }
+
+    try {
+      new WebauthValidator(wls.validatorKeyStore()).validate(response);
+      fail("Validated without a binding");
+    } catch (WebauthException e) {
+      assertEquals("No request binding configured", e.getMessage());
+    }
+  }
+
+  public void testShortKey() {
+    try {
+      new RequestBinding("too short".getBytes());
+      fail("Accepted short key");
+    } catch (IllegalArgumentException e) {
+      // correct behaviour
+    }
+  }
+}
@@ -0,0 +1,198 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class StateStoreTest extends TestCase {
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(StateStoreTest.class);
+  }
+
+  // --------------------------------------------------------------- Fixtures
+
+  /** A slow remote store that counts round trips */
+  private static class CountingStore implements StateStore {
+    final LocalStateStore store = new LocalStateStore();
+    final AtomicInteger putCalls = new AtomicInteger();
+    final AtomicInteger takeCalls = new AtomicInteger();
+    final AtomicInteger removeCalls = new AtomicInteger();
+    volatile boolean failing;
+    /** If set, writes wait for it to open */
+    volatile CountDownLatch gate;
+
+    @Override
+    public void put(String key, byte[] value, long ttl) throws IOException {
+      putAll(Collections.singletonMap(key, value), ttl);
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> values, long ttl) throws IOException {
+      putCalls.incrementAndGet();
+      if (failing)
+        throw new IOException("unreachable");
+      try {
+        CountDownLatch g = gate;
+        if (g != null)
+          g.await();
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        throw new IOException("interrupted");
+      }
+      store.putAll(values, ttl);
+    }
+
+    @Override
+    public byte[] take(String key) {
+      takeCalls.incrementAndGet();
+      return store.take(key);
+    }
+
+    @Override
+    public void removeAll(Collection<String> keys) {
+      removeCalls.incrementAndGet();
+      store.removeAll(keys);
+    }
+
+    @Override
+    public void close() {
+      store.close();
+    }
+
+    int size() {
+      return store.size();
+    }
+  }
+
+  private static byte[] bytes(String s) throws IOException {
+    return s.getBytes("UTF-8");
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testLocal() throws IOException {
+    LocalStateStore store = new LocalStateStore();
+    store.put("a", bytes("1"), 60000);
+    store.put("b", bytes("2"), -1);
+    assertEquals("1", new String(store.take("a"), "UTF-8"));
+    assertNull(store.take("a"));
+    assertNull(store.take("b"));
+    assertNull(store.take("c"));
+
+    store = new LocalStateStore();
+    for (int i = 0; i < LocalStateStore.PURGE_INTERVAL; ++i)
+      store.put("x" + i, bytes("x"), i % 2 == 0 ? -1 : 60000);
+    assertEquals(LocalStateStore.PURGE_INTERVAL / 2, store.size());
+    store.removeAll(Arrays.asList("x1", "x3", "nothing"));
+    assertEquals(LocalStateStore.PURGE_INTERVAL / 2 - 2, store.size());
+  }
+
+  public void testNearCache() throws IOException {
+    CountingStore remote = new CountingStore();
+    NearCacheStateStore node1 = new NearCacheStateStore(remote);
+    NearCacheStateStore node2 = new NearCacheStateStore(remote);
+
+    // taken on another node: from the remote store
+    node1.put("a", bytes("1"), 60000);
+    assertEquals(1, remote.size());
+    assertEquals("1", new String(node2.take("a"), "UTF-8"));
+    assertEquals(1, remote.takeCalls.get());
+    assertNull(node2.take("a"));
+
+    // taken on the same node: from the near cache, removed later
+    node1.put("b", bytes("2"), 60000);
+    assertEquals("2", new String(node1.take("b"), "UTF-8"));
+    assertEquals(2, remote.takeCalls.get());
+    assertEquals(1, remote.size());
+    node1.flush();
+    assertEquals(0, remote.size());
+
+    // removals go out after the next write
+    node1.put("c", bytes("3"), 60000);
+    node1.take("c");
+    node1.put("d", bytes("4"), 60000);
+    assertNull(remote.take("c"));
+    assertNotNull(remote.take("d"));
+
+    remote.failing = true;
+    try {
+      node1.put("e", bytes("5"), 60000);
+      fail("Didn't report unreachable store");
+    } catch (IOException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testBatching() throws Exception {
+    final CountingStore remote = new CountingStore();
+    final NearCacheStateStore store = new NearCacheStateStore(remote);
+    final AtomicInteger errors = new AtomicInteger();
+    CountDownLatch gate = new CountDownLatch(1);
+    remote.gate = gate;
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; ++t) {
+      final int n = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            store.put("key-" + n, bytes("v"), 60000);
+          } catch (Exception e) {
+            errors.incrementAndGet();
+          }
+        }
+      };
+    }
+
+    // hold the first write in flight until the others have all queued
+    threads[0].start();
+    while (remote.putCalls.get() == 0)
+      Thread.sleep(1);
+    for (int t = 1; t < threads.length; ++t)
+      threads[t].start();
+    for (int t = 1; t < threads.length; ++t) {
+      while (threads[t].getState() != Thread.State.WAITING)
+        Thread.sleep(1);
+    }
+    gate.countDown();
+    for (Thread t : threads)
+      t.join();
+
+    assertEquals(0, errors.get());
+    // every value reached the remote store, the queued ones in one batch
+    assertEquals(8, remote.size());
+    assertEquals(2, remote.putCalls.get());
+    store.close();
+  }
+}
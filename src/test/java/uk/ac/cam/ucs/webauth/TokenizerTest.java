@@ -0,0 +1,115 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TokenizerTest extends TestCase {
+
+  private static final String[] SAMPLES = { "", ",", "a", "a,b", "a,,b", ",a", "a,", " a , b ",
+      "pwd,card,", "  ", ",,," };
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(TokenizerTest.class);
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testFields() {
+    Tokenizer t = new Tokenizer(',', "ab, c,,d");
+    assertTrue(t.next());
+    assertEquals(0, t.start());
+    assertEquals(2, t.end());
+    assertEquals("ab", t.token());
+    assertTrue(t.next());
+    assertEquals(" c", t.token());
+    assertEquals("c", t.trim().token());
+    assertTrue(t.tokenEquals("c"));
+    assertTrue(t.next());
+    assertEquals("", t.token());
+    assertTrue(t.next());
+    assertEquals("d", t.token());
+    assertFalse(t.next());
+    assertFalse(t.next());
+  }
+
+  public void testSplitSemantics() {
+    Tokenizer t = new Tokenizer();
+    assertFalse(t.next());
+    for (String sample : SAMPLES) {
+      List<String> fields = new ArrayList<String>();
+      t.reset(',', sample);
+      while (t.next())
+        fields.add(t.token());
+      assertEquals(sample, legacySplit(',', sample), fields);
+      assertEquals(sample, fields.size(), Tokenizer.count(',', sample));
+      assertEquals(sample, legacySplit(',', sample), Arrays.asList(Util.split(',', sample)));
+    }
+  }
+
+  public void testContainsTrimmed() {
+    assertTrue(Tokenizer.containsTrimmed(',', "pwd, card", "card", 0, 4));
+    assertTrue(Tokenizer.containsTrimmed(',', " pwd ,card", "xpwdx", 1, 4));
+    assertFalse(Tokenizer.containsTrimmed(',', "pwd,card", "pw", 0, 2));
+    assertFalse(Tokenizer.containsTrimmed(',', "", "", 0, 0));
+    assertTrue(Tokenizer.containsTrimmed(',', "pwd,,card", "", 0, 0));
+    for (String sample : SAMPLES) {
+      for (String item : new String[] { "", "a", "b", "pwd", "card" }) {
+        boolean expected = false;
+        for (String field : legacySplit(',', sample))
+          expected |= field.trim().equals(item);
+        assertEquals(sample + " " + item, expected, Tokenizer.containsTrimmed(',', sample, item, 0,
+            item.length()));
+      }
+    }
+  }
+
+  public void testRegionEquals() {
+    assertTrue(Tokenizer.regionEquals("abcd", 1, 3, "bc", 0, 2));
+    assertFalse(Tokenizer.regionEquals("abcd", 1, 3, "bd", 0, 2));
+    assertFalse(Tokenizer.regionEquals("abcd", 1, 4, "bc", 0, 2));
+    assertTrue(Tokenizer.regionEquals("abcd", 2, 2, "", 0, 0));
+  }
+
+  /** Util.split as it was before it used a Tokenizer */
+  private static List<String> legacySplit(char delim, String text) {
+    List<String> list = new ArrayList<String>();
+    if (text.length() == 0)
+      return list;
+    int fromIndex = 0;
+    while (fromIndex <= text.length()) {
+      int toIndex = text.indexOf(delim, fromIndex);
+      if (toIndex == -1)
+        toIndex = text.length();
+      list.add(text.substring(fromIndex, toIndex));
+      fromIndex = toIndex + 1;
+    }
+    return list;
+  }
+}
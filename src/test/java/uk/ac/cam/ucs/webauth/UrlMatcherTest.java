@@ -0,0 +1,106 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that UrlMatcher makes the same decisions as the string-replacing
+ * comparison it replaced in WebauthValidator.check_url.
+ */
+public class UrlMatcherTest extends TestCase {
+
+  private static final String[] URLS = {
+      "", "?", "+", " ", "http://a.b/c", "http://a.b/c/", "http://a.b/c?", "http://a.b/c?x=y",
+      "http://a.b/c?x=y&z", "http://a.b/c/d", "http://a.b/c+d", "http://a.b/c d",
+      "http://a.b/c+d?e+f", "http://a.b/c d?e f", "http://a.b/c d?e+f", "http://a.b/c?x\ny",
+      "http://a.b/c?x\ny?z", "http://a.b/c?x\r\nd", "http://a.b/c?x\u2028d",
+      "http://a.b/c?x\u0085d", "http://a.b/c?\u2029", "http://a.b/??", "http://A.B/c"};
+
+  // ----------------------------------------------------------- Housekeeping
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(UrlMatcherTest.class);
+  }
+
+  // ----------------------------------------------------------------- Tests
+
+  public void testKnownCases() {
+    for (String req : URLS) {
+      for (String resp : URLS) {
+        check(req, resp);
+      }
+    }
+  }
+
+  public void testRandom() {
+    Random random = new Random(42);
+    char[] alphabet = {'a', 'b', '/', '+', ' ', '?', '=', '&', '\n', '\r', '\u2028', '%'};
+    for (int i = 0; i < 200000; ++i) {
+      String req = randomString(random, alphabet);
+      String resp = random.nextInt(4) == 0 ? req.replace('+', ' ') + randomString(random, alphabet)
+          : randomString(random, alphabet);
+      check(req, resp);
+    }
+  }
+
+  public void testDecisions() {
+    assertTrue(UrlMatcher.matches("http://a.b/c+d", "http://a.b/c d", false));
+    assertFalse(UrlMatcher.matches("http://a.b/c+d", "http://a.b/c+d", false));
+    assertFalse(UrlMatcher.matches("http://a.b/c d", "http://a.b/c+d", false));
+    assertFalse(UrlMatcher.matches("http://a.b/c?x", "http://a.b/c", false));
+    assertTrue(UrlMatcher.matches("http://a.b/c?x", "http://a.b/c", true));
+    assertTrue(UrlMatcher.matches("http://a.b/c", "http://a.b/c/d?x", true));
+    assertFalse(UrlMatcher.matches("http://a.b/c/d", "http://a.b/c", true));
+  }
+
+  // -------------------------------------------------------------- Helpers
+
+  private static String randomString(Random random, char[] alphabet) {
+    int len = random.nextInt(8);
+    StringBuilder sb = new StringBuilder(len);
+    for (int i = 0; i < len; ++i)
+      sb.append(alphabet[random.nextInt(alphabet.length)]);
+    return sb.toString();
+  }
+
+  private static void check(String req, String resp) {
+    assertEquals("v1: [" + req + "] [" + resp + "]", original(req, resp, true),
+        UrlMatcher.matches(req, resp, true));
+    assertEquals("v2: [" + req + "] [" + resp + "]", original(req, resp, false),
+        UrlMatcher.matches(req, resp, false));
+  }
+
+  /** The comparison as WebauthValidator made it before UrlMatcher */
+  private static boolean original(String requestURL, String responseURL, boolean v1) {
+    requestURL = requestURL.replace("+", " ");
+    if (v1) {
+      requestURL = requestURL.replaceFirst("[?].*", "");
+      responseURL = responseURL.replaceFirst("[?].*", "");
+      return responseURL.startsWith(requestURL);
+    }
+    return requestURL.equals(responseURL);
+  }
+}
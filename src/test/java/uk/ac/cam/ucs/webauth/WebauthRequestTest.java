@@ -24,8 +24,13 @@
 
 package uk.ac.cam.ucs.webauth;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
@@ -33,10 +38,23 @@ import java.util.Iterator;
 
 import junit.framework.TestCase;
 
+import org.apache.commons.codec.binary.Base64;
+
 public class WebauthRequestTest extends TestCase {
 
 	private WebauthRequest request;
 
+	/**
+	 * A request serialized before fields were kept in slots, with date,
+	 * url, aauth, desc (null) and colour set
+	 */
+	private static final String SERIALIZED_MAP_FORM = "rO0ABXNyACR1ay5hYy5jYW0udWNzLndlYmF1dGguV2ViYXV0aFJlcXVlc3SJDnur" +
+			"POiB4gIAAUwABGRhdGF0ABNMamF2YS91dGlsL0hhc2hNYXA7eHBzcgARamF2YS51" +
+			"dGlsLkhhc2hNYXAFB9rBwxZg0QMAAkYACmxvYWRGYWN0b3JJAAl0aHJlc2hvbGR4" +
+			"cD9AAAAAAAAMdwgAAAAQAAAABnQABGRhdGV0ABAyMDE0MDEwMlQwMzA0MDVadAAD" +
+			"dmVydAABM3QABmNvbG91cnQABGJsdWV0AAVhYXV0aHQAA3B3ZHQAA3VybHQAIGh0" +
+			"dHA6Ly9sb2NhbGhvc3QvYXBwL3ByaXZhdGU/YT1idAAEZGVzY3B4";
+
 	// ----------------------------------------------------------- Housekeeping
 
 	public static void main(String args[]) {
@@ -94,6 +112,61 @@ public class WebauthRequestTest extends TestCase {
 		assertEquals(expected, got);
 	}
 
+	public void testFieldStorage() {
+		WebauthRequest r = new WebauthRequest();
+		r.set("colour", "blue");
+		r.set("desc", (String) null);
+		r.set(null, "none");
+		assertEquals(5, r.length());
+		assertEquals("blue", r.get("colour"));
+		assertEquals("", r.get("desc"));
+		assertEquals("", r.get(null));
+		assertEquals("", r.get("da"));
+
+		HashSet<String> got = new HashSet<String>();
+		for (Iterator<String> it = r.getFieldNames(); it.hasNext();) {
+			String name = it.next();
+			got.add(name);
+			if ("date".equals(name) || "colour".equals(name))
+				it.remove();
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("ver", "date", "desc",
+				"colour", null)), got);
+		assertEquals(3, r.length());
+		assertEquals("", r.get("date"));
+		assertEquals("", r.get("colour"));
+		assertEquals("ver=3", r.toQString());
+	}
+
+	public void testSerializedForm() throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				Base64.decodeBase64(SERIALIZED_MAP_FORM)));
+		WebauthRequest r = (WebauthRequest) in.readObject();
+		assertEquals(6, r.length());
+		assertEquals("3", r.get("ver"));
+		assertEquals("20140102T030405Z", r.get("date"));
+		assertEquals("http://localhost/app/private?a=b", r.get("url"));
+		assertEquals("pwd", r.get("aauth"));
+		assertEquals("", r.get("desc"));
+		assertEquals("blue", r.get("colour"));
+
+		// still written as a single map of every field
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(r);
+		out.close();
+		in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		WebauthRequest copy = (WebauthRequest) in.readObject();
+		assertEquals(r.toQString(), copy.toQString());
+		assertEquals(6, copy.length());
+		assertEquals("blue", copy.get("colour"));
+		ObjectStreamField[] fields = ObjectStreamClass.lookup(WebauthRequest.class)
+				.getFields();
+		assertEquals(1, fields.length);
+		assertEquals("data", fields[0].getName());
+		assertEquals(java.util.HashMap.class, fields[0].getType());
+	}
+
 	public void testToQString() {
 
 		// Check that request.toQString is as expected
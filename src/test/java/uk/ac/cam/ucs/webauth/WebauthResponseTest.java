@@ -24,9 +24,18 @@
 
 package uk.ac.cam.ucs.webauth;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.Random;
 import java.util.SimpleTimeZone;
+import java.util.TimeZone;
 
 import junit.framework.TestCase;
 
@@ -161,6 +170,67 @@ public class WebauthResponseTest extends TestCase {
 		assertEquals(410, cancel_response.getInt("status"));
 	}
 
+  public void testPrimitiveFields() throws WebauthException {
+    assertEquals(200, ok_response.status());
+    assertEquals(410, cancel_response.status());
+    assertEquals(1, ok_response.version());
+    assertEquals(seconds, ok_response.issueMillis());
+    assertEquals(summer_seconds, summer_response.issueMillis());
+    assertEquals("2", ok_response.kid());
+    assertEquals("", cancel_response.kid());
+    assertEquals(-1, new WebauthResponse("1!!!20050303T151131Z").status());
+    assertEquals(-1, new WebauthResponse("1!!!").issueMillis());
+    try {
+      new WebauthResponse("1!A!!20050303T151131Z").status();
+      fail("Didn't detect non-integer status");
+    } catch (WebauthException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testIssueMillis() throws WebauthException {
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    Random random = new Random(42);
+    for (int i = 0; i < 10000; ++i) {
+      long millis = (random.nextLong() & 0xffffffffffL) / 1000 * 1000;
+      String date = format.format(new Date(millis));
+      assertEquals(date, millis, new WebauthResponse("3!200!!" + date).issueMillis());
+    }
+    // leniently parsed by getDate(), which issueMillis() falls back to
+    for (String date : new String[] {"20050229T000000Z", "20051332T250000Z",
+        "20050303T151131Zjunk"}) {
+      WebauthResponse response = new WebauthResponse("3!200!!" + date);
+      assertEquals(date, response.getDate("issue"), response.issueMillis());
+    }
+    try {
+      new WebauthResponse("3!200!!TODAY").issueMillis();
+      fail("Didn't detect bad issue date");
+    } catch (WebauthException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testWebauthStatus() {
+    for (WebauthStatus s : WebauthStatus.values()) {
+      assertSame(s, WebauthStatus.forCode(s.code()));
+      assertSame(s, WebauthStatus.forCode(String.valueOf(s.code())));
+      assertEquals(s.message(), WebauthResponse.statusString(s.code()));
+      assertEquals(s.code(), WebauthStatus.httpStatus(s.code()));
+    }
+    assertEquals("Web server not authorised to use the authentication service",
+        WebauthResponse.statusString("560"));
+    assertEquals("Unrecognised status code: 550", WebauthResponse.statusString(550));
+    assertEquals("Unrecognised status code: 0200", WebauthResponse.statusString("0200"));
+    assertEquals("Unrecognised status code: +200", WebauthResponse.statusString("+200"));
+    assertNull(WebauthStatus.forCode(420));
+    assertNull(WebauthStatus.forCode(600));
+    assertNull(WebauthStatus.forCode("2OO"));
+    assertEquals(550, WebauthStatus.httpStatus(550));
+    assertEquals(500, WebauthStatus.httpStatus(999));
+    assertEquals(500, WebauthStatus.httpStatus(302));
+  }
+
 	public void testMsg() {
 		assertEquals("A Message !! %%", ok_response.get("msg"));
 		assertEquals("", cancel_response.get("msg"));
@@ -212,6 +282,28 @@ public class WebauthResponseTest extends TestCase {
 		assertEquals(emptyset, cancel_response.getColl("sso"));
 	}
 
+	public void testCollCopied() {
+		assertNotSame(ok_response.getColl("sso"), ok_response.getColl("sso"));
+		ok_response.getColl("sso").add("baz");
+		assertEquals(set, ok_response.getColl("sso"));
+		ok_response.getColl(null).add("baz");
+		assertEquals(emptyset, ok_response.getColl(null));
+	}
+
+	public void testGetParam() throws WebauthException {
+		WebauthResponse response = new WebauthResponse(
+				"3!200!!20050303T151131Z!1109862691-30323-5!http://a.b/c/!jw35"
+						+ "!current!pwd!!36000!method=PUT, flag,empty=,x=1=2!2!sig");
+		assertEquals("PUT", response.getParam("method"));
+		assertEquals("", response.getParam("flag"));
+		assertEquals("", response.getParam("empty"));
+		assertEquals("1=2", response.getParam("x"));
+		assertNull(response.getParam("nonesuch"));
+		assertNull(response.getParam(""));
+		assertNull(response.getParam(null));
+		assertNull(cancel_response.getParam("method"));
+	}
+
 	public void testLife() {
 		assertEquals("36000", ok_response.get("life"));
 		assertEquals("", cancel_response.get("life"));
@@ -251,6 +343,54 @@ public class WebauthResponseTest extends TestCase {
 						+ "ac.uk/debug.html!!!!!", cancel_response.getRawData());
 	}
 
+  public void testFromQueryString() throws Exception {
+    String[] tokens = {OK_RESPONSE, CANCEL_RESPONSE, SHORT_RESPONSE,
+        "3!200!Caf\u00e9 %21!20141110T150922Z!1-2-3!http://a.b/c?x=1&y=2!abc123!current!pwd!!36000!!901!sig"};
+    for (String token : tokens) {
+      WebauthResponse expected = new WebauthResponse(token);
+      String encoded = URLEncoder.encode(token, "UTF-8");
+      for (String query : new String[] {"WLS-Response=" + encoded,
+          "a=b&WLS-Response=" + encoded + "&c=d", "WLS-Response=" + encoded.replace("%21", "!")}) {
+        WebauthResponse parsed = WebauthResponse.fromQueryString(query);
+        assertEquals(expected.toString(), parsed.toString());
+        assertEquals(expected.length(), parsed.length());
+        assertEquals(expected.getRawData(), parsed.getRawData());
+        assertEquals(token, parsed.getToken());
+      }
+    }
+
+    assertNull(WebauthResponse.fromQueryString(null));
+    assertNull(WebauthResponse.fromQueryString("a=b"));
+    assertNull(WebauthResponse.fromQueryString("XWLS-Response=1!200"));
+    assertNull(WebauthResponse.fromQueryString("WLS-Response=&a=b"));
+    assertNull(WebauthResponse.fromQueryString("WLS-Response="));
+    try {
+      WebauthResponse.fromQueryString("WLS-Response=1%2!200");
+      fail("Badly encoded parameter should throw a WebauthException");
+    } catch (WebauthException e) {
+      // correct behaviour
+    }
+    try {
+      WebauthResponse.fromQueryString("WLS-Response=1!200!%25zz");
+      fail("Badly encoded field should throw a WebauthException");
+    } catch (WebauthException e) {
+      // correct behaviour
+    }
+  }
+
+  public void testRawDataSerialized() throws Exception {
+    WebauthResponse parsed = WebauthResponse.fromQueryString("WLS-Response="
+        + URLEncoder.encode(OK_RESPONSE, "UTF-8"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(parsed);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    WebauthResponse copy = (WebauthResponse) in.readObject();
+    assertEquals(ok_response.getRawData(), copy.getRawData());
+    assertEquals(OK_RESPONSE, copy.getToken());
+  }
+
 	public void testNullField() {
 		assertEquals("", ok_response.get(null));
 		assertEquals("", ok_response.get(""));
@@ -306,6 +306,189 @@ public class WebauthValidatorTest extends TestCase {
 		}
 	}
 
+	// Signature cache - a repeat is accepted without verification, but
+	// only for exactly the same signed data and only within the timeout
+
+	public void testSignatureCache() throws WebauthException {
+		SignatureCache cache = new SignatureCache(2);
+		validator.setSignatureCache(cache);
+		assertSame(cache, validator.getSignatureCache());
+
+		validator.validate(request, response_v2_firsthand,
+				response_v2_firsthand_date);
+		assertEquals(1, cache.size());
+		validator.validate(request, response_v2_firsthand,
+				response_v2_firsthand_date + 1000);
+		assertEquals(1, cache.size());
+
+		// same signature over different data
+		String token = RESPONSE_V2_FIRSTHAND.replace("!jw35!", "!jw99!");
+		WebauthResponse tampered = new WebauthResponse(token);
+		try {
+			validator.validate(request, tampered, response_v2_firsthand_date);
+			fail("Didn't detect tampered response");
+		} catch (WebauthException e) {
+			assertEquals("Unable to verify response signature", e.getMessage());
+		}
+
+		try {
+			validator.validate(request, response_forged, response_forged_date);
+			fail("Didn't detect forged response");
+		} catch (WebauthException e) {
+			assertEquals("Unable to verify response signature", e.getMessage());
+		}
+		assertEquals(1, cache.size());
+
+		// bounded
+		validator.validate(request, response_summer, response_summer_date);
+		request.set("ver", 3);
+		validator.validate(request, response_v3_firsthand,
+				response_v3_firsthand_date);
+		assertEquals(2, cache.size());
+
+		// other checks still apply to a cached response
+		try {
+			validator.validate(request, response_v3_firsthand,
+					response_v3_firsthand_date + TEST_TIMEOUT + 1000);
+			fail("Didn't detect timeout");
+		} catch (WebauthException e) {
+			assertTrue(e.getMessage().startsWith("Response issued too long ago"));
+		}
+	}
+
+	public void testSignatureCacheHash() {
+		assertEquals(SignatureCache.hash("a", "b", "c"),
+				SignatureCache.hash("a", "b", "c"));
+		assertFalse(SignatureCache.hash("ab", "", "c") == SignatureCache.hash(
+				"a", "b", "c"));
+	}
+
+	// Signature algorithm and provider selection
+
+	public void testSignatureAlgorithm() throws WebauthException {
+		assertEquals("SHA1withRSA", validator.getSignatureAlgorithm("2"));
+		assertEquals("SHA1withRSA", validator.getSignatureAlgorithm(null));
+
+		validator.setSignatureAlgorithm("2", "SHA256withRSA");
+		assertEquals("SHA256withRSA", validator.getSignatureAlgorithm("2"));
+		assertEquals("SHA1withRSA", validator.getSignatureAlgorithm("3"));
+		try {
+			validator.validate(request, response_v2_firsthand,
+					response_v2_firsthand_date);
+			fail("Didn't use configured algorithm");
+		} catch (WebauthException e) {
+			// correct behaviour
+		}
+
+		validator.setSignatureAlgorithm("2", "NOSUCHwithRSA");
+		try {
+			validator.validate(request, response_v2_firsthand,
+					response_v2_firsthand_date);
+			fail("Didn't detect unknown algorithm");
+		} catch (WebauthException e) {
+			assertEquals("No security provider implementing signature scheme "
+					+ "NOSUCHwithRSA available in this VM", e.getMessage());
+		}
+
+		validator.setSignatureAlgorithm("2", null);
+		validator.validate(request, response_v2_firsthand,
+				response_v2_firsthand_date);
+	}
+
+	public void testSignatureProvider() throws Exception {
+		assertNull(validator.getSignatureProvider());
+
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(this.getClass().getResourceAsStream("/keystore"),
+				"keystore password".toCharArray());
+		java.security.Provider fastest = SignatureProviders.fastest(
+				"SHA1withRSA", ks.getCertificate("webauth-pubkey2")
+						.getPublicKey(), 10);
+		assertNotNull(fastest);
+		assertTrue(SignatureProviders.benchmark("SHA1withRSA",
+				ks.getCertificate("webauth-pubkey2").getPublicKey(), 5)
+				.containsKey(fastest));
+
+		validator.setSignatureProvider(fastest);
+		assertSame(fastest, validator.getSignatureProvider());
+		validator.validate(request, response_v2_firsthand,
+				response_v2_firsthand_date);
+
+		try {
+			SignatureProviders.fastest("NOSUCHwithRSA", ks.getCertificate(
+					"webauth-pubkey2").getPublicKey(), 1);
+			fail("Didn't detect unknown algorithm");
+		} catch (NoSuchAlgorithmException e) {
+			// correct behaviour
+		}
+	}
+
+	public void testReplayLog() throws Exception {
+		assertNull(validator.getReplayLog());
+
+		java.io.File file = java.io.File.createTempFile("replay", ".log");
+		file.delete();
+		ReplayLog log = new ReplayLog(file, 100, 31000);
+		try {
+			validator.setReplayLog(log);
+			assertSame(log, validator.getReplayLog());
+			validator.validate(request, response_v2_firsthand,
+					response_v2_firsthand_date);
+			try {
+				validator.validate(request, response_v2_firsthand,
+						response_v2_firsthand_date);
+				fail("Didn't detect replayed response");
+			} catch (WebauthException e) {
+				assertTrue(e.getMessage().indexOf("already been used") >= 0);
+			}
+		} finally {
+			log.close();
+			file.delete();
+		}
+	}
+
+	public void testSetKeyStore() throws Exception {
+		KeyStore empty = KeyStore.getInstance("JKS");
+		empty.load(null, new char[] {});
+		KeyStore ks = validator.getKeyStore();
+		validator.setKeyStore(empty);
+		assertSame(empty, validator.getKeyStore());
+		try {
+			validator.validate(request, response_v2_firsthand,
+					response_v2_firsthand_date);
+			fail("Validated without the key");
+		} catch (WebauthException e) {
+			// correct behaviour
+		}
+		validator.setKeyStore(ks);
+		validator.validate(request, response_v2_firsthand,
+				response_v2_firsthand_date);
+		try {
+			validator.setKeyStore(null);
+			fail("Accepted a null key store");
+		} catch (IllegalArgumentException e) {
+			// correct behaviour
+		}
+	}
+
+	public void testCopySettings() throws Exception {
+		validator.setMaxSkew(2000);
+		validator.setKeyPrefix("other-pubkey");
+		validator.setSignatureAlgorithm("901", "SHA256withRSA");
+		validator.setSignatureCache(new SignatureCache(16));
+		ManualClock clock = new ManualClock(0);
+		validator.setClock(clock);
+		WebauthValidator copy = new WebauthValidator(validator.getKeyStore());
+		copy.copySettings(validator);
+		assertEquals(TEST_TIMEOUT, copy.getTimeout());
+		assertEquals(2000, copy.getMaxSkew());
+		assertEquals("other-pubkey", copy.getKeyPrefix());
+		assertEquals("SHA256withRSA", copy.getSignatureAlgorithm("901"));
+		assertEquals("SHA1withRSA", copy.getSignatureAlgorithm("2"));
+		assertSame(validator.getSignatureCache(), copy.getSignatureCache());
+		assertSame(clock, copy.getClock());
+	}
+
 	// Various parameter errors
 
 	public void testMissVer() {
@@ -582,6 +765,28 @@ public class WebauthValidatorTest extends TestCase {
 
 	}
 
+	public void testClock() throws WebauthException {
+		assertSame(Clock.SYSTEM, validator.getClock());
+		ManualClock clock = new ManualClock(response_v2_firsthand_date);
+		validator.setClock(clock);
+		assertSame(clock, validator.getClock());
+		validator.validate(request, response_v2_firsthand);
+
+		clock.advance(validator.getTimeout() + validator.getMaxSkew() + 1);
+		try {
+			validator.validate(request, response_v2_firsthand);
+			fail("Didn't detect a response that was stale");
+		} catch (WebauthException e) {
+			assertTrue(e.getMessage().startsWith("Response issued too long ago"));
+		}
+		try {
+			validator.setClock(null);
+			fail("Accepted a null clock");
+		} catch (IllegalArgumentException e) {
+			// correct behaviour
+		}
+	}
+
 	// Timeout handling, defined timeout
 
 	public void testTimeout() throws WebauthException {
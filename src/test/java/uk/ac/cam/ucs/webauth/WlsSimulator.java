@@ -0,0 +1,193 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * An in-process stand-in for the Raven WLS
+ * (<tt>https://raven.cam.ac.uk/auth/authenticate.html</tt>).
+ *
+ * Given the query string of an authentication request (as produced by
+ * {@link WebauthRequest#toQString()}) it issues a correctly signed
+ * <tt>WLS-Response</tt> for protocol version 1, 2 or 3, using the private key
+ * in the test resource <tt>wls-simulator.jks</tt>. The matching certificate is
+ * available as <tt>wls-simulator.crt</tt>.
+ */
+class WlsSimulator {
+
+  static final String KEYSTORE_RESOURCE = "/wls-simulator.jks";
+  static final String CERTIFICATE_RESOURCE = "/wls-simulator.crt";
+  static final String KEY_ALIAS = "wls-simulator";
+  static final char[] KEYSTORE_PASSWORD = "simulator password".toCharArray();
+
+  private static final String DATE_FORMAT = "yyyyMMdd'T'HHmmss'Z'";
+  private static final String SIGNATURE_SCHEME = "SHA1withRSA";
+
+  private final PrivateKey privateKey;
+  private final Certificate certificate;
+  private final String kid;
+  private final AtomicInteger serial = new AtomicInteger();
+
+  /**
+   * Creates a simulator signing with the bundled test key and identifying it
+   * with the given key-id.
+   */
+  WlsSimulator(String kid) throws GeneralSecurityException, IOException {
+    KeyStore ks = KeyStore.getInstance("JKS");
+    InputStream in = WlsSimulator.class.getResourceAsStream(KEYSTORE_RESOURCE);
+    try {
+      ks.load(in, KEYSTORE_PASSWORD);
+    } finally {
+      in.close();
+    }
+    this.privateKey = (PrivateKey) ks.getKey(KEY_ALIAS, KEYSTORE_PASSWORD);
+    this.certificate = ks.getCertificate(KEY_ALIAS);
+    this.kid = kid;
+  }
+
+  /** The certificate holding the public half of the signing key. */
+  Certificate getCertificate() {
+    return certificate;
+  }
+
+  /** The key-id placed in every response. */
+  String getKid() {
+    return kid;
+  }
+
+  /**
+   * Builds a key store suitable for a {@link WebauthValidator} using the
+   * default key prefix.
+   */
+  KeyStore validatorKeyStore() throws GeneralSecurityException, IOException {
+    KeyStore ks = KeyStore.getInstance("JKS");
+    ks.load(null, new char[] {});
+    ks.setCertificateEntry("webauth-pubkey" + kid, certificate);
+    return ks;
+  }
+
+  /**
+   * Authenticates <tt>principal</tt> in answer to an authentication request.
+   *
+   * @param query the query string sent to the WLS
+   * @param principal the user to authenticate
+   * @param version the highest protocol version the simulated WLS speaks
+   *
+   * @return the URL the WLS would redirect the browser to, carrying the
+   *         WLS-Response parameter
+   */
+  String authenticate(String query, String principal, int version)
+      throws GeneralSecurityException {
+
+    String url = MockHttp.queryParameter(query, "url");
+    String token = respond(query, principal, version);
+    try {
+      return url + (url.indexOf('?') < 0 ? '?' : '&') + RavenFilter.WLS_RESPONSE_PARAM + "="
+          + URLEncoder.encode(token, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new Error(e);
+    }
+  }
+
+  /**
+   * Produces the signed response token for an authentication request.
+   *
+   * @see #authenticate(String, String, int)
+   */
+  String respond(String query, String principal, int version)
+      throws GeneralSecurityException {
+
+    String requested = MockHttp.queryParameter(query, "ver");
+    int ver = requested == null ? 1 : Math.min(version, Integer.parseInt(requested));
+    String params = MockHttp.queryParameter(query, "params");
+    String iact = MockHttp.queryParameter(query, "iact");
+    boolean firstHand = "yes".equalsIgnoreCase(iact) || (serial.get() & 1) == 0;
+
+    SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+    format.setTimeZone(TimeZone.getTimeZone("GMT+00:00"));
+    long now = System.currentTimeMillis();
+
+    StringBuilder sb = new StringBuilder(256);
+    sb.append(ver).append('!');
+    sb.append(WebauthResponse.SUCCESS).append('!');
+    sb.append('!'); // msg
+    sb.append(format.format(new Date(now))).append('!');
+    sb.append(now / 1000).append('-').append(serial.incrementAndGet()).append("-1!");
+    append(sb, MockHttp.queryParameter(query, "url"));
+    append(sb, principal);
+    if (ver >= 3)
+      append(sb, "current");
+    append(sb, firstHand ? "pwd" : "");
+    append(sb, firstHand ? "" : "pwd");
+    append(sb, "36000");
+    append(sb, params);
+    String rawData = sb.substring(0, sb.length() - 1);
+
+    Signature signature = Signature.getInstance(SIGNATURE_SCHEME);
+    signature.initSign(privateKey);
+    try {
+      signature.update(rawData.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new Error(e);
+    }
+    sb.append(kid).append('!').append(encodeSignature(signature.sign()));
+    return sb.toString();
+  }
+
+  /** Append a field, escaping '%' and '!' as the WLS does. */
+  private static void append(StringBuilder sb, String value) {
+    if (value != null) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '%')
+          sb.append("%25");
+        else if (c == '!')
+          sb.append("%21");
+        else
+          sb.append(c);
+      }
+    }
+    sb.append('!');
+  }
+
+  /** The inverse of {@link WebauthDecoder#decodeBuffer(String)}. */
+  private static String encodeSignature(byte[] sig) {
+    String b64 = new String(Base64.encodeBase64(sig));
+    return b64.replace('+', '-').replace('/', '.').replace('=', '_');
+  }
+}
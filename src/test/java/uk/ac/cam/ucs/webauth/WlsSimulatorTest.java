@@ -0,0 +1,136 @@
+/* This file is part of the University of Cambridge Web Authentication
+ * System Java Toolkit
+ *
+ * Copyright 2014 University of Cambridge
+ *
+ * This toolkit is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * The toolkit is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this toolkit; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA
+ *
+ */
+
+package uk.ac.cam.ucs.webauth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the local WLS simulator issues responses the toolkit accepts,
+ * and that the load driver can run complete logins through RavenFilter.
+ */
+public class WlsSimulatorTest extends TestCase {
+
+  private WlsSimulator wls;
+  private WebauthValidator validator;
+
+  public static void main(String args[]) {
+    junit.textui.TestRunner.run(WlsSimulatorTest.class);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    wls = new WlsSimulator("901");
+    validator = new WebauthValidator(wls.validatorKeyStore());
+  }
+
+  public void testAllVersionsValidate() throws Exception {
+    for (int ver = 1; ver <= 3; ver++) {
+      WebauthRequest request = new WebauthRequest();
+      request.set("url", "http://localhost/app/private?a=b");
+      request.set("aauth", "pwd");
+      request.setParam("method", "GET");
+
+      WebauthResponse response = new WebauthResponse(wls.respond(request.toQString(), "abc123",
+          ver));
+      assertEquals(ver, response.getInt("ver"));
+      assertEquals("abc123", response.get("principal"));
+      assertEquals("901", response.get("kid"));
+      assertEquals("GET", response.getParam("method"));
+      assertEquals(ver >= 3 ? "current" : "", response.get("ptags"));
+      validator.validate(request, response);
+    }
+  }
+
+  public void testResponseVersionLimitedByRequest() throws Exception {
+    WebauthRequest request = new WebauthRequest();
+    request.set("ver", 2);
+    request.set("url", "http://localhost/app/private");
+    WebauthResponse response = new WebauthResponse(wls.respond(request.toQString(), "abc123", 3));
+    assertEquals(2, response.getInt("ver"));
+    validator.validate(request, response);
+  }
+
+  public void testTamperedResponseRejected() throws Exception {
+    WebauthRequest request = new WebauthRequest();
+    request.set("url", "http://localhost/app/private");
+    String token = wls.respond(request.toQString(), "abc123", 3);
+    try {
+      validator.validate(request, new WebauthResponse(token.replace("abc123", "xyz999")));
+      fail("Didn't detect tampered principal");
+    } catch (WebauthException e) {
+      assertEquals("Unable to verify response signature", e.getMessage());
+    }
+  }
+
+  public void testLoginLoop() throws Exception {
+    RavenFilterLoadDriver driver = new RavenFilterLoadDriver();
+    for (int ver = 1; ver <= 3; ver++)
+      driver.login("abc123", ver, ver);
+    assertEquals(3, driver.getChainCalls());
+  }
+
+  public void testConcurrentLoad() throws Exception {
+    RavenFilterLoadDriver.Result result = new RavenFilterLoadDriver().run(4, 25);
+    if (result.firstFailure != null)
+      throw new AssertionError(result.firstFailure);
+    assertEquals(0, result.failures);
+    assertEquals(100, result.latencies.length);
+    assertTrue(result.percentileMicros(50) <= result.percentileMicros(99));
+    assertTrue(result.throughput() > 0);
+  }
+
+  public void testMixedLoad() throws Exception {
+    RavenFilterLoadDriver.MixResult result = new RavenFilterLoadDriver().runMix(4, 200);
+    if (result.all.firstFailure != null)
+      throw new AssertionError(result.all.firstFailure);
+    assertEquals(0, result.all.failures);
+    assertEquals(800, result.all.latencies.length);
+    assertEquals(760, result.byKind[RavenFilterLoadDriver.SESSION].latencies.length);
+    assertEquals(32, result.byKind[RavenFilterLoadDriver.REDIRECT].latencies.length);
+    assertEquals(8, result.byKind[RavenFilterLoadDriver.VALIDATE].latencies.length);
+    assertTrue(result.all.throughput() > 0);
+  }
+
+  public void testMixedLoadFailedSetup() throws Exception {
+    final AtomicInteger logins = new AtomicInteger();
+    RavenFilterLoadDriver driver = new RavenFilterLoadDriver() {
+      @Override
+      MockHttp.Session login(String principal, int version, int page) throws Exception {
+        if (logins.getAndIncrement() == 0)
+          throw new IllegalStateException("no session");
+        return super.login(principal, version, page);
+      }
+    };
+    RavenFilterLoadDriver.MixResult result = driver.runMix(4, 200);
+    // the thread that couldn't log in is reported, not counted
+    assertEquals("no session", result.all.firstFailure.getMessage());
+    assertEquals(1, result.all.failures);
+    assertEquals(1, result.byKind[RavenFilterLoadDriver.SESSION].failures);
+    assertEquals(600, result.all.latencies.length);
+    assertEquals(570, result.byKind[RavenFilterLoadDriver.SESSION].latencies.length);
+    assertEquals(24, result.byKind[RavenFilterLoadDriver.REDIRECT].latencies.length);
+    assertEquals(6, result.byKind[RavenFilterLoadDriver.VALIDATE].latencies.length);
+  }
+}